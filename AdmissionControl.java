@@ -0,0 +1,278 @@
+// AdmissionControl.java
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps a server responsive when some clients ask for much more than their share.
+ *
+ * Connections beyond a fixed number are turned away at once with
+ * "BUSY <retryAfterMillis>" instead of piling up threads or queue entries.
+ * Each client address also gets two token buckets, one for requests and
+ * one for bytes sent. A client over its request rate is answered BUSY with
+ * the time until its next token. A client over its bandwidth is slowed down
+ * inside the copy loops, so a bulk pull gets its configured rate and no more.
+ * A rate of 0 turns that limit off.
+ */
+class AdmissionControl {
+    // Addresses tracked before those idle for IDLE_NANOS are dropped
+    private static final int MAX_CLIENTS = 10_000;
+    private static final long IDLE_NANOS = TimeUnit.MINUTES.toNanos(1);
+    // Least time between two scans for idle addresses, so a server with
+    // many active clients doesn't scan them all on every request
+    private static final long PURGE_NANOS = TimeUnit.SECONDS.toNanos(10);
+    // Longest BUSY hint a client waits for before giving up on a request
+    static final long MAX_RETRY_WAIT_MILLIS = 30_000;
+
+    private final int maxConnections;
+    private final AtomicInteger connections = new AtomicInteger();
+    private final double requestsPerSecond;
+    private final double requestBurst;
+    private final double bytesPerSecond;
+    private final long byteBurst;
+    private final long retryAfterMillis;
+    private final ConcurrentHashMap<String, Client> clients = new ConcurrentHashMap<>();
+    private final AtomicLong nextPurge = new AtomicLong(System.nanoTime());
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder throttledNanos = new LongAdder();
+
+    AdmissionControl(int maxConnections, double requestsPerSecond, double requestBurst,
+                     double bytesPerSecond, long byteBurst, long retryAfterMillis) {
+        this.maxConnections = maxConnections;
+        this.requestsPerSecond = requestsPerSecond;
+        this.requestBurst = Math.max(1, requestBurst);
+        this.bytesPerSecond = bytesPerSecond;
+        this.byteBurst = Math.max(1, byteBurst);
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    /** Limits of a Department Server, from server.* settings. */
+    static AdmissionControl forDepartmentServer() {
+        return new AdmissionControl(Config.getServerMaxConnections(),
+            Config.getClientRequestsPerSecond(), Config.getClientRequestBurst(),
+            Config.getClientBytesPerSecond(), Config.getClientByteBurst(), Config.getBusyRetryMillis());
+    }
+
+    /** Limits of an IndexServer, which sends no file data. */
+    static AdmissionControl forIndexServer() {
+        return new AdmissionControl(Config.getIndexMaxSessions(),
+            Config.getIndexClientRequestsPerSecond(), Config.getIndexClientRequestBurst(),
+            0, 1, Config.getBusyRetryMillis());
+    }
+
+    /** Takes a connection slot; false if the server is full. */
+    boolean tryEnter() {
+        if (connections.incrementAndGet() > maxConnections) {
+            connections.decrementAndGet();
+            rejected.increment();
+            return false;
+        }
+        return true;
+    }
+
+    /** Gives back a slot taken by tryEnter. */
+    void leave() {
+        connections.decrementAndGet();
+    }
+
+    /** The reply for connections over the limit. */
+    String busy() {
+        return "BUSY " + retryAfterMillis;
+    }
+
+    /**
+     * Charges one request to the address. Returns null if it may proceed,
+     * otherwise the BUSY reply with the time until the client's next token.
+     */
+    String admitRequest(String address) {
+        if (requestsPerSecond <= 0) {
+            return null;
+        }
+        long waitNanos = client(address).requests.tryTake(1);
+        if (waitNanos == 0) {
+            return null;
+        }
+        rejected.increment();
+        return "BUSY " + Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitNanos));
+    }
+
+    /** The most bytes to send in one go, so one write can't overrun the bandwidth limit by much. */
+    long chunk(long wanted) {
+        return bytesPerSecond > 0 ? Math.min(wanted, byteBurst) : wanted;
+    }
+
+    /**
+     * Records bytes sent to the address and returns how long the sender
+     * should pause before sending more, in nanoseconds; 0 within the limit.
+     */
+    long charge(String address, long bytes) {
+        if (bytesPerSecond <= 0 || bytes <= 0) {
+            return 0;
+        }
+        long pause = client(address).bytes.take(bytes);
+        if (pause > 0) {
+            throttledNanos.add(pause);
+        }
+        return pause;
+    }
+
+    /** Blocking form of charge for thread-per-connection handlers. */
+    void throttle(String address, long bytes) throws IOException {
+        long pause = charge(address, bytes);
+        if (pause > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(pause);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while throttled");
+            }
+        }
+    }
+
+    /** A stream that throttles what is written through it; out itself when bandwidth is unlimited. */
+    OutputStream throttled(String address, OutputStream out) {
+        if (bytesPerSecond <= 0) {
+            return out;
+        }
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                while (length > 0) {
+                    int part = (int) chunk(length);
+                    out.write(bytes, offset, part);
+                    throttle(address, part);
+                    offset += part;
+                    length -= part;
+                }
+            }
+        };
+    }
+
+    /** Requests and connections refused with BUSY. */
+    long rejected() {
+        return rejected.sum();
+    }
+
+    /** Total time transfers were held back by bandwidth limits. */
+    long throttledNanos() {
+        return throttledNanos.sum();
+    }
+
+    int connections() {
+        return connections.get();
+    }
+
+    private Client client(String address) {
+        Client client = clients.computeIfAbsent(address, a -> new Client());
+        long now = System.nanoTime();
+        client.lastSeen = now;
+        long purgeAt = nextPurge.get();
+        if (clients.size() > MAX_CLIENTS && now - purgeAt >= 0
+                && nextPurge.compareAndSet(purgeAt, now + PURGE_NANOS)) {
+            long cutoff = now - IDLE_NANOS;
+            clients.values().removeIf(c -> c.lastSeen < cutoff);
+        }
+        return client;
+    }
+
+    /**
+     * Answers a connection that was not admitted and closes it. Request bytes
+     * that already arrived are read first; closing with unread input would
+     * reset the connection and could discard the reply on its way.
+     */
+    static void turnAway(Socket socket, String reply) {
+        try (socket) {
+            socket.getOutputStream().write((reply + "\n").getBytes(StandardCharsets.UTF_8));
+            socket.shutdownOutput();
+            InputStream in = socket.getInputStream();
+            int available = in.available();
+            if (available > 0) {
+                in.skip(available);
+            }
+        } catch (IOException e) {
+            // The client is gone already
+        }
+    }
+
+    /**
+     * The retry-after hint of a "BUSY <millis>" reply, capped at
+     * MAX_RETRY_WAIT_MILLIS; -1 if the reply is something else.
+     */
+    static long retryAfter(String reply) {
+        if (reply == null || !reply.startsWith("BUSY")) {
+            return -1;
+        }
+        try {
+            return Math.min(MAX_RETRY_WAIT_MILLIS, Long.parseLong(reply.substring(4).trim()));
+        } catch (NumberFormatException e) {
+            return 1000;
+        }
+    }
+
+    /**
+     * Waits out a BUSY reply's retry-after time, plus up to half as long
+     * again, so clients turned away together don't all come back together.
+     */
+    static void backOff(long millis) throws IOException {
+        try {
+            Thread.sleep(millis + ThreadLocalRandom.current().nextLong(millis / 2 + 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to retry");
+        }
+    }
+
+    // Buckets of one client address
+    private class Client {
+        final TokenBucket requests = new TokenBucket(requestsPerSecond, requestBurst);
+        final TokenBucket bytes = new TokenBucket(bytesPerSecond, byteBurst);
+        volatile long lastSeen;
+    }
+
+    /**
+     * Tokens refill at a fixed rate up to the burst size. tryTake only takes
+     * tokens that are there; take always succeeds and lets the balance go
+     * negative, so concurrent senders queue up behind each other's debt.
+     */
+    static class TokenBucket {
+        private final double perNano;
+        private final double capacity;
+        private double tokens;
+        private long updatedAt = System.nanoTime();
+
+        TokenBucket(double perSecond, double capacity) {
+            this.perNano = perSecond / 1e9;
+            this.capacity = capacity;
+            this.tokens = capacity;
+        }
+
+        // 0 if taken, otherwise the nanoseconds until count tokens are there
+        synchronized long tryTake(double count) {
+            refill();
+            if (tokens >= count) {
+                tokens -= count;
+                return 0;
+            }
+            return (long) Math.ceil((count - tokens) / perNano);
+        }
+
+        // Nanoseconds until the balance is back to zero
+        synchronized long take(double count) {
+            refill();
+            tokens -= count;
+            return tokens >= 0 ? 0 : (long) Math.ceil(-tokens / perNano);
+        }
+
+        private void refill() {
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - updatedAt) * perNano);
+            updatedAt = now;
+        }
+    }
+}
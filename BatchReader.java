@@ -0,0 +1,178 @@
+// BatchReader.java
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads the files of a DOWNLOAD_BATCH ahead of the connection that sends them.
+ *
+ * A background task walks the names in order. It stats each file, opens
+ * it and reads its first READ_AHEAD_BYTES into memory, which for most
+ * files of a course bundle is the whole file. At most AHEAD entries wait
+ * in front of the sender. The next file is therefore ready by the time the
+ * current one has gone out, and the sender never waits on the disk between
+ * entries. Files in the hot-file cache are taken from there. The rest of a
+ * larger file is left to the sender, which streams it from the open channel.
+ */
+class BatchReader implements Closeable {
+    static final int READ_AHEAD_BYTES = 1024 * 1024;
+    private static final int AHEAD = 4;
+    private static final ExecutorService readers = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task, "batch-reader-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final BlockingQueue<Entry> ready = new ArrayBlockingQueue<>(AHEAD);
+    private final Future<?> task;
+    private volatile boolean closed;
+
+    BatchReader(Path directory, List<String> names, HotFileCache hotFiles, FileHashes hashes) {
+        task = readers.submit(() -> {
+            for (String name : names) {
+                Entry entry = read(directory, name, hotFiles, hashes);
+                if (!offer(entry)) {
+                    entry.close();
+                    return;
+                }
+            }
+            offer(Entry.END);
+        });
+    }
+
+    // Waits for room, giving up once the sender has closed the reader.
+    // An entry queued just as close() emptied the queue is closed here.
+    private boolean offer(Entry entry) {
+        try {
+            while (!closed) {
+                if (ready.offer(entry, 100, TimeUnit.MILLISECONDS)) {
+                    if (closed) {
+                        drain();
+                        return false;
+                    }
+                    return true;
+                }
+            }
+        } catch (InterruptedException e) {
+            // Closed by the sender
+        }
+        return false;
+    }
+
+    private static Entry read(Path directory, String name, HotFileCache hotFiles, FileHashes hashes) {
+        if (!DepartmentServer.isPlainName(name)) {
+            return new Entry(name, null, 0, null, null, null);
+        }
+        Path path = directory.resolve(name);
+        BasicFileAttributes attributes = DepartmentServer.regularFileAttributes(path);
+        if (attributes == null) {
+            return new Entry(name, null, 0, null, null, null);
+        }
+        String hash = hashes.peek(path, attributes);
+        ByteBuffer cached = hotFiles.get(path, attributes);
+        if (cached != null) {
+            return new Entry(name, path, attributes.size(), hash, cached, null);
+        }
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+            long size = attributes.size();
+            ByteBuffer head = ByteBuffer.allocate((int) Math.min(size, READ_AHEAD_BYTES));
+            while (head.hasRemaining()) {
+                if (channel.read(head) < 0) {
+                    throw new EOFException("File truncated at " + head.position() + " bytes");
+                }
+            }
+            head.flip();
+            if (head.limit() == size) {
+                channel.close();
+                channel = null;
+            }
+            return new Entry(name, path, size, hash, head, channel);
+        } catch (IOException e) {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    // Reported as missing either way
+                }
+            }
+            return new Entry(name, null, 0, null, null, null);
+        }
+    }
+
+    /** The next entry in request order, or null after the last one. */
+    Entry next() throws IOException {
+        try {
+            Entry entry = ready.take();
+            return entry == Entry.END ? null : entry;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading ahead");
+        }
+    }
+
+    /** Stops reading ahead and closes the files read but not sent. */
+    @Override
+    public void close() {
+        closed = true;
+        task.cancel(true);
+        drain();
+    }
+
+    // Each entry is taken by one poll, so the sender and the reader task
+    // can both drain without closing anything twice
+    private void drain() {
+        Entry entry;
+        while ((entry = ready.poll()) != null) {
+            entry.close();
+        }
+    }
+
+    /**
+     * One file of the batch. path is null if the name can't be served. The
+     * first bytes are in head, all of them for small and cached files. For a
+     * larger file the rest is read from channel, starting at head's length.
+     */
+    static class Entry implements Closeable {
+        static final Entry END = new Entry(null, null, 0, null, null, null);
+
+        final String name;
+        final Path path;
+        final long size;
+        // SHA-256 of the file, or null if not hashed yet
+        final String hash;
+        final ByteBuffer head;
+        final FileChannel channel;
+
+        Entry(String name, Path path, long size, String hash, ByteBuffer head, FileChannel channel) {
+            this.name = name;
+            this.path = path;
+            this.size = size;
+            this.hash = hash;
+            this.head = head;
+            this.channel = channel;
+        }
+
+        @Override
+        public void close() {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // Nothing left to send from it
+                }
+            }
+        }
+    }
+}
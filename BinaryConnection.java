@@ -0,0 +1,69 @@
+// BinaryConnection.java
+import java.io.*;
+import java.net.*;
+
+/**
+ * A client connection switched to the framed protocol (see FrameCodec).
+ * Requests are built with {@link #begin(byte)} and sent with {@link #call()};
+ * the returned decoder is reused, so read what you need before the next call.
+ */
+public class BinaryConnection implements Closeable {
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+    private final FrameCodec.Encoder encoder = new FrameCodec.Encoder();
+    private final FrameCodec.Decoder decoder = new FrameCodec.Decoder();
+    private int nextId = 1;
+
+    public BinaryConnection(String host, int port) throws IOException {
+        socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        in = new BufferedInputStream(socket.getInputStream());
+        out = new BufferedOutputStream(socket.getOutputStream());
+        try {
+            FrameCodec.negotiate(in, out);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /** Starts a request frame with a fresh request id. */
+    public FrameCodec.Encoder begin(byte opcode) {
+        return encoder.begin(opcode, nextId++);
+    }
+
+    /** Sends the frame built since {@link #begin(byte)} and reads its first response frame. */
+    public FrameCodec.Decoder call() throws IOException {
+        encoder.writeTo(out);
+        out.flush();
+        return receive();
+    }
+
+    /** Reads the next frame of a multi-frame response, checking it belongs to the last request. */
+    public FrameCodec.Decoder receive() throws IOException {
+        if (!decoder.read(in)) {
+            throw new EOFException("Server closed the connection");
+        }
+        if (decoder.requestId() != nextId - 1) {
+            throw new IOException("Response for request " + decoder.requestId() +
+                                  " while waiting for " + (nextId - 1));
+        }
+        if (decoder.opcode() == FrameCodec.OP_ERROR) {
+            throw new IOException(decoder.getString());
+        }
+        return decoder;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            encoder.begin(FrameCodec.OP_QUIT, nextId++).writeTo(out);
+            out.flush();
+        } catch (IOException e) {
+            // Closing anyway
+        } finally {
+            socket.close();
+        }
+    }
+}
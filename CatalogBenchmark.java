@@ -0,0 +1,153 @@
+// CatalogBenchmark.java
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * GET and LIST latency of a Department Server answered from the filesystem,
+ * as before DirectoryCatalog, versus answered from the catalog.
+ *
+ * Creates the given number of small files in the directory unless it already
+ * holds that many, builds the catalog once, then times the work behind each
+ * request in-process, without sockets, so only the metadata cost is
+ * compared: a stat per GET, a directory read per LIST page and per full
+ * listing. Point it at a directory on network storage to see the effect of
+ * remote metadata calls.
+ *
+ * Usage: java CatalogBenchmark [directory] [files] [requests]
+ */
+public class CatalogBenchmark {
+    private static final int PAGE_SIZE = 1000;
+
+    public static void main(String[] args) throws IOException {
+        Path directory = Paths.get(args.length > 0 ? args[0] : "catalog-bench");
+        int files = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+        int requests = args.length > 2 ? Integer.parseInt(args[2]) : 100000;
+
+        createFiles(directory, files);
+        FileHashes hashes = new FileHashes();
+        DirectoryCatalog catalog = new DirectoryCatalog(directory, hashes,
+            Config.getCatalogScanThreads(), Config.getHashThreads());
+        long started = System.nanoTime();
+        catalog.rescan();
+        System.out.printf("Scanned and hashed %d files in %d ms%n",
+                          catalog.size(), (System.nanoTime() - started) / 1_000_000);
+
+        List<String> names = new ArrayList<>();
+        for (DirectoryCatalog.Entry entry : catalog.entries()) {
+            names.add(entry.name);
+        }
+        // Repeat once so both paths run with a warm JIT and page cache
+        for (int round = 0; round < 2; round++) {
+            boolean report = round == 1;
+            long found = 0;
+            long[] filesystem = new long[requests];
+            long[] memory = new long[requests];
+            for (int i = 0; i < requests; i++) {
+                String name = names.get(ThreadLocalRandom.current().nextInt(names.size()));
+                long t0 = System.nanoTime();
+                Path path = directory.resolve(name);
+                BasicFileAttributes attributes = DepartmentServer.regularFileAttributes(path);
+                if (attributes != null && hashes.peek(path, attributes) != null) {
+                    found++;
+                }
+                long t1 = System.nanoTime();
+                if (catalog.get(name) != null) {
+                    found++;
+                }
+                long t2 = System.nanoTime();
+                filesystem[i] = t1 - t0;
+                memory[i] = t2 - t1;
+            }
+            if (report) {
+                print("GET", filesystem, memory);
+            }
+
+            int pages = Math.max(1, requests / 1000);
+            filesystem = new long[pages];
+            memory = new long[pages];
+            for (int i = 0; i < pages; i++) {
+                String after = names.get(ThreadLocalRandom.current().nextInt(names.size()));
+                long t0 = System.nanoTime();
+                found += Listing.directoryPage(directory, after, PAGE_SIZE).size();
+                long t1 = System.nanoTime();
+                found += catalog.page(after, PAGE_SIZE).size();
+                long t2 = System.nanoTime();
+                filesystem[i] = t1 - t0;
+                memory[i] = t2 - t1;
+            }
+            if (report) {
+                print("LIST " + PAGE_SIZE, filesystem, memory);
+            }
+
+            int listings = Math.max(1, pages / 10);
+            filesystem = new long[listings];
+            memory = new long[listings];
+            for (int i = 0; i < listings; i++) {
+                long t0 = System.nanoTime();
+                try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+                    for (Path entry : entries) {
+                        if (Files.isRegularFile(entry)) {
+                            found++;
+                        }
+                    }
+                }
+                long t1 = System.nanoTime();
+                for (DirectoryCatalog.Entry entry : catalog.entries()) {
+                    found += entry.name.isEmpty() ? 0 : 1;
+                }
+                long t2 = System.nanoTime();
+                filesystem[i] = t1 - t0;
+                memory[i] = t2 - t1;
+            }
+            if (report) {
+                print("LIST (all)", filesystem, memory);
+                System.out.println("(" + found + " entries seen)");
+            }
+        }
+    }
+
+    private static void createFiles(Path directory, int files) throws IOException {
+        Files.createDirectories(directory);
+        int existing;
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            existing = 0;
+            for (Path ignored : entries) {
+                existing++;
+            }
+        }
+        if (existing >= files) {
+            return;
+        }
+        System.out.println("Creating " + (files - existing) + " files in " + directory);
+        for (int i = 0; i < files; i++) {
+            Path file = directory.resolve(String.format("file%07d.dat", i));
+            if (!Files.exists(file)) {
+                Files.write(file, ("content " + i + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    private static void print(String request, long[] filesystem, long[] memory) {
+        System.out.printf("%-12s filesystem: mean %8.1f us, p99 %8.1f us | catalog: mean %8.1f us, p99 %8.1f us%n",
+                          request, mean(filesystem), percentile(filesystem, 0.99),
+                          mean(memory), percentile(memory, 0.99));
+    }
+
+    private static double mean(long[] nanos) {
+        long total = 0;
+        for (long value : nanos) {
+            total += value;
+        }
+        return total / (double) nanos.length / 1000;
+    }
+
+    private static double percentile(long[] nanos, double fraction) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * fraction))] / 1000.0;
+    }
+}
@@ -0,0 +1,139 @@
+// ClusterBenchmark.java
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * SEARCH throughput against a set of index nodes.
+ *
+ * Registers one department server with a synthetic catalog through the
+ * first node, then runs client threads, spread evenly over all nodes, that
+ * each send pipelined batches of SEARCH requests for random names. Searches
+ * for names a node doesn't own are routed by that node, as they would be
+ * for real clients. In direct mode the threads fetch the ring with CLUSTER
+ * and send each search straight to an owner, as a cluster-aware client
+ * would, so no request takes the extra hop.
+ *
+ * Usage: java ClusterBenchmark host:port[,host:port...] [files] [threads] [seconds] [routed|direct]
+ */
+public class ClusterBenchmark {
+    private static final int BATCH = 32;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("Usage: java ClusterBenchmark host:port[,host:port...] [files] [threads] [seconds] [routed|direct]");
+            return;
+        }
+        String[] nodes = args[0].split(",");
+        int files = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+        boolean direct = args.length > 4 && args[4].equals("direct");
+
+        IndexCluster cluster = null;
+        StringBuilder catalog = new StringBuilder();
+        for (int i = 0; i < files; i++) {
+            catalog.append(i == 0 ? "" : ",").append(name(i));
+        }
+        try (IndexConnectionPool first = pool(nodes[0])) {
+            String answer = first.request("REGISTER Bench_Server|127.0.0.1|9999|" + catalog + "|1");
+            System.out.println("Register " + files + " files: " + answer);
+            if (direct) {
+                // CLUSTER <replication> <nodes>
+                String[] ring = first.request("CLUSTER").split(" ");
+                if (ring[0].equals("CLUSTER")) {
+                    cluster = new IndexCluster(null, Arrays.asList(ring[2].split(",")), Integer.parseInt(ring[1]));
+                }
+            }
+        }
+
+        LongAdder completed = new LongAdder();
+        LongAdder misses = new LongAdder();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        List<Future<?>> running = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            String node = nodes[t % nodes.length];
+            if (cluster != null) {
+                IndexCluster ring = cluster;
+                int replica = t;
+                running.add(workers.submit(() -> runDirect(ring, replica, files, deadline, completed, misses)));
+                continue;
+            }
+            running.add(workers.submit(() -> {
+                try (IndexConnectionPool pool = pool(node)) {
+                    List<String> batch = new ArrayList<>(BATCH);
+                    while (System.nanoTime() < deadline) {
+                        batch.clear();
+                        for (int i = 0; i < BATCH; i++) {
+                            batch.add("SEARCH " + name(ThreadLocalRandom.current().nextInt(files)));
+                        }
+                        for (String answer : pool.pipeline(batch)) {
+                            if (!answer.startsWith("FOUND")) {
+                                misses.increment();
+                            }
+                        }
+                        completed.add(BATCH);
+                    }
+                }
+                return null;
+            }));
+        }
+        for (Future<?> worker : running) {
+            worker.get();
+        }
+        workers.shutdown();
+
+        System.out.printf("%d nodes, %d threads, %s: %.0f searches/s (%d not found)%n",
+                          nodes.length, threads, cluster != null ? "direct" : "routed",
+                          completed.sum() / (double) seconds, misses.sum());
+        if (cluster != null) {
+            cluster.close();
+        }
+    }
+
+    // Each batch is split by owner and pipelined to each owner in turn.
+    // Threads prefer different replicas so reads spread over all copies.
+    private static Void runDirect(IndexCluster ring, int replica, int files, long deadline,
+                                  LongAdder completed, LongAdder misses) throws IOException {
+        Map<String, IndexConnectionPool> pools = new HashMap<>();
+        try {
+            for (String node : ring.nodes()) {
+                pools.put(node, pool(node));
+            }
+            Map<String, List<String>> batches = new HashMap<>();
+            while (System.nanoTime() < deadline) {
+                batches.clear();
+                for (int i = 0; i < BATCH; i++) {
+                    String name = name(ThreadLocalRandom.current().nextInt(files));
+                    List<String> owners = ring.owners(name);
+                    String owner = owners.get(replica % owners.size());
+                    batches.computeIfAbsent(owner, k -> new ArrayList<>()).add("SEARCH " + name);
+                }
+                for (Map.Entry<String, List<String>> batch : batches.entrySet()) {
+                    for (String answer : pools.get(batch.getKey()).pipeline(batch.getValue())) {
+                        if (!answer.startsWith("FOUND")) {
+                            misses.increment();
+                        }
+                    }
+                }
+                completed.add(BATCH);
+            }
+        } finally {
+            for (IndexConnectionPool pool : pools.values()) {
+                pool.close();
+            }
+        }
+        return null;
+    }
+
+    private static String name(int i) {
+        return String.format("file%07d.dat", i);
+    }
+
+    private static IndexConnectionPool pool(String node) {
+        String[] address = node.split(":");
+        return new IndexConnectionPool(address[0], Integer.parseInt(address[1]), 1);
+    }
+}
@@ -1,5 +1,7 @@
 // Config.java
 import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 
 public class Config {
@@ -14,6 +16,28 @@ public class Config {
             props.setProperty("index.port", "9090");
             props.setProperty("download.dir", "downloads");
             props.setProperty("buffer.size", "4096");
+            props.setProperty("download.zerocopy", "true");
+            props.setProperty("download.chunk.size", "4194304");
+            props.setProperty("download.parallelism", "4");
+            props.setProperty("server.mode", "thread");
+            props.setProperty("index.idle.timeout.ms", "60000");
+            props.setProperty("client.protocol", "text");
+            props.setProperty("watch.coalesce.ms", "500");
+            props.setProperty("delta.batch.size", "1000");
+            props.setProperty("index.pool.size", "4");
+            props.setProperty("server.backlog", "1024");
+            props.setProperty("server.threads", "32");
+            props.setProperty("heartbeat.interval.ms", "5000");
+            props.setProperty("index.lease.ms", "15000");
+            props.setProperty("index.data.dir", "index-data");
+        }
+        
+        // -Ddfs.<name>=<value> overrides <name>, so one process can be
+        // configured without a config.properties, e.g. by the benchmarks
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith("dfs.")) {
+                props.setProperty(name.substring("dfs.".length()), System.getProperty(name));
+            }
         }
     }
     
@@ -25,11 +49,272 @@ public class Config {
         return Integer.parseInt(props.getProperty("index.port"));
     }
     
+    // How long an index session may sit idle before the server closes it
+    public static int getIndexIdleTimeout() {
+        return Integer.parseInt(props.getProperty("index.idle.timeout.ms", "60000"));
+    }
+    
+    // Idle persistent connections a client keeps open to the index server
+    public static int getIndexPoolSize() {
+        return Integer.parseInt(props.getProperty("index.pool.size", "4"));
+    }
+    
+    // FileClient wire format: text (default) or binary frames
+    public static boolean isBinaryProtocol() {
+        return "binary".equalsIgnoreCase(props.getProperty("client.protocol", "text"));
+    }
+    
     public static String getDownloadDir() {
-        return props.getProperty("download.dir");
+        return props.getProperty("download.dir", "downloads");
     }
     
     public static int getBufferSize() {
-        return Integer.parseInt(props.getProperty("buffer.size"));
+        return Integer.parseInt(props.getProperty("buffer.size", "4096"));
+    }
+    
+    public static int getDownloadChunkSize() {
+        return Integer.parseInt(props.getProperty("download.chunk.size", "4194304"));
+    }
+    
+    public static int getDownloadParallelism() {
+        return Integer.parseInt(props.getProperty("download.parallelism", "4"));
+    }
+    
+    // Department server connection model: thread, nio or virtual
+    public static String getServerMode() {
+        return props.getProperty("server.mode", "thread");
+    }
+    
+    public static int getServerBacklog() {
+        return Integer.parseInt(props.getProperty("server.backlog", "1024"));
+    }
+    
+    public static int getServerThreads() {
+        return Integer.parseInt(props.getProperty("server.threads", "32"));
+    }
+    
+    // Quiet period before a burst of directory changes is sent to the index
+    public static long getWatchCoalesceMillis() {
+        return Long.parseLong(props.getProperty("watch.coalesce.ms", "500"));
+    }
+    
+    // Maximum file names per ADD_FILES / REMOVE_FILES message
+    public static int getDeltaBatchSize() {
+        return Integer.parseInt(props.getProperty("delta.batch.size", "1000"));
+    }
+    
+    // How often a Department Server renews its lease and reports its load
+    public static long getHeartbeatIntervalMillis() {
+        return Long.parseLong(props.getProperty("heartbeat.interval.ms", "5000"));
+    }
+    
+    // Servers that miss heartbeats for this long are dropped from the index
+    public static long getLeaseMillis() {
+        return Long.parseLong(props.getProperty("index.lease.ms", "15000"));
+    }
+    
+    // Where the IndexServer keeps its write-ahead log and snapshots; empty disables persistence
+    public static String getIndexDataDir() {
+        return props.getProperty("index.data.dir", "index-data");
+    }
+    
+    // Interval between WAL fsyncs; changes in between share one fsync
+    public static long getWalSyncMillis() {
+        return Long.parseLong(props.getProperty("index.wal.sync.ms", "50"));
+    }
+    
+    // WAL size that triggers a compacting snapshot
+    public static long getSnapshotBytes() {
+        return Long.parseLong(props.getProperty("index.snapshot.bytes", "67108864"));
+    }
+    
+    // Index nodes (host:port, comma-separated) sharing the filename keyspace;
+    // empty runs a single stand-alone IndexServer
+    public static List<String> getClusterNodes() {
+        List<String> nodes = new ArrayList<>();
+        for (String node : props.getProperty("index.cluster.nodes", "").split(",")) {
+            if (!node.trim().isEmpty()) {
+                nodes.add(node.trim());
+            }
+        }
+        return nodes;
+    }
+    
+    // This node's entry in index.cluster.nodes; empty picks the one with our port
+    public static String getClusterSelf() {
+        return props.getProperty("index.cluster.self", "");
+    }
+    
+    // How many index nodes hold each filename
+    public static int getClusterReplication() {
+        return Integer.parseInt(props.getProperty("index.cluster.replication", "2"));
+    }
+    
+    // SEARCH results FileClient keeps, and for how long
+    public static int getLookupCacheEntries() {
+        return Integer.parseInt(props.getProperty("client.cache.entries", "1024"));
+    }
+    
+    public static long getLookupCacheTtlMillis() {
+        return Long.parseLong(props.getProperty("client.cache.ttl.ms", "30000"));
+    }
+    
+    // Size limit of the client's store of downloaded file contents
+    public static long getContentStoreMaxBytes() {
+        return Long.parseLong(props.getProperty("client.store.max.bytes", "1073741824"));
+    }
+    
+    // Downloads DfsClient runs at once, in total and from one Department Server
+    public static int getClientMaxDownloads() {
+        return Integer.parseInt(props.getProperty("client.max.downloads", "8"));
+    }
+    
+    public static int getClientMaxDownloadsPerServer() {
+        return Integer.parseInt(props.getProperty("client.max.downloads.per.server", "2"));
+    }
+    
+    // Memory for popular files on a Department Server, and the largest file kept
+    public static long getHotCacheBytes() {
+        return Long.parseLong(props.getProperty("server.cache.bytes", "67108864"));
+    }
+    
+    public static long getHotCacheMaxFileBytes() {
+        return Long.parseLong(props.getProperty("server.cache.max.file.bytes", "131072"));
+    }
+    
+    // Requests before a file is cached, so one-off downloads don't displace hot files
+    public static int getHotCacheAdmitAfter() {
+        return Integer.parseInt(props.getProperty("server.cache.admit.after", "2"));
+    }
+    
+    // Threads stat'ing files when a Department Server scans its directory;
+    // more than CPUs helps on network storage, where each call waits on the server
+    public static int getCatalogScanThreads() {
+        return Integer.parseInt(props.getProperty("server.catalog.threads", "16"));
+    }
+    
+    // Where Department Servers keep file hashes between runs
+    public static String getHashCacheDir() {
+        return props.getProperty("server.hash.cache.dir", "hash-cache");
+    }
+    
+    // How often new hashes are written to that cache; they are also written at shutdown
+    public static long getHashCacheSaveMillis() {
+        return Long.parseLong(props.getProperty("server.hash.cache.save.ms", "5000"));
+    }
+    
+    // Threads hashing files at registration
+    public static int getHashThreads() {
+        return Integer.parseInt(props.getProperty("server.hash.threads",
+            String.valueOf(Runtime.getRuntime().availableProcessors())));
+    }
+    
+    // Whether FileClient asks for compressed downloads
+    public static boolean isCompressionEnabled() {
+        return Boolean.parseBoolean(props.getProperty("client.compression", "true"));
+    }
+    
+    // Deflate level for compressed downloads, 1 (fastest) to 9 (smallest)
+    public static int getCompressionLevel() {
+        return Integer.parseInt(props.getProperty("server.compression.level", "1"));
+    }
+    
+    // Memory for compressed copies of popular files, and the largest file kept
+    public static long getCompressedCacheBytes() {
+        return Long.parseLong(props.getProperty("server.compressed.cache.bytes", "33554432"));
+    }
+    
+    public static long getCompressedCacheMaxFileBytes() {
+        return Long.parseLong(props.getProperty("server.compressed.cache.max.file.bytes", "4194304"));
+    }
+    
+    // Server log verbosity: ERROR, WARN, INFO or DEBUG
+    public static Log.Level getLogLevel() {
+        return Log.Level.valueOf(props.getProperty("log.level", "INFO").trim().toUpperCase());
+    }
+    
+    // Per-request log lines written per second at most; -1 for all of them
+    public static int getLogSamplePerSecond() {
+        return Integer.parseInt(props.getProperty("log.sample.per.sec", "100"));
+    }
+    
+    // Log events buffered for the writer thread before new ones are dropped
+    public static int getLogBufferSize() {
+        return Integer.parseInt(props.getProperty("log.buffer.size", "8192"));
+    }
+    
+    // Prometheus endpoint at the server's port plus this offset; 0 turns it off
+    public static int getMetricsPortOffset() {
+        return Integer.parseInt(props.getProperty("metrics.port.offset", "0"));
+    }
+    
+    // Address the metrics endpoint binds to; local only by default
+    public static String getMetricsHost() {
+        return props.getProperty("metrics.host", "127.0.0.1");
+    }
+    
+    // Most requested files reported by STATS and the metrics endpoint
+    public static int getMetricsTopFiles() {
+        return Integer.parseInt(props.getProperty("metrics.top.files", "10"));
+    }
+    
+    // Largest file a Department Server accepts through UPLOAD; 0 turns uploads off
+    public static long getUploadMaxBytes() {
+        return Long.parseLong(props.getProperty("server.upload.max.bytes", "1073741824"));
+    }
+    
+    // Connections a Department Server serves at once; more are answered BUSY
+    public static int getServerMaxConnections() {
+        return Integer.parseInt(props.getProperty("server.max.connections", "2048"));
+    }
+    
+    // Requests waiting for a worker in nio mode before new ones are answered BUSY
+    public static int getServerQueueSize() {
+        return Integer.parseInt(props.getProperty("server.queue.size", "256"));
+    }
+    
+    // Retry-after time in BUSY replies
+    public static long getBusyRetryMillis() {
+        return Long.parseLong(props.getProperty("busy.retry.ms", "1000"));
+    }
+    
+    // Requests per second one client address may send a Department Server,
+    // and how many it may send at once; 0 turns the limit off
+    public static double getClientRequestsPerSecond() {
+        return Double.parseDouble(props.getProperty("server.client.requests.per.sec", "0"));
+    }
+    
+    public static double getClientRequestBurst() {
+        return Double.parseDouble(props.getProperty("server.client.requests.burst", "50"));
+    }
+    
+    // Bytes per second sent to one client address, over all its downloads,
+    // and how far it may run ahead of that rate; 0 turns the limit off
+    public static double getClientBytesPerSecond() {
+        return Double.parseDouble(props.getProperty("server.client.bytes.per.sec", "0"));
+    }
+    
+    public static long getClientByteBurst() {
+        return Long.parseLong(props.getProperty("server.client.bytes.burst", "262144"));
+    }
+    
+    // Sessions the IndexServer holds open at once; more are answered BUSY
+    public static int getIndexMaxSessions() {
+        return Integer.parseInt(props.getProperty("index.max.sessions", "1024"));
+    }
+    
+    // Lookups per second one client address may send the IndexServer, and
+    // how many at once; 0 turns the limit off. Department servers and peers
+    // are never limited.
+    public static double getIndexClientRequestsPerSecond() {
+        return Double.parseDouble(props.getProperty("index.client.requests.per.sec", "0"));
+    }
+    
+    public static double getIndexClientRequestBurst() {
+        return Double.parseDouble(props.getProperty("index.client.requests.burst", "200"));
+    }
+    
+    public static boolean isZeroCopyEnabled() {
+        return Boolean.parseBoolean(props.getProperty("download.zerocopy", "true"));
     }
 }
\ No newline at end of file
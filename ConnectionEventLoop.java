@@ -0,0 +1,406 @@
+// ConnectionEventLoop.java
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Selector-based connection engine for DepartmentServer ("nio" mode).
+ *
+ * A single thread accepts connections and reads request lines without
+ * blocking, so thousands of idle or slow clients cost no threads.
+ * DOWNLOAD and DOWNLOAD_RANGE are streamed from the loop itself with
+ * non-blocking FileChannel.transferTo. Every other command is handed to the
+ * worker pool, where the channel is switched back to blocking mode and
+ * served by the regular FileHandler, so protocol semantics stay identical.
+ * That includes DOWNLOAD_IF_NONE_MATCH, which may have to hash the file
+ * first and would stall the loop, and the "+deflate" variants, whose
+ * compression is CPU work of its own. UPLOAD and DOWNLOAD_BATCH go to a
+ * separate executor, so long transfers can't occupy every worker.
+ *
+ * Connections over the server's limit, requests over a client's rate and
+ * handoffs that find the worker queue full are answered BUSY. A download
+ * that is over its client's bandwidth stops asking for OP_WRITE until its
+ * pause is over, so throttling costs no thread either.
+ */
+class ConnectionEventLoop implements Runnable {
+    private static final int MAX_REQUEST_LINE = 8192;
+    private static final long TRANSFER_CHUNK_SIZE = 1024 * 1024;
+
+    private final DepartmentServer server;
+    private final String serverName;
+    private final ServerSocketChannel serverChannel;
+    private final ExecutorService workers;
+    private final ExecutorService transfers;
+    private final List<Connection> handoffs = new ArrayList<>();
+    // Downloads paused by their client's bandwidth limit
+    private final List<SelectionKey> throttled = new ArrayList<>();
+    private final DepartmentServer.LoadStats load;
+    private final AdmissionControl admission;
+
+    ConnectionEventLoop(DepartmentServer server, ServerSocketChannel serverChannel, ExecutorService workers,
+                        ExecutorService transfers) {
+        this.server = server;
+        this.serverName = server.getServerName();
+        this.serverChannel = serverChannel;
+        this.workers = workers;
+        this.transfers = transfers;
+        this.load = server.getLoad();
+        this.admission = server.getAdmission();
+    }
+
+    @Override
+    public void run() {
+        try (Selector selector = Selector.open()) {
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+            while (true) {
+                long pause = resumeThrottled();
+                // Cancelled keys are only deregistered by the next select, so
+                // don't block while a handoff is waiting for that
+                if (!handoffs.isEmpty()) {
+                    selector.selectNow();
+                } else if (pause > 0) {
+                    selector.select(pause);
+                } else {
+                    selector.select();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    try {
+                        if (key.isAcceptable()) {
+                            accept(selector);
+                        } else if (key.isReadable()) {
+                            read(key);
+                        } else if (key.isWritable()) {
+                            write(key);
+                        }
+                    } catch (IOException e) {
+                        Connection conn = (Connection) key.attachment();
+                        Log.warn("%s: Error with client %s: %s",
+                                 serverName, conn != null ? conn.clientAddress : "?", e.getMessage());
+                        close(key);
+                    }
+                }
+                dispatchHandoffs();
+            }
+        } catch (IOException e) {
+            Log.error("%s event loop error: %s", serverName, e.getMessage());
+        }
+    }
+
+    private void accept(Selector selector) throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            if (!admission.tryEnter()) {
+                // Still in blocking mode, so the short reply goes out in one write
+                Log.request("%s: Busy, turning away %s", serverName, channel.socket().getInetAddress().getHostAddress());
+                AdmissionControl.turnAway(channel.socket(), admission.busy());
+                continue;
+            }
+            channel.configureBlocking(false);
+            Connection conn = new Connection(channel);
+            conn.admitted = true;
+            channel.register(selector, SelectionKey.OP_READ, conn);
+            Log.request("%s: New connection from %s", serverName, conn.clientAddress);
+        }
+    }
+
+    private void read(SelectionKey key) throws IOException {
+        Connection conn = (Connection) key.attachment();
+        SocketChannel channel = (SocketChannel) key.channel();
+
+        int bytesRead = channel.read(conn.in);
+        if (bytesRead == -1) {
+            Log.request("%s: Empty request from %s", serverName, conn.clientAddress);
+            close(key);
+            return;
+        }
+
+        int lineEnd = indexOf(conn.in, (byte) '\n');
+        if (lineEnd < 0) {
+            if (!conn.in.hasRemaining()) {
+                if (conn.in.capacity() >= MAX_REQUEST_LINE) {
+                    respondAndClose(key, conn, "ERROR Request too long");
+                    return;
+                }
+                ByteBuffer larger = ByteBuffer.allocate(MAX_REQUEST_LINE);
+                conn.in.flip();
+                larger.put(conn.in);
+                conn.in = larger;
+            }
+            return;
+        }
+
+        String request = decodeLine(conn.in, lineEnd);
+        Log.request("%s: Request from %s: %s", serverName, conn.clientAddress, request);
+        String busy = admission.admitRequest(conn.clientAddress);
+        if (busy != null) {
+            respondAndClose(key, conn, busy);
+            return;
+        }
+        String[] parts = request.split(" ", 2);
+        String command = parts[0];
+
+        if (command.equals("DOWNLOAD") || command.equals("DOWNLOAD_RANGE")) {
+            conn.requestStart = System.nanoTime();
+            conn.command = command;
+            conn.startedAt = conn.requestStart;
+            DepartmentServer.DownloadPlan plan = server.planDownload(command, parts.length > 1 ? parts[1] : null, workers);
+            conn.plan = plan;
+            // Idle connections are not counted, only ones being served
+            load.activeConnections.incrementAndGet();
+            conn.active = true;
+            conn.out = ByteBuffer.wrap((plan.header + "\n").getBytes(StandardCharsets.UTF_8));
+            if (plan.data != null) {
+                conn.data = new ByteBuffer[] { conn.out, plan.data };
+            } else if (plan.path != null) {
+                conn.file = FileChannel.open(plan.path, StandardOpenOption.READ);
+                conn.position = plan.offset;
+                conn.remaining = plan.count;
+            }
+            key.interestOps(SelectionKey.OP_WRITE);
+            write(key);
+        } else {
+            // Blocking handler on a worker once the selector lets go of the channel
+            conn.request = request;
+            conn.transfer = command.equals("UPLOAD") || command.equals("DOWNLOAD_BATCH");
+            conn.pending = new byte[conn.in.position() - lineEnd - 1];
+            conn.in.position(lineEnd + 1);
+            conn.in.get(conn.pending);
+            key.cancel();
+            handoffs.add(conn);
+        }
+    }
+
+    private void write(SelectionKey key) throws IOException {
+        Connection conn = (Connection) key.attachment();
+        SocketChannel channel = (SocketChannel) key.channel();
+
+        if (conn.data != null) {
+            // Cached file: header and body leave in one gathering write
+            ByteBuffer body = conn.data[1];
+            int before = body.remaining();
+            channel.write(conn.data);
+            int sent = before - body.remaining();
+            load.bytesSent.add(sent);
+            if (!conn.out.hasRemaining() && conn.requestStart != 0) {
+                load.recordLatency(System.nanoTime() - conn.requestStart);
+                conn.requestStart = 0;
+            }
+            if (body.hasRemaining()) {
+                pauseIfThrottled(key, conn, sent);
+                return;
+            }
+            admission.charge(conn.clientAddress, sent);
+            Log.request("%s: File sent successfully: %s", serverName, conn.plan.filename);
+            close(key);
+            return;
+        }
+
+        if (conn.out.hasRemaining()) {
+            channel.write(conn.out);
+            if (conn.out.hasRemaining()) {
+                return;
+            }
+            if (conn.plan != null && conn.requestStart != 0) {
+                load.recordLatency(System.nanoTime() - conn.requestStart);
+                conn.requestStart = 0;
+            }
+        }
+
+        while (conn.file != null && conn.remaining > 0) {
+            long chunk = admission.chunk(Math.min(conn.remaining, TRANSFER_CHUNK_SIZE));
+            long sent = conn.file.transferTo(conn.position, chunk, channel);
+            if (sent == 0) {
+                if (conn.position >= conn.file.size()) {
+                    throw new EOFException("File truncated at " + conn.position + " bytes");
+                }
+                // Socket buffer full; wait for the next OP_WRITE
+                return;
+            }
+            conn.position += sent;
+            conn.remaining -= sent;
+            load.bytesSent.add(sent);
+            conn.lastDecile = server.logProgress(conn.plan.filename, conn.plan.count - conn.remaining,
+                                                 conn.plan.count, conn.lastDecile);
+            if (conn.remaining > 0 && pauseIfThrottled(key, conn, sent)) {
+                return;
+            }
+        }
+
+        if (conn.file != null) {
+            Log.request("%s: File sent successfully: %s", serverName, conn.plan.filename);
+        }
+        close(key);
+    }
+
+    // Charges bytes sent to the client's bandwidth; if that puts it over
+    // the limit, the download sits out the pause with no interest set
+    private boolean pauseIfThrottled(SelectionKey key, Connection conn, long sent) {
+        long pause = admission.charge(conn.clientAddress, sent);
+        if (pause <= 0) {
+            return false;
+        }
+        conn.resumeAt = System.nanoTime() + pause;
+        key.interestOps(0);
+        throttled.add(key);
+        return true;
+    }
+
+    // Lets paused downloads write again once their time is up; returns the
+    // milliseconds until the next one is due, or 0 if none is waiting
+    private long resumeThrottled() {
+        long now = System.nanoTime();
+        long next = Long.MAX_VALUE;
+        Iterator<SelectionKey> it = throttled.iterator();
+        while (it.hasNext()) {
+            SelectionKey key = it.next();
+            Connection conn = (Connection) key.attachment();
+            if (!key.isValid()) {
+                it.remove();
+            } else if (conn.resumeAt <= now) {
+                it.remove();
+                key.interestOps(SelectionKey.OP_WRITE);
+            } else {
+                next = Math.min(next, conn.resumeAt);
+            }
+        }
+        return next == Long.MAX_VALUE ? 0 : Math.max(1, TimeUnit.NANOSECONDS.toMillis(next - now));
+    }
+
+    private void respondAndClose(SelectionKey key, Connection conn, String line) throws IOException {
+        conn.out = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+        key.interestOps(SelectionKey.OP_WRITE);
+        write(key);
+    }
+
+    private void dispatchHandoffs() {
+        Iterator<Connection> it = handoffs.iterator();
+        while (it.hasNext()) {
+            Connection conn = it.next();
+            if (conn.channel.isRegistered()) {
+                continue;
+            }
+            it.remove();
+            try {
+                conn.channel.configureBlocking(true);
+                (conn.transfer ? transfers : workers).execute(
+                    server.new FileHandler(conn.channel.socket(), conn.request, conn.pending));
+                // The handler gives the connection slot back when it is done
+                conn.admitted = false;
+            } catch (RejectedExecutionException e) {
+                Log.request("%s: Worker queue full, turning away %s", serverName, conn.clientAddress);
+                AdmissionControl.turnAway(conn.channel.socket(), admission.busy());
+                release(conn);
+            } catch (IOException | RuntimeException e) {
+                Log.warn("%s: Could not hand off %s: %s", serverName, conn.clientAddress, e.getMessage());
+                closeQuietly(conn);
+                release(conn);
+            }
+        }
+    }
+
+    private void close(SelectionKey key) {
+        key.cancel();
+        Connection conn = (Connection) key.attachment();
+        if (conn != null) {
+            if (conn.active) {
+                load.activeConnections.decrementAndGet();
+                conn.active = false;
+            }
+            if (conn.command != null) {
+                // Failed transfers count too, with the time until they failed
+                server.getMetrics().record(conn.command, System.nanoTime() - conn.startedAt);
+                conn.command = null;
+            }
+            closeQuietly(conn);
+            release(conn);
+            Log.request("%s: Connection closed: %s", serverName, conn.clientAddress);
+        }
+    }
+
+    private void release(Connection conn) {
+        if (conn.admitted) {
+            admission.leave();
+            conn.admitted = false;
+        }
+    }
+
+    private void closeQuietly(Connection conn) {
+        try {
+            if (conn.file != null) {
+                conn.file.close();
+            }
+            conn.channel.close();
+        } catch (IOException e) {
+            Log.warn("%s: Error closing socket: %s", serverName, e.getMessage());
+        }
+    }
+
+    private static int indexOf(ByteBuffer buffer, byte value) {
+        for (int i = 0; i < buffer.position(); i++) {
+            if (buffer.get(i) == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String decodeLine(ByteBuffer buffer, int lineEnd) {
+        int end = lineEnd > 0 && buffer.get(lineEnd - 1) == '\r' ? lineEnd - 1 : lineEnd;
+        byte[] line = new byte[end];
+        for (int i = 0; i < end; i++) {
+            line[i] = buffer.get(i);
+        }
+        return new String(line, StandardCharsets.UTF_8);
+    }
+
+    // Per-connection state owned by the selector thread
+    private static class Connection {
+        final SocketChannel channel;
+        final String clientAddress;
+        // Most request lines are short; grown to MAX_REQUEST_LINE on demand
+        ByteBuffer in = ByteBuffer.allocate(512);
+        ByteBuffer out;
+        DepartmentServer.DownloadPlan plan;
+        long requestStart;
+        // Download being streamed, and when its request arrived
+        String command;
+        long startedAt;
+        boolean active;
+        FileChannel file;
+        // Header and body of a file served from the hot-file cache
+        ByteBuffer[] data;
+        long position;
+        long remaining;
+        int lastDecile;
+        String request;
+        // Runs as long as a file transfer, on the transfers executor
+        boolean transfer;
+        byte[] pending;
+        // Holds one of the server's connection slots
+        boolean admitted;
+        // When a download paused by its bandwidth limit may continue
+        long resumeAt;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+            Socket socket = channel.socket();
+            this.clientAddress = socket.getInetAddress().getHostAddress();
+        }
+    }
+}
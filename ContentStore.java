@@ -0,0 +1,153 @@
+// ContentStore.java
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+
+/**
+ * Local content-addressed copies of downloaded files.
+ *
+ * Every completed download is copied to objects/<sha256>-<size>, and
+ * refs.properties records which object a remote filename had last time.
+ * A repeat download offers that hash with DOWNLOAD_IF_NONE_MATCH; when the
+ * server's file still has it, the server answers NOT_MODIFIED and the file
+ * is restored from here without transferring it again. Objects are shared
+ * by every name with the same content. Least recently used objects are
+ * deleted once the store grows past its size limit.
+ */
+public class ContentStore {
+    private final Path objects;
+    private final Path refsFile;
+    private final Properties refs = new Properties();
+    private final long maxBytes;
+
+    public ContentStore(Path root, long maxBytes) throws IOException {
+        this.objects = root.resolve("objects");
+        this.refsFile = root.resolve("refs.properties");
+        this.maxBytes = maxBytes;
+        Files.createDirectories(objects);
+        if (Files.exists(refsFile)) {
+            try (InputStream in = Files.newInputStream(refsFile)) {
+                refs.load(in);
+            }
+        }
+    }
+
+    /** The stored copy of a remote file from its last download, or null. */
+    public synchronized Entry lookup(String filename) {
+        String ref = refs.getProperty(filename);
+        if (ref == null) {
+            return null;
+        }
+        String[] fields = ref.split(" ");
+        Entry entry = new Entry(fields[0], Long.parseLong(fields[1]), objects.resolve(fields[0] + "-" + fields[1]));
+        try {
+            if (Files.size(entry.path) != entry.size) {
+                return null;
+            }
+        } catch (IOException e) {
+            // Evicted or removed by hand
+            return null;
+        }
+        return entry;
+    }
+
+    /** A stored object with this content, whatever name it was downloaded under, or null. */
+    public synchronized Entry find(String hash) {
+        try (DirectoryStream<Path> matches = Files.newDirectoryStream(objects, hash.toLowerCase() + "-*")) {
+            for (Path object : matches) {
+                String name = object.getFileName().toString();
+                if (name.endsWith(".tmp")) {
+                    continue;
+                }
+                long size = Long.parseLong(name.substring(name.indexOf('-') + 1));
+                if (Files.size(object) == size) {
+                    return new Entry(hash.toLowerCase(), size, object);
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // Treated as not stored
+        }
+        return null;
+    }
+
+    /** Hashes a downloaded file, stores a copy and records it for the remote name. */
+    public synchronized Entry add(String filename, Path file) throws IOException {
+        long size = Files.size(file);
+        String hash = FileHashes.compute(file);
+        Entry entry = new Entry(hash, size, objects.resolve(hash + "-" + size));
+        if (!Files.exists(entry.path)) {
+            Path temp = objects.resolve(entry.path.getFileName() + ".tmp");
+            Files.copy(file, temp, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(temp, entry.path, StandardCopyOption.ATOMIC_MOVE);
+        }
+        touch(entry.path);
+        refs.setProperty(filename, hash + " " + size);
+        saveRefs();
+        trim(entry.path);
+        return entry;
+    }
+
+    /** Copies a stored object to the target path, replacing it. */
+    public synchronized void restore(Entry entry, Path target) throws IOException {
+        Path temp = target.resolveSibling(target.getFileName() + ".part");
+        Files.copy(entry.path, temp, StandardCopyOption.REPLACE_EXISTING);
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        touch(entry.path);
+    }
+
+    private void saveRefs() throws IOException {
+        Path temp = refsFile.resolveSibling("refs.properties.tmp");
+        try (OutputStream out = Files.newOutputStream(temp)) {
+            refs.store(out, "Remote filename -> sha256 size");
+        }
+        Files.move(temp, refsFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Modification time doubles as the last-use time for eviction
+    private static void touch(Path object) throws IOException {
+        Files.setLastModifiedTime(object, FileTime.fromMillis(System.currentTimeMillis()));
+    }
+
+    // Deletes least recently used objects, except the one just added,
+    // until the store fits in maxBytes
+    private void trim(Path keep) throws IOException {
+        List<Path> all = new ArrayList<>();
+        long total = 0;
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(objects)) {
+            for (Path object : entries) {
+                all.add(object);
+                total += Files.size(object);
+            }
+        }
+        if (total <= maxBytes) {
+            return;
+        }
+        Map<Path, FileTime> lastUse = new HashMap<>();
+        for (Path object : all) {
+            lastUse.put(object, Files.getLastModifiedTime(object));
+        }
+        all.sort(Comparator.comparing(lastUse::get));
+        for (Path object : all) {
+            if (total <= maxBytes) {
+                break;
+            }
+            if (!object.equals(keep)) {
+                total -= Files.size(object);
+                Files.delete(object);
+            }
+        }
+    }
+
+    public static class Entry {
+        public final String hash;
+        public final long size;
+        final Path path;
+
+        Entry(String hash, long size, Path path) {
+            this.hash = hash;
+            this.size = size;
+            this.path = path;
+        }
+    }
+}
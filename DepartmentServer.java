@@ -1,120 +1,425 @@
 // DepartmentServer.java - COMPLETE CORRECTED VERSION
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 public class DepartmentServer {
+    // Upper bound per transferTo call so progress is still reported for large files
+    private static final long TRANSFER_CHUNK_SIZE = 8L * 1024 * 1024;
+    // Payload size of DATA frames in binary sessions
+    private static final int FRAME_DATA_SIZE = 1024 * 1024;
+    // Longest request line a connection may send
+    private static final int MAX_REQUEST_LINE = 8192;
+    // Socket buffer of a DOWNLOAD_BATCH, so the headers and bodies of small
+    // files leave in a few large writes
+    private static final int BATCH_BUFFER_SIZE = 64 * 1024;
+    // Where UPLOAD bodies are received before they are published; inside the
+    // shared directory so the final rename stays on one filesystem
+    private static final String UPLOAD_DIR = ".uploads";
+    
     private final String serverName;
     private final int port;
     private final String fileDirectory;
+    private final Path uploadDirectory;
     private final String indexServerHost;
     private final int indexServerPort;
+    private final String serverMode;
+    private final IndexConnectionPool indexConnection;
+    // Orders full registrations and deltas; every delta carries the next version
+    private final Object registrationLock = new Object();
+    private final AtomicLong registrationVersion = new AtomicLong();
+    // Last version the index confirmed; heartbeats carry it so an index
+    // that lost recent changes in a restart can ask for a resync
+    private final AtomicLong acknowledgedVersion = new AtomicLong();
+    // Reported to the index with every heartbeat
+    private final LoadStats load = new LoadStats();
+    // Worker pool in nio mode, whose queue depth is part of the load report
+    private volatile ThreadPoolExecutor workerPool;
+    // Content hashes, sent to the index and with downloads; kept across restarts
+    private final FileHashes hashes;
+    // Names, sizes and hashes of the shared files, for GET and LIST
+    private final DirectoryCatalog catalog;
+    // Popular files served from memory
+    private final HotFileCache hotFiles = new HotFileCache(Config.getHotCacheBytes(),
+        Config.getHotCacheMaxFileBytes(), Config.getHotCacheAdmitAfter());
+    // Compression for clients that accept it
+    private final DownloadCompressor compressor = new DownloadCompressor(Config.getCompressionLevel(),
+        Config.getCompressedCacheBytes(), Config.getCompressedCacheMaxFileBytes());
+    // Request latencies, traffic and the most downloaded files, for STATS
+    private final Metrics metrics = new Metrics("department", Config.getMetricsTopFiles());
+    // Connection limit and per-client request and bandwidth limits
+    private final AdmissionControl admission = AdmissionControl.forDepartmentServer();
     
     public DepartmentServer(String serverName, int port, String fileDirectory, 
                            String indexServerHost, int indexServerPort) {
+        this(serverName, port, fileDirectory, indexServerHost, indexServerPort, Config.getServerMode());
+    }
+    
+    public DepartmentServer(String serverName, int port, String fileDirectory, 
+                           String indexServerHost, int indexServerPort, String serverMode) {
         this.serverName = serverName;
         this.port = port;
         this.fileDirectory = fileDirectory;
+        this.uploadDirectory = Paths.get(fileDirectory, UPLOAD_DIR);
         this.indexServerHost = indexServerHost;
         this.indexServerPort = indexServerPort;
+        this.serverMode = serverMode;
+        this.indexConnection = new IndexConnectionPool(indexServerHost, indexServerPort, 1);
+        this.hashes = new FileHashes(Paths.get(Config.getHashCacheDir(), serverName + "-" + port + ".properties"));
+        this.catalog = new DirectoryCatalog(Paths.get(fileDirectory), hashes,
+                                            Config.getCatalogScanThreads(), Config.getHashThreads());
+        
+        metrics.counter("bytes_sent", "File bytes sent to clients.", load.bytesSent::sum);
+        metrics.counter("bytes_received", "File bytes received through UPLOAD.", load.bytesReceived::sum);
+        metrics.counter("hot_cache_hits", "Downloads served from the hot-file cache.", hotFiles::hits);
+        metrics.counter("hot_cache_misses", "Downloads read from disk.", hotFiles::misses);
+        metrics.counter("busy_rejections", "Connections and requests answered BUSY.", admission::rejected);
+        metrics.counter("throttled_ms", "Time downloads were held back by per-client bandwidth limits.",
+                        () -> TimeUnit.NANOSECONDS.toMillis(admission.throttledNanos()));
+        metrics.gauge("active_connections", "Connections being served.", load.activeConnections::get);
+        metrics.gauge("open_connections", "Open client connections, idle ones included.", admission::connections);
+        metrics.gauge("queue_depth", "Requests waiting for a worker in nio mode.", () -> {
+            ThreadPoolExecutor workers = workerPool;
+            return workers != null ? workers.getQueue().size() : 0;
+        });
+        metrics.gauge("files", "Files in the served directory.", catalog::size);
         
         // Create directory if it doesn't exist
         File dir = new File(fileDirectory);
         if (!dir.exists()) {
             dir.mkdirs();
-            System.out.println("Created directory: " + dir.getAbsolutePath());
+            Log.info("Created directory: %s", dir.getAbsolutePath());
+        }
+        prepareUploadDirectory();
+    }
+    
+    // Creates the upload directory before the watcher starts, and removes
+    // bodies left behind by uploads that were cut off by a restart
+    private void prepareUploadDirectory() {
+        try {
+            Files.createDirectories(uploadDirectory);
+            try (DirectoryStream<Path> leftovers = Files.newDirectoryStream(uploadDirectory, "*.tmp")) {
+                for (Path leftover : leftovers) {
+                    Files.deleteIfExists(leftover);
+                }
+            }
+        } catch (IOException e) {
+            Log.warn("%s: Uploads unavailable, cannot prepare %s: %s", serverName, uploadDirectory, e.getMessage());
         }
     }
     
     public void start() {
+        // New hashes reach the cache file in batches rather than on every change
+        hashes.saveEvery(Config.getHashCacheSaveMillis());
+        
         // Register with index server
         registerWithIndexServer();
         
+        // Keep the index current as files come and go
+        new DirectoryWatcher(Paths.get(fileDirectory), Config.getWatchCoalesceMillis(),
+                             new DirectoryWatcher.Listener() {
+            @Override
+            public void filesChanged(Set<String> added, Set<String> removed, Set<String> modified) {
+                for (String file : removed) {
+                    hashes.forget(Paths.get(fileDirectory, file));
+                    hotFiles.invalidate(Paths.get(fileDirectory, file));
+                }
+                // Modified files are added again with their new hash
+                Set<String> changed = new HashSet<>(added);
+                changed.addAll(modified);
+                // Uploads are published as soon as they are renamed into place
+                changed.removeIf(catalog::isCurrent);
+                if (!changed.isEmpty() || !removed.isEmpty()) {
+                    publishChanges(changed, removed);
+                }
+            }
+            
+            @Override
+            public void rescanNeeded() {
+                registerWithIndexServer();
+            }
+        }).start(serverName + "-watcher");
+        
+        startHeartbeat();
+        startMetricsEndpoint();
+        
         // Start file server
-        System.out.println(serverName + " starting on port " + port + "...");
+        Log.info("%s starting on port %s...", serverName, port);
         
         try {
             // Bind to all interfaces
             InetAddress bindAddr = InetAddress.getByName("0.0.0.0");
-            try (ServerSocket serverSocket = new ServerSocket(port, 50, bindAddr)) {
-                System.out.println(serverName + " bound to: " + bindAddr + " on port " + port);
-                System.out.println(serverName + " ready for connections...");
+            // Accept through a channel so each client socket has a SocketChannel
+            // that FileChannel.transferTo can write to directly
+            try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+                serverChannel.bind(new InetSocketAddress(bindAddr, port), Config.getServerBacklog());
+                Log.info("%s bound to: %s on port %s", serverName, bindAddr, port);
                 
-                while (true) {
-                    Socket clientSocket = serverSocket.accept();
-                    String clientAddress = clientSocket.getInetAddress().getHostAddress();
-                    System.out.println(serverName + ": New connection from " + clientAddress);
-                    new Thread(new FileHandler(clientSocket)).start();
+                switch (serverMode) {
+                    case "nio" -> runEventLoop(serverChannel);
+                    case "virtual" -> {
+                        ExecutorService executor = newVirtualThreadExecutor();
+                        if (executor != null) {
+                            acceptLoop(serverChannel, executor);
+                        } else {
+                            Log.info("%s: Virtual threads need Java 21+, using nio mode", serverName);
+                            runEventLoop(serverChannel);
+                        }
+                    }
+                    default -> acceptLoop(serverChannel, null);
                 }
             }
         } catch (IOException e) {
-            System.err.println(serverName + " error: " + e.getMessage());
+            Log.error("%s error: %s", serverName, e.getMessage());
         }
     }
     
+    // Blocking accept loop: one thread per connection when executor is null
+    // (the original model), otherwise one task per connection on the executor
+    private void acceptLoop(ServerSocketChannel serverChannel, ExecutorService executor) throws IOException {
+        Log.info("%s ready for connections (%s mode)...", serverName, serverMode);
+        
+        while (true) {
+            Socket clientSocket = serverChannel.accept().socket();
+            String clientAddress = clientSocket.getInetAddress().getHostAddress();
+            if (!admission.tryEnter()) {
+                // Refused here, before a thread is spent on it
+                Log.request("%s: Busy, turning away %s", serverName, clientAddress);
+                AdmissionControl.turnAway(clientSocket, admission.busy());
+                continue;
+            }
+            Log.request("%s: New connection from %s", serverName, clientAddress);
+            if (executor != null) {
+                executor.execute(new FileHandler(clientSocket));
+            } else {
+                new Thread(new FileHandler(clientSocket)).start();
+            }
+        }
+    }
+    
+    // Non-blocking mode: one selector thread owns every idle connection and
+    // streams downloads; short commands run on a small worker pool whose
+    // queue is bounded, so a flood of requests is answered BUSY instead
+    private void runEventLoop(ServerSocketChannel serverChannel) throws IOException {
+        int threads = Config.getServerThreads();
+        ThreadPoolExecutor workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(Math.max(1, Config.getServerQueueSize())));
+        workerPool = workers;
+        // Uploads and batches last as long as their transfer, so they get threads
+        // of their own rather than holding up the short commands on the workers
+        ExecutorService transfers = Executors.newCachedThreadPool();
+        Log.info("%s ready for connections (nio mode)...", serverName);
+        new ConnectionEventLoop(this, serverChannel, workers, transfers).run();
+    }
+    
+    // Executors.newVirtualThreadPerTaskExecutor() looked up reflectively so the
+    // code still compiles and runs on Java 17; returns null when unavailable
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class
+                .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+    
+    // Prometheus text at /metrics on port + metrics.port.offset, if configured
+    private void startMetricsEndpoint() {
+        int offset = Config.getMetricsPortOffset();
+        if (offset <= 0) {
+            return;
+        }
+        try {
+            metrics.serve(Config.getMetricsHost(), port + offset);
+            Log.info("%s: Metrics at http://%s:%s/metrics", serverName, Config.getMetricsHost(), port + offset);
+        } catch (IOException e) {
+            Log.warn("%s: Cannot serve metrics on port %s: %s", serverName, port + offset, e.getMessage());
+        }
+    }
+    
+    String getServerName() {
+        return serverName;
+    }
+    
+    Metrics getMetrics() {
+        return metrics;
+    }
+    
+    LoadStats getLoad() {
+        return load;
+    }
+    
+    AdmissionControl getAdmission() {
+        return admission;
+    }
+    
+    // Renews the lease every heartbeat.interval.ms. An index that restarted
+    // or evicted us answers UNKNOWN_SERVER, and we register again.
+    private void startHeartbeat() {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, serverName + "-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = Config.getHeartbeatIntervalMillis();
+        scheduler.scheduleWithFixedDelay(this::sendHeartbeat, interval, interval, TimeUnit.MILLISECONDS);
+    }
+    
+    private void sendHeartbeat() {
+        ThreadPoolExecutor workers = workerPool;
+        int queueDepth = workers != null ? workers.getQueue().size() : 0;
+        String heartbeat = "HEARTBEAT " + serverName + "|" + load.sample(queueDepth) + 
+                           "|" + acknowledgedVersion.get();
+        try {
+            String response = indexConnection.request(heartbeat);
+            if (response.startsWith("UNKNOWN_SERVER")) {
+                Log.info("%s: Lease lost, registering again", serverName);
+                registerWithIndexServer();
+            } else if (response.startsWith("RESYNC")) {
+                Log.info("%s: Index is behind (%s), registering again", serverName, response);
+                registerWithIndexServer();
+            } else if (!response.startsWith("LEASE")) {
+                Log.warn("%s: Unexpected heartbeat response: %s", serverName, response);
+            }
+        } catch (IOException e) {
+            Log.warn("%s: Heartbeat failed: %s", serverName, e.getMessage());
+        } catch (RuntimeException e) {
+            // Never let an exception cancel the scheduled heartbeat
+            Log.error("%s: Heartbeat error: %s", serverName, e.getMessage());
+        }
+    }
+    
+    // Updates the catalog, then sends ADD_FILES / REMOVE_FILES deltas in batches,
+    // each with the next version number. If the index lost track of us, a full
+    // REGISTER follows.
+    private void publishChanges(Set<String> added, Set<String> removed) {
+        synchronized (registrationLock) {
+            catalog.remove(removed);
+            try {
+                if (sendDeltas("ADD_FILES", withHashes(added)) && sendDeltas("REMOVE_FILES", removed)) {
+                    return;
+                }
+            } catch (IOException e) {
+                Log.warn("%s: Could not send file changes: %s", serverName, e.getMessage());
+                // The version gap makes the index ask for a resync next time
+                return;
+            }
+            Log.info("%s: Index requested a full resync", serverName);
+            registerWithIndexServer();
+        }
+    }
+    
+    // Re-reads changed files into the catalog and returns their entries
+    // (NAME/SHA256); files that are gone again are left out
+    private List<String> withHashes(Collection<String> names) {
+        long started = System.currentTimeMillis();
+        List<String> entries = formatEntries(catalog.refresh(names));
+        Log.info("%s: Hashed %s files in %s ms",
+                 serverName, entries.size(), System.currentTimeMillis() - started);
+        return entries;
+    }
+    
+    private List<String> formatEntries(Collection<DirectoryCatalog.Entry> files) {
+        List<String> entries = new ArrayList<>(files.size());
+        for (DirectoryCatalog.Entry file : files) {
+            entries.add(FileEntry.format(file.name, file.hash));
+        }
+        return entries;
+    }
+    
+    private boolean sendDeltas(String command, Collection<String> names) throws IOException {
+        List<String> batch = new ArrayList<>();
+        Iterator<String> it = names.iterator();
+        while (it.hasNext()) {
+            batch.add(it.next());
+            if (batch.size() == Config.getDeltaBatchSize() || !it.hasNext()) {
+                long version = registrationVersion.incrementAndGet();
+                String response = indexConnection.request(
+                    command + " " + serverName + "|" + version + "|" + String.join(",", batch));
+                Log.info("%s: %s %s files (version %s): %s",
+                         serverName, command, batch.size(), version, response);
+                if (response.startsWith("UNKNOWN_SERVER") || response.startsWith("RESYNC")) {
+                    return false;
+                }
+                if (response.startsWith("BUSY")) {
+                    // Still full after the pool's retries; this version was not applied
+                    throw new IOException("Index server busy");
+                }
+                acknowledgedVersion.set(version);
+                batch.clear();
+            }
+        }
+        return true;
+    }
+    
     private void registerWithIndexServer() {
-        System.out.println(serverName + ": Registering with Index Server at " + 
-                          indexServerHost + ":" + indexServerPort);
+        synchronized (registrationLock) {
+            registerSnapshot();
+        }
+    }
+    
+    private void registerSnapshot() {
+        Log.info("%s: Registering with Index Server at %s:%s", serverName, indexServerHost, indexServerPort);
         
         try {
             // Get local IP address (not localhost)
             String localIP = getLocalIP();
-            System.out.println(serverName + ": Detected local IP as: " + localIP);
+            Log.info("%s: Detected local IP as: %s", serverName, localIP);
             
-            // Get list of files in directory
-            File dir = new File(fileDirectory);
-            File[] files = dir.listFiles();
-            StringBuilder fileList = new StringBuilder();
+            // Rebuild the catalog from a full scan of the directory
+            long started = System.currentTimeMillis();
+            List<DirectoryCatalog.Entry> files = catalog.rescan();
             
-            if (files != null && files.length > 0) {
-                System.out.println(serverName + ": Found " + files.length + " files");
-                for (File file : files) {
-                    if (file.isFile()) {
-                        fileList.append(file.getName()).append(",");
-                        System.out.println("  - " + file.getName());
-                    }
+            if (!files.isEmpty()) {
+                Log.info("%s: Found %s files in %s ms",
+                         serverName, files.size(), System.currentTimeMillis() - started);
+                for (DirectoryCatalog.Entry file : files) {
+                    Log.debug("  - %s", file.name);
                 }
             } else {
-                System.out.println(serverName + ": No files found in directory: " + fileDirectory);
+                Log.info("%s: No files found in directory: %s", serverName, fileDirectory);
             }
             
-            // Connect to index server
-            try (Socket socket = new Socket(indexServerHost, indexServerPort);
-                 PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-                 BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
-                
-                // Build registration message
-                String filesStr = fileList.length() > 0 ? 
-                    fileList.substring(0, fileList.length() - 1) : "";
-                
-                String registration = String.format("REGISTER %s|%s|%d|%s",
-                    serverName, 
-                    localIP,
-                    port,
-                    filesStr);
-                
-                System.out.println(serverName + ": Sending registration: " + registration);
-                out.println(registration);
-                
-                // Wait for response
-                String response = in.readLine();
-                System.out.println(serverName + ": Registration response: " + response);
-                
-                if (response != null && response.startsWith("REGISTERED")) {
-                    System.out.println(serverName + ": Registration successful!");
-                } else {
-                    System.err.println(serverName + ": Registration failed!");
-                }
+            // Build registration message
+            String filesStr = String.join(",", formatEntries(files));
+            
+            long version = registrationVersion.get();
+            String registration = String.format("REGISTER %s|%s|%d|%s|%d",
+                serverName, 
+                localIP,
+                port,
+                filesStr,
+                version);
+            
+            Log.debug("%s: Sending registration: %s", serverName, registration);
+            
+            // Sent over the persistent index connection, which later updates reuse
+            String response = indexConnection.request(registration);
+            Log.info("%s: Registration response: %s", serverName, response);
+            
+            if (response != null && response.startsWith("REGISTERED")) {
+                acknowledgedVersion.set(version);
+                Log.info("%s: Registration successful!", serverName);
+            } else {
+                Log.error("%s: Registration failed!", serverName);
             }
         } catch (ConnectException e) {
-            System.err.println(serverName + ": Cannot connect to Index Server at " + 
-                             indexServerHost + ":" + indexServerPort);
-            System.err.println("Make sure IndexServer is running first!");
+            Log.error("%s: Cannot connect to Index Server at %s:%s",
+                      serverName, indexServerHost, indexServerPort);
+            Log.error("Make sure IndexServer is running first!");
         } catch (IOException e) {
-            System.err.println(serverName + ": Registration error: " + e.getMessage());
+            Log.error("%s: Registration error: %s", serverName, e.getMessage());
         } catch (Exception e) {
-            System.err.println(serverName + ": Registration error: " + e.getMessage());
+            Log.error("%s: Registration error: %s", serverName, e.getMessage());
         }
     }
     
@@ -138,7 +443,7 @@ public class DepartmentServer {
                 }
             }
         } catch (SocketException e) {
-            System.err.println(serverName + ": Error getting network interfaces: " + e.getMessage());
+            Log.error("%s: Error getting network interfaces: %s", serverName, e.getMessage());
             throw e;
         }
         
@@ -150,31 +455,218 @@ public class DepartmentServer {
         }
     }
     
+    // Resolves a DOWNLOAD, DOWNLOAD_RANGE or DOWNLOAD_IF_NONE_MATCH request
+    // into what to send. Whole-file downloads answer "SIZE <bytes>", ranges answer
+    // "RANGE <offset> <length> <fileSize>" so the client learns the full size too.
+    // Shared by FileHandler and the event loop so both modes answer identically.
+    // With a cacheLoader, files are read into the hot-file cache there instead
+    // of on the calling thread, which may be the selector.
+    DownloadPlan planDownload(String command, String args) {
+        return planDownload(command, args, null);
+    }
+    
+    DownloadPlan planDownload(String command, String args, Executor cacheLoader) {
+        if (args == null) {
+            return DownloadPlan.error(null, "ERROR Missing filename");
+        }
+        
+        if (command.equals("DOWNLOAD_IF_NONE_MATCH")) {
+            // Format: DOWNLOAD_IF_NONE_MATCH <sha256> <filename>
+            String[] conditional = args.split(" ", 2);
+            if (conditional.length != 2) {
+                return DownloadPlan.error(null, "ERROR Usage: DOWNLOAD_IF_NONE_MATCH <sha256> <filename>");
+            }
+            Log.request("%s: Conditional download requested for: %s", serverName, conditional[1]);
+            return planConditionalDownload(conditional[1], conditional[0]);
+        }
+        
+        String filename = args;
+        long offset = 0;
+        long length = -1;
+        boolean ranged = command.equals("DOWNLOAD_RANGE");
+        if (ranged) {
+            // Format: DOWNLOAD_RANGE <offset> <length> <filename>
+            String[] range = args.split(" ", 3);
+            if (range.length != 3) {
+                return DownloadPlan.error(null, "ERROR Usage: DOWNLOAD_RANGE <offset> <length> <filename>");
+            }
+            try {
+                offset = Long.parseLong(range[0]);
+                length = Long.parseLong(range[1]);
+            } catch (NumberFormatException e) {
+                return DownloadPlan.error(null, "ERROR Invalid range: " + range[0] + " " + range[1]);
+            }
+            filename = range[2];
+            Log.request("%s: Range requested for: %s [%s, +%s]", serverName, filename, offset, length);
+        } else {
+            Log.request("%s: Download requested for: %s", serverName, filename);
+        }
+        return planDownload(filename, offset, length, ranged, cacheLoader);
+    }
+    
+    DownloadPlan planDownload(String filename, long offset, long length, boolean ranged) {
+        return planDownload(filename, offset, length, ranged, null);
+    }
+    
+    DownloadPlan planDownload(String filename, long offset, long length, boolean ranged, Executor cacheLoader) {
+        // Other names could reach outside the shared directory
+        Path filePath = isPlainName(filename) ? Paths.get(fileDirectory, filename) : null;
+        // One stat call answers existence, size and, for the cache, freshness
+        BasicFileAttributes attributes = filePath != null ? regularFileAttributes(filePath) : null;
+        if (attributes == null) {
+            Log.request("%s: File not found for download: %s", serverName, filename);
+            return DownloadPlan.error(filename, "ERROR_FILE_NOT_FOUND");
+        }
+        
+        long fileSize = attributes.size();
+        if (offset < 0 || offset > fileSize) {
+            return DownloadPlan.error(filename, "ERROR Invalid range: offset " + offset + 
+                                      " outside file of " + fileSize + " bytes");
+        }
+        long count = length < 0 ? fileSize - offset : Math.min(length, fileSize - offset);
+        Log.request("%s: Sending file: %s (%s of %s bytes)", serverName, filename, count, fileSize);
+        if (offset == 0) {
+            // Resumes and the later chunks of a parallel download are
+            // part of a download already counted
+            metrics.recordFile(filename);
+        }
+        
+        // The whole file's hash, when known, lets the client verify what
+        // it received; hashing here would stall the event loop
+        String hash = hashes.peek(filePath, attributes);
+        String header = (ranged ? "RANGE " + offset + " " + count + " " + fileSize
+                                : "SIZE " + fileSize) + (hash != null ? " " + hash : "");
+        ByteBuffer data = cacheLoader != null ? hotFiles.lookup(filePath, attributes, cacheLoader)
+                                              : hotFiles.get(filePath, attributes);
+        if (data != null) {
+            data.position((int) offset).limit((int) (offset + count));
+        }
+        return new DownloadPlan(filename, filePath, offset, count, fileSize, header, data, hash);
+    }
+    
+    // Attributes of a regular file, or null if there is none at the path
+    static BasicFileAttributes regularFileAttributes(Path path) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            return attributes.isRegularFile() ? attributes : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+    
+    HotFileCache getHotFiles() {
+        return hotFiles;
+    }
+    
+    // Answers "NOT_MODIFIED <size> <sha256>" without a body when the client
+    // already holds this content, otherwise sends the whole file
+    DownloadPlan planConditionalDownload(String filename, String knownHash) {
+        Path filePath = isPlainName(filename) ? Paths.get(fileDirectory, filename) : null;
+        if (filePath != null && Files.isRegularFile(filePath)) {
+            try {
+                long fileSize = Files.size(filePath);
+                String hash = hashes.sha256(filePath);
+                if (hash.equalsIgnoreCase(knownHash)) {
+                    Log.request("%s: Not modified, skipping transfer: %s", serverName, filename);
+                    metrics.recordFile(filename);
+                    return new DownloadPlan(filename, null, 0, 0, fileSize, "NOT_MODIFIED " + fileSize + " " + hash,
+                                            null, hash);
+                }
+            } catch (IOException e) {
+                return DownloadPlan.error(filename, "ERROR Download failed: " + e.getMessage());
+            }
+        }
+        return planDownload(filename, 0, -1, false);
+    }
+    
+    // For a client that accepts compression: whole files worth compressing
+    // are answered "DEFLATE <fileSize>" and a zlib stream instead.
+    // Ranges, errors and NOT_MODIFIED answers stay as they are.
+    DownloadPlan negotiateEncoding(DownloadPlan plan) {
+        if (plan.path == null || plan.offset != 0 || plan.count != plan.fileSize
+                || !compressor.shouldCompress(plan.path)) {
+            return plan;
+        }
+        return plan.deflated();
+    }
+    
+    // Show progress for large files, once per 10% step
+    int logProgress(String filename, long totalSent, long fileSize, int lastDecile) {
+        if (fileSize <= 100000 || !Log.enabled(Log.Level.DEBUG)) { // For files > 100KB
+            return lastDecile;
+        }
+        int decile = (int) ((totalSent * 10) / fileSize);
+        if (decile > lastDecile) {
+            Log.debug("%s: Sending %s: %s%%", serverName, filename, decile * 10);
+        }
+        return Math.max(decile, lastDecile);
+    }
+    
+    // A name UPLOAD may create and downloads serve: one path component that
+    // the index protocol can carry (no ',', '|' or '/'), and not hidden like
+    // the upload directory
+    static boolean isPlainName(String name) {
+        if (name.isEmpty() || name.startsWith(".")) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c == '/' || c == '\\' || c == ',' || c == '|' || c < ' ') {
+                return false;
+            }
+        }
+        return true;
+    }
+    
     class FileHandler implements Runnable {
         private final Socket socket;
+        private final String clientAddress;
+        private String pendingRequest;
+        // Bytes that arrived after the request line, e.g. the start of an upload
+        private byte[] pendingBytes;
         
         public FileHandler(Socket socket) {
+            this(socket, null, null);
+        }
+        
+        // Used by the event loop, which has already read the request line and
+        // possibly some bytes after it
+        public FileHandler(Socket socket, String pendingRequest, byte[] pendingBytes) {
             this.socket = socket;
+            this.clientAddress = socket.getInetAddress().getHostAddress();
+            this.pendingRequest = pendingRequest;
+            this.pendingBytes = pendingBytes;
         }
         
         @Override
         public void run() {
-            String clientAddress = socket.getInetAddress().getHostAddress();
+            load.activeConnections.incrementAndGet();
             
-            try (
-                BufferedReader in = new BufferedReader(
-                    new InputStreamReader(socket.getInputStream()));
-                PrintWriter out = new PrintWriter(socket.getOutputStream(), true)
-            ) {
-                String request = in.readLine();
+            try (PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
+                String request = pendingRequest != null ? pendingRequest : readRequestLine();
+                long requestStart = System.nanoTime();
                 if (request == null) {
-                    System.out.println(serverName + ": Empty request from " + clientAddress);
+                    Log.request("%s: Empty request from %s", serverName, clientAddress);
                     return;
                 }
                 
-                System.out.println(serverName + ": Request from " + clientAddress + ": " + request);
+                Log.request("%s: Request from %s: %s", serverName, clientAddress, request);
+                // The event loop has charged the requests it hands over
+                String busy = pendingRequest == null ? admission.admitRequest(clientAddress) : null;
+                if (busy != null) {
+                    out.println(busy);
+                    return;
+                }
                 String[] parts = request.split(" ", 2);
                 String command = parts[0];
+                // "DOWNLOAD+deflate" and friends: the client accepts a compressed body
+                boolean acceptsDeflate = command.endsWith("+deflate");
+                if (acceptsDeflate) {
+                    command = command.substring(0, command.length() - "+deflate".length());
+                }
+                // Name the request is recorded under; unknown commands share
+                // one, so clients can't create histograms at will
+                String recorded = command;
                 
                 switch (command) {
                     case "GET" -> {
@@ -184,142 +676,817 @@ public class DepartmentServer {
                             out.println("ERROR Missing filename");
                         }
                     }
-                    case "LIST" -> handleListFiles(out);
-                    case "DOWNLOAD" -> {
+                    case "LIST" -> {
                         if (parts.length > 1) {
-                            handleDownloadFile(parts[1], socket.getOutputStream());
+                            handleListPage(parts[1], out);
                         } else {
-                            out.println("ERROR Missing filename");
+                            handleListFiles();
                         }
                     }
+                    case "LIST_STREAM" -> handleListStream();
+                    case "DOWNLOAD", "DOWNLOAD_RANGE", "DOWNLOAD_IF_NONE_MATCH" -> {
+                        DownloadPlan plan = planDownload(command, parts.length > 1 ? parts[1] : null);
+                        sendFile(acceptsDeflate ? negotiateEncoding(plan) : plan, socket, requestStart);
+                    }
+                    case "UPLOAD" -> handleUpload(parts.length > 1 ? parts[1] : null, out);
+                    case "DOWNLOAD_BATCH" -> handleBatch(parts.length > 1 ? parts[1] : null, out);
                     case "TEST" -> out.println("ALIVE " + serverName + " is running on port " + port);
+                    case "CACHE_STATS" -> out.println("CACHE_STATS " + hotFiles.stats());
+                    case "COMPRESSION_STATS" -> out.println("COMPRESSION_STATS " + compressor.stats());
+                    case "STATS" -> out.println("STATS " + metrics.statsLine());
+                    case "BINARY" -> {
+                        // The client waits for this reply before sending frames
+                        String answer = FrameCodec.acceptVersion(parts.length > 1 ? parts[1] : "");
+                        out.println(answer);
+                        // Each frame is recorded instead of the whole session
+                        recorded = null;
+                        if (answer.startsWith("BINARY_OK")) {
+                            runBinarySession();
+                        }
+                    }
                     default -> {
                         out.println("ERROR Unknown command: " + command);
-                        System.out.println(serverName + ": Unknown command from " + 
-                                          clientAddress + ": " + command);
+                        Log.request("%s: Unknown command from %s: %s", serverName, clientAddress, command);
+                        recorded = "UNKNOWN";
                     }
                 }
+                if (recorded != null) {
+                    metrics.record(recorded, System.nanoTime() - requestStart);
+                }
             } catch (IOException e) {
-                System.err.println(serverName + ": Error with client " + clientAddress + ": " + e.getMessage());
+                Log.warn("%s: Error with client %s: %s", serverName, clientAddress, e.getMessage());
             } finally {
+                load.activeConnections.decrementAndGet();
+                admission.leave();
                 try { 
                     socket.close(); 
-                    System.out.println(serverName + ": Connection closed: " + clientAddress);
+                    Log.request("%s: Connection closed: %s", serverName, clientAddress);
                 } catch (IOException e) {
-                    System.err.println(serverName + ": Error closing socket: " + e.getMessage());
+                    Log.warn("%s: Error closing socket: %s", serverName, e.getMessage());
                 }
             }
         }
         
-        private void handleGetFile(String filename, PrintWriter out) {
-            Path filePath = Paths.get(fileDirectory, filename);
-            System.out.println(serverName + ": Checking file: " + filePath);
+        // Frame-based session: any number of requests until QUIT or end of stream
+        private void runBinarySession() throws IOException {
+            InputStream frameIn = new BufferedInputStream(socket.getInputStream());
+            OutputStream frameOut = new BufferedOutputStream(socket.getOutputStream());
+            FrameCodec.Decoder decoder = new FrameCodec.Decoder(4096, FrameCodec.MAX_REQUEST_SIZE);
+            FrameCodec.Encoder encoder = new FrameCodec.Encoder();
             
-            if (Files.exists(filePath)) {
+            while (FrameCodec.readRequest(decoder, frameIn, encoder, frameOut)) {
+                int id = decoder.requestId();
+                long requestStart = System.nanoTime();
+                byte opcode = decoder.opcode();
+                String busy = opcode != FrameCodec.OP_QUIT ? admission.admitRequest(clientAddress) : null;
+                if (busy != null) {
+                    encoder.begin(FrameCodec.OP_ERROR, id).putString(busy).writeTo(frameOut);
+                    frameOut.flush();
+                    continue;
+                }
+                // A malformed payload or an oversized reply fails this
+                // request only; frames are length-prefixed, so the next one
+                // still starts where expected
+                boolean streaming = false;
                 try {
-                    long fileSize = Files.size(filePath);
-                    out.println("FILE_EXISTS " + fileSize);
-                    System.out.println(serverName + ": File found: " + filename + " (" + fileSize + " bytes)");
-                } catch (IOException e) {
-                    out.println("ERROR Cannot read file: " + e.getMessage());
+                    switch (opcode) {
+                        case FrameCodec.OP_GET -> {
+                            DirectoryCatalog.Entry file = catalog.get(decoder.getString());
+                            if (file != null) {
+                                encoder.begin(FrameCodec.OP_FILE_INFO, id).putLong(file.size);
+                                if (file.hash != null) {
+                                    encoder.putString(file.hash);
+                                }
+                            } else {
+                                encoder.begin(FrameCodec.OP_FILE_NOT_FOUND, id);
+                            }
+                        }
+                        case FrameCodec.OP_LIST -> {
+                            if (decoder.remaining() > 0) {
+                                int pageSize = Listing.clampPageSize(decoder.getShort());
+                                List<String> page = catalog.page(Listing.decodeCursor(decoder.getString()), pageSize);
+                                boolean more = page.size() > pageSize;
+                                if (more) {
+                                    page.remove(pageSize);
+                                }
+                                encoder.begin(FrameCodec.OP_PAGE, id)
+                                       .putString(more ? Listing.encodeCursor(page.get(page.size() - 1)) : "")
+                                       .putInt(page.size());
+                                for (String name : page) {
+                                    encoder.putString(name);
+                                }
+                                break;
+                            }
+                            // Counted from the same snapshot that is encoded
+                            List<String> names = new ArrayList<>();
+                            for (DirectoryCatalog.Entry file : catalog.entries()) {
+                                names.add(file.name);
+                            }
+                            if (names.isEmpty()) {
+                                encoder.begin(FrameCodec.OP_NO_FILES, id);
+                            } else {
+                                encoder.begin(FrameCodec.OP_FILES, id).putInt(names.size());
+                                for (String name : names) {
+                                    encoder.putString(name);
+                                }
+                            }
+                        }
+                        case FrameCodec.OP_DOWNLOAD -> {
+                            long offset = decoder.getLong();
+                            long length = decoder.getLong();
+                            String filename = decoder.getString();
+                            String knownHash = decoder.remaining() > 0 ? decoder.getString() : "";
+                            int encodings = decoder.remaining() > 0 ? decoder.getByte() : 0;
+                            DownloadPlan plan;
+                            if (!knownHash.isEmpty()) {
+                                Log.request("%s: Conditional download requested for: %s", serverName, filename);
+                                plan = planConditionalDownload(filename, knownHash);
+                            } else {
+                                Log.request("%s: Download requested for: %s", serverName, filename);
+                                plan = planDownload(filename, offset, length, true);
+                            }
+                            if ((encodings & FrameCodec.ENCODING_DEFLATE) != 0) {
+                                plan = negotiateEncoding(plan);
+                            }
+                            // Frames of the reply may be out before a failure, so
+                            // from here on the session can't continue after one
+                            streaming = true;
+                            sendFramedFile(plan, id, encoder, frameOut, requestStart);
+                            metrics.record("DOWNLOAD", System.nanoTime() - requestStart);
+                            continue;
+                        }
+                        case FrameCodec.OP_TEST -> encoder.begin(FrameCodec.OP_ALIVE, id)
+                                                          .putString(serverName + " is running on port " + port);
+                        case FrameCodec.OP_PING -> encoder.begin(FrameCodec.OP_PONG, id);
+                        case FrameCodec.OP_QUIT -> {
+                            frameOut.flush();
+                            return;
+                        }
+                        default -> encoder.begin(FrameCodec.OP_ERROR, id)
+                                          .putString("Unknown opcode: " + decoder.opcode());
+                    }
+                } catch (RuntimeException e) {
+                    if (streaming) {
+                        Log.warn("%s: Binary download failed mid-transfer: %s", serverName, e);
+                        return;
+                    }
+                    String reason = e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+                    encoder.begin(FrameCodec.OP_ERROR, id).putString("Bad request: " + reason);
                 }
-            } else {
-                out.println("FILE_NOT_FOUND");
-                System.out.println(serverName + ": File not found: " + filename);
+                encoder.writeTo(frameOut);
+                frameOut.flush();
+                metrics.record(frameName(opcode), System.nanoTime() - requestStart);
             }
         }
         
-        private void handleListFiles(PrintWriter out) {
-            File dir = new File(fileDirectory);
-            File[] files = dir.listFiles();
-            
-            if (files == null || files.length == 0) {
-                out.println("NO_FILES");
-                System.out.println(serverName + ": No files available");
+        // Binary requests are recorded under their text command's name
+        private String frameName(byte opcode) {
+            return switch (opcode) {
+                case FrameCodec.OP_GET -> "GET";
+                case FrameCodec.OP_LIST -> "LIST";
+                case FrameCodec.OP_TEST -> "TEST";
+                case FrameCodec.OP_PING -> "PING";
+                default -> "UNKNOWN";
+            };
+        }
+        
+        // FILE_HEADER, DATA frames of at most FRAME_DATA_SIZE bytes, then END.
+        // DATA payloads go out through transferTo when zero-copy is available.
+        private void sendFramedFile(DownloadPlan plan, int id, FrameCodec.Encoder encoder,
+                                    OutputStream frameOut, long requestStart) throws IOException {
+            if (plan.path == null) {
+                if (plan.header.equals("ERROR_FILE_NOT_FOUND")) {
+                    encoder.begin(FrameCodec.OP_FILE_NOT_FOUND, id);
+                } else if (plan.header.startsWith("NOT_MODIFIED ")) {
+                    encoder.begin(FrameCodec.OP_NOT_MODIFIED, id)
+                           .putLong(plan.fileSize).putString(plan.header.split(" ")[2]);
+                } else {
+                    encoder.begin(FrameCodec.OP_ERROR, id).putString(plan.header.substring(6));
+                }
+                encoder.writeTo(frameOut);
+                frameOut.flush();
                 return;
             }
             
-            StringBuilder response = new StringBuilder("FILES ");
-            System.out.println(serverName + ": Listing " + files.length + " files");
+            encoder.begin(FrameCodec.OP_FILE_HEADER, id)
+                   .putLong(plan.offset).putLong(plan.count).putLong(plan.fileSize);
+            if (plan.deflate || plan.hash != null) {
+                encoder.putByte(plan.deflate ? FrameCodec.ENCODING_DEFLATE : 0);
+            }
+            if (plan.hash != null) {
+                encoder.putString(plan.hash);
+            }
+            encoder.writeTo(frameOut);
+            load.recordLatency(System.nanoTime() - requestStart);
             
-            for (File file : files) {
-                if (file.isFile()) {
-                    response.append(file.getName()).append(",");
-                }
+            if (plan.deflate) {
+                // Each chunk of compressor output becomes one DATA frame
+                long sent = compressor.write(plan.path, plan.data, new OutputStream() {
+                    @Override
+                    public void write(int b) throws IOException {
+                        write(new byte[] {(byte) b}, 0, 1);
+                    }
+                    
+                    @Override
+                    public void write(byte[] bytes, int offset, int length) throws IOException {
+                        encoder.writeHeader(frameOut, FrameCodec.OP_DATA, id, length);
+                        frameOut.write(bytes, offset, length);
+                        admission.throttle(clientAddress, length);
+                    }
+                });
+                load.bytesSent.add(sent);
+                encoder.begin(FrameCodec.OP_END, id).writeTo(frameOut);
+                frameOut.flush();
+                Log.request("%s: File sent compressed: %s (%s of %s bytes)",
+                            serverName, plan.filename, sent, plan.fileSize);
+                return;
             }
             
-            if (response.length() > 6) {
-                out.println(response.substring(0, response.length() - 1));
-            } else {
-                out.println("NO_FILES");
+            SocketChannel channel = Config.isZeroCopyEnabled() ? socket.getChannel() : null;
+            byte[] buffer = channel == null ? new byte[Config.getBufferSize()] : null;
+            // Cached files never touch the disk
+            try (FileChannel fileChannel = plan.data == null ? FileChannel.open(plan.path, StandardOpenOption.READ) : null) {
+                InputStream fileIn = fileChannel != null ? Channels.newInputStream(fileChannel.position(plan.offset)) : null;
+                long totalSent = 0;
+                int lastDecile = 0;
+                
+                while (totalSent < plan.count) {
+                    int frameLength = (int) Math.min(FRAME_DATA_SIZE, plan.count - totalSent);
+                    encoder.writeHeader(frameOut, FrameCodec.OP_DATA, id, frameLength);
+                    if (plan.data != null) {
+                        ByteBuffer frame = plan.data.duplicate();
+                        frame.limit(frame.position() + frameLength);
+                        plan.data.position(frame.limit());
+                        if (channel != null) {
+                            frameOut.flush();
+                        }
+                        writeCached(frame, channel, frameOut);
+                    } else if (channel != null) {
+                        frameOut.flush();
+                        long position = plan.offset + totalSent;
+                        long end = position + frameLength;
+                        while (position < end) {
+                            long sent = fileChannel.transferTo(position, admission.chunk(end - position), channel);
+                            if (sent <= 0) {
+                                throw new EOFException("File truncated at " + position + " bytes");
+                            }
+                            position += sent;
+                            admission.throttle(clientAddress, sent);
+                        }
+                    } else {
+                        int left = frameLength;
+                        while (left > 0) {
+                            int bytesRead = fileIn.read(buffer, 0, Math.min(buffer.length, left));
+                            if (bytesRead == -1) {
+                                throw new EOFException("File truncated");
+                            }
+                            frameOut.write(buffer, 0, bytesRead);
+                            left -= bytesRead;
+                            admission.throttle(clientAddress, bytesRead);
+                        }
+                    }
+                    totalSent += frameLength;
+                    load.bytesSent.add(frameLength);
+                    lastDecile = logProgress(plan.filename, totalSent, plan.count, lastDecile);
+                }
             }
+            encoder.begin(FrameCodec.OP_END, id).writeTo(frameOut);
+            frameOut.flush();
+            Log.request("%s: File sent successfully: %s", serverName, plan.filename);
         }
         
-        private void handleDownloadFile(String filename, OutputStream outStream) {
-            System.out.println(serverName + ": Download requested for: " + filename);
+        // Reads the request line, usually with a single read, and keeps what
+        // came after it in pendingBytes; a buffered reader would consume the
+        // start of an upload body
+        private String readRequestLine() throws IOException {
+            InputStream in = socket.getInputStream();
+            byte[] buffer = new byte[512];
+            int length = 0;
+            while (true) {
+                for (int i = 0; i < length; i++) {
+                    if (buffer[i] == '\n') {
+                        pendingBytes = Arrays.copyOfRange(buffer, i + 1, length);
+                        return decodeLine(buffer, i);
+                    }
+                }
+                if (length == buffer.length) {
+                    if (length >= MAX_REQUEST_LINE) {
+                        throw new IOException("Request too long");
+                    }
+                    buffer = Arrays.copyOf(buffer, Math.min(length * 2, MAX_REQUEST_LINE));
+                }
+                int read = in.read(buffer, length, buffer.length - length);
+                if (read == -1) {
+                    // Like readLine, a last line without '\n' still counts
+                    return length == 0 ? null : decodeLine(buffer, length);
+                }
+                length += read;
+            }
+        }
+        
+        private String decodeLine(byte[] buffer, int end) {
+            if (end > 0 && buffer[end - 1] == '\r') {
+                end--;
+            }
+            return new String(buffer, 0, end, StandardCharsets.UTF_8);
+        }
+        
+        // Format: UPLOAD <size> <sha256> <filename>, followed by exactly <size>
+        // bytes. The body is received into the upload directory and checked,
+        // then renamed over the target in one step, so downloads and the
+        // index only ever see complete files. The index is told before the
+        // client gets "UPLOADED <size> <sha256>".
+        private void handleUpload(String args, PrintWriter out) throws IOException {
+            String[] fields = args != null ? args.split(" ", 3) : new String[0];
+            if (fields.length != 3) {
+                out.println("ERROR Usage: UPLOAD <size> <sha256> <filename>");
+                return;
+            }
+            long size;
+            try {
+                size = Long.parseLong(fields[0]);
+            } catch (NumberFormatException e) {
+                size = -1;
+            }
+            String expectedHash = fields[1];
+            String filename = fields[2];
+            long maxBytes = Config.getUploadMaxBytes();
+            if (maxBytes <= 0) {
+                out.println("ERROR Uploads are disabled");
+                return;
+            } else if (size < 0) {
+                out.println("ERROR Invalid size: " + fields[0]);
+                return;
+            } else if (size > maxBytes) {
+                out.println("ERROR Upload too large: limit is " + maxBytes + " bytes");
+                return;
+            } else if (!expectedHash.matches("[0-9a-fA-F]{64}")) {
+                out.println("ERROR Invalid sha256: " + expectedHash);
+                return;
+            } else if (!isPlainName(filename)) {
+                out.println("ERROR Invalid filename: " + filename);
+                return;
+            }
             
+            Log.request("%s: Upload of %s (%s bytes)", serverName, filename, size);
+            // createFile rather than createTempFile, which makes the file
+            // owner-only; the published file gets the umask like any other
+            Path temp = Files.createFile(uploadDirectory.resolve("upload-" + UUID.randomUUID() + ".tmp"));
             try {
-                Path filePath = Paths.get(fileDirectory, filename);
-                
-                if (!Files.exists(filePath)) {
-                    try (PrintWriter out = new PrintWriter(outStream, true)) {
-                        out.println("ERROR_FILE_NOT_FOUND");
-                    }
-                    System.out.println(serverName + ": File not found for download: " + filename);
+                long received = receiveBody(temp, size);
+                if (received < size) {
+                    Log.warn("%s: Upload of %s cut off at %s of %s bytes", serverName, filename, received, size);
+                    out.println("ERROR Upload truncated at " + received + " of " + size + " bytes");
+                    return;
+                }
+                // Read back from the page cache, as transferFrom bypasses the JVM
+                String hash = FileHashes.compute(temp);
+                if (!hash.equalsIgnoreCase(expectedHash)) {
+                    out.println("ERROR Hash mismatch: received content has sha256 " + hash);
                     return;
                 }
                 
-                // Get file size
-                long fileSize = Files.size(filePath);
-                System.out.println(serverName + ": Sending file: " + filename + 
-                                 " (" + fileSize + " bytes)");
+                Path target = Paths.get(fileDirectory, filename);
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                // Known already, so the catalog need not hash the file again
+                hashes.remember(target, Files.readAttributes(target, BasicFileAttributes.class), hash);
+                publishChanges(Set.of(filename), Set.of());
+                Log.request("%s: Upload published: %s", serverName, filename);
+                out.println("UPLOADED " + size + " " + hash);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        }
+        
+        // Writes the body to the file, through transferFrom when zero-copy is
+        // on; returns the bytes received, fewer than size if the client left
+        private long receiveBody(Path temp, long size) throws IOException {
+            try (FileChannel file = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                long received = 0;
+                if (pendingBytes != null && pendingBytes.length > 0) {
+                    int length = (int) Math.min(pendingBytes.length, size);
+                    ByteBuffer head = ByteBuffer.wrap(pendingBytes, 0, length);
+                    while (head.hasRemaining()) {
+                        file.write(head);
+                    }
+                    received = length;
+                    load.bytesReceived.add(length);
+                }
                 
-                // Send file size first
-                try (PrintWriter textOut = new PrintWriter(outStream, true)) {
-                    textOut.println("SIZE " + fileSize);
-                    textOut.flush();
+                SocketChannel channel = Config.isZeroCopyEnabled() ? socket.getChannel() : null;
+                if (channel != null) {
+                    while (received < size) {
+                        // The channel is blocking, so nothing transferred means end of stream
+                        long count = file.transferFrom(channel, received, Math.min(size - received, TRANSFER_CHUNK_SIZE));
+                        if (count <= 0) {
+                            break;
+                        }
+                        received += count;
+                        load.bytesReceived.add(count);
+                    }
+                    return received;
                 }
                 
-                // Send file content in binary
-                byte[] buffer = new byte[4096];
-                try (InputStream fileIn = Files.newInputStream(filePath);
-                     BufferedOutputStream bout = new BufferedOutputStream(outStream)) {
-                    
-                    int bytesRead;
-                    long totalSent = 0;
-                    
-                    while ((bytesRead = fileIn.read(buffer)) != -1) {
-                        bout.write(buffer, 0, bytesRead);
-                        totalSent += bytesRead;
-                        
-                        // Show progress for large files
-                        if (fileSize > 100000) { // For files > 100KB
-                            int percent = (int) ((totalSent * 100) / fileSize);
-                            if (percent % 10 == 0) {
-                                System.out.println(serverName + ": Sending " + filename + 
-                                                 ": " + percent + "%");
+                InputStream in = socket.getInputStream();
+                byte[] buffer = new byte[Config.getBufferSize()];
+                while (received < size) {
+                    int bytesRead = in.read(buffer, 0, (int) Math.min(buffer.length, size - received));
+                    if (bytesRead == -1) {
+                        break;
+                    }
+                    ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, bytesRead);
+                    while (chunk.hasRemaining()) {
+                        file.write(chunk);
+                    }
+                    received += bytesRead;
+                    load.bytesReceived.add(bytesRead);
+                }
+                return received;
+            }
+        }
+        
+        // Format: DOWNLOAD_BATCH <name>,<name>,... or DOWNLOAD_BATCH <glob>.
+        // Answers "BATCH <count>", then per file either "FILE <size> <sha256|->
+        // <name>" and exactly <size> bytes, or "MISSING <name>", and finally
+        // "END <files> <bytes>". Files go out in the order named, or in
+        // catalog order for a glob, while BatchReader reads the next ones.
+        private void handleBatch(String args, PrintWriter out) throws IOException {
+            if (args == null || args.isEmpty()) {
+                out.println("ERROR Usage: DOWNLOAD_BATCH <name>,<name>,... or DOWNLOAD_BATCH <glob>");
+                return;
+            }
+            List<String> names;
+            try {
+                names = batchNames(args);
+            } catch (IllegalArgumentException e) {
+                out.println("ERROR Invalid pattern: " + args);
+                return;
+            }
+            Log.request("%s: Batch of %s files for %s", serverName, names.size(), clientAddress);
+            
+            BufferedOutputStream bout = new BufferedOutputStream(socket.getOutputStream(), BATCH_BUFFER_SIZE);
+            OutputStream body = admission.throttled(clientAddress, bout);
+            SocketChannel channel = Config.isZeroCopyEnabled() ? socket.getChannel() : null;
+            writeLine(bout, "BATCH " + names.size());
+            long files = 0;
+            long bytes = 0;
+            try (BatchReader reader = new BatchReader(Paths.get(fileDirectory), names, hotFiles, hashes)) {
+                BatchReader.Entry entry;
+                while ((entry = reader.next()) != null) {
+                    try (BatchReader.Entry file = entry) {
+                        if (file.path == null) {
+                            writeLine(bout, "MISSING " + file.name);
+                            continue;
+                        }
+                        writeLine(bout, "FILE " + file.size + " " + (file.hash != null ? file.hash : "-")
+                                        + " " + file.name);
+                        long sent = file.head.remaining();
+                        writeBuffer(file.head, body);
+                        if (file.channel != null && channel != null) {
+                            bout.flush();
+                            while (sent < file.size) {
+                                long chunk = admission.chunk(Math.min(file.size - sent, TRANSFER_CHUNK_SIZE));
+                                long count = file.channel.transferTo(sent, chunk, channel);
+                                if (count <= 0) {
+                                    throw new EOFException(file.name + " truncated at " + sent + " bytes");
+                                }
+                                sent += count;
+                                admission.throttle(clientAddress, count);
+                            }
+                        } else if (file.channel != null) {
+                            InputStream fileIn = Channels.newInputStream(file.channel);
+                            byte[] buffer = new byte[Config.getBufferSize()];
+                            while (sent < file.size) {
+                                int bytesRead = fileIn.read(buffer, 0, (int) Math.min(buffer.length, file.size - sent));
+                                if (bytesRead == -1) {
+                                    throw new EOFException(file.name + " truncated at " + sent + " bytes");
+                                }
+                                body.write(buffer, 0, bytesRead);
+                                sent += bytesRead;
                             }
                         }
+                        files++;
+                        bytes += file.size;
+                        load.bytesSent.add(file.size);
+                        metrics.recordFile(file.name);
                     }
+                }
+            }
+            writeLine(bout, "END " + files + " " + bytes);
+            bout.flush();
+            Log.request("%s: Batch sent: %s files, %s bytes", serverName, files, bytes);
+        }
+        
+        // The names of a batch request: a glob is matched against the catalog
+        private List<String> batchNames(String args) {
+            List<String> names = new ArrayList<>();
+            if (args.matches(".*[*?\\[{].*")) {
+                PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + args);
+                for (DirectoryCatalog.Entry file : catalog.entries()) {
+                    if (matcher.matches(Paths.get(file.name))) {
+                        names.add(file.name);
+                    }
+                }
+            } else {
+                for (String name : args.split(",")) {
+                    if (!name.isEmpty()) {
+                        names.add(name);
+                    }
+                }
+            }
+            return names;
+        }
+        
+        private void writeLine(OutputStream out, String line) throws IOException {
+            out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        
+        // Writes the buffer's remaining bytes, copying through the heap for
+        // off-heap buffers such as the hot-file cache's
+        private void writeBuffer(ByteBuffer data, OutputStream out) throws IOException {
+            if (data.hasArray()) {
+                out.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+                return;
+            }
+            byte[] chunk = new byte[Math.min(data.remaining(), Config.getBufferSize())];
+            while (data.hasRemaining()) {
+                int length = Math.min(chunk.length, data.remaining());
+                data.get(chunk, 0, length);
+                out.write(chunk, 0, length);
+            }
+        }
+        
+        // Answered from the catalog; the file itself is not touched
+        private void handleGetFile(String filename, PrintWriter out) {
+            Log.request("%s: Checking file: %s", serverName, filename);
+            
+            DirectoryCatalog.Entry file = catalog.get(filename);
+            if (file != null) {
+                out.println("FILE_EXISTS " + file.size + (file.hash != null ? " " + file.hash : ""));
+                Log.request("%s: File found: %s (%s bytes)", serverName, filename, file.size);
+            } else {
+                out.println("FILE_NOT_FOUND");
+                Log.request("%s: File not found: %s", serverName, filename);
+            }
+        }
+        
+        // Legacy single-line listing, written entry by entry from the
+        // catalog rather than assembled in memory
+        private void handleListFiles() throws IOException {
+            PrintWriter listOut = bufferedWriter();
+            int count = 0;
+            for (DirectoryCatalog.Entry file : catalog.entries()) {
+                listOut.print(count == 0 ? "FILES " : ",");
+                listOut.print(file.name);
+                count++;
+            }
+            listOut.println(count == 0 ? "NO_FILES" : "");
+            listOut.flush();
+            Log.request("%s: Listed %s files", serverName, count);
+        }
+        
+        // Format: LIST <pageSize> [cursor]
+        private void handleListPage(String args, PrintWriter out) throws IOException {
+            String[] parts = args.split(" ", 2);
+            int pageSize;
+            String after;
+            try {
+                pageSize = Listing.clampPageSize(Integer.parseInt(parts[0]));
+                after = Listing.decodeCursor(parts.length > 1 ? parts[1] : null);
+            } catch (IllegalArgumentException e) {
+                out.println("ERROR Usage: LIST <pageSize> [cursor]");
+                return;
+            }
+            List<String> page = catalog.page(after, pageSize);
+            boolean more = page.size() > pageSize;
+            if (more) {
+                page.remove(pageSize);
+            }
+            out.println(Listing.formatPage(page, more));
+        }
+        
+        // "FILE <name>" per catalog entry, then "END <count>"
+        private void handleListStream() throws IOException {
+            PrintWriter listOut = bufferedWriter();
+            long count = 0;
+            for (DirectoryCatalog.Entry file : catalog.entries()) {
+                listOut.println("FILE " + file.name);
+                count++;
+            }
+            listOut.println("END " + count);
+            listOut.flush();
+            Log.request("%s: Streamed %s files", serverName, count);
+        }
+        
+        // The handler's own writer flushes on every line; long listings go
+        // through a buffer instead. Not closed, as that would close the socket.
+        private PrintWriter bufferedWriter() throws IOException {
+            return new PrintWriter(new BufferedWriter(
+                new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8)), false);
+        }
+        
+        private void sendFile(DownloadPlan plan, Socket socket, long requestStart) throws IOException {
+            OutputStream outStream = socket.getOutputStream();
+            
+            try {
+                // Send the header first. Written as raw bytes: closing a PrintWriter
+                // here would close the socket before the body is sent.
+                sendLine(outStream, plan.header);
+                load.recordLatency(System.nanoTime() - requestStart);
+                if (plan.path == null) {
+                    return;
+                }
+                
+                // Send file content in binary
+                SocketChannel channel = socket.getChannel();
+                if (plan.deflate) {
+                    BufferedOutputStream bout = new BufferedOutputStream(outStream, Config.getBufferSize());
+                    long sent = compressor.write(plan.path, plan.data, admission.throttled(clientAddress, bout));
                     bout.flush();
+                    load.bytesSent.add(sent);
+                } else if (plan.data != null) {
+                    writeCached(plan.data, channel, outStream);
+                    load.bytesSent.add(plan.count);
+                } else if (Config.isZeroCopyEnabled() && channel != null) {
+                    transferFile(plan.path, plan.filename, plan.offset, plan.count, channel);
+                } else {
+                    copyFile(plan.path, plan.filename, plan.offset, plan.count, outStream);
                 }
                 
-                System.out.println(serverName + ": File sent successfully: " + filename);
+                Log.request("%s: File sent successfully: %s", serverName, plan.filename);
                 
             } catch (IOException e) {
-                System.err.println(serverName + ": Error sending file " + filename + ": " + e.getMessage());
-                try (PrintWriter out = new PrintWriter(outStream, true)) {
-                    out.println("ERROR Download failed: " + e.getMessage());
-                } catch (Exception ex) {
+                Log.warn("%s: Error sending file %s: %s", serverName, plan.filename, e.getMessage());
+                try {
+                    sendLine(outStream, "ERROR Download failed: " + e.getMessage());
+                } catch (IOException ex) {
                     // Ignore if we can't send error message
                 }
             }
         }
+        
+        // Zero-copy path: the kernel moves file pages straight to the socket
+        private void transferFile(Path filePath, String filename, long offset, long count,
+                                  SocketChannel channel) throws IOException {
+            try (FileChannel fileChannel = FileChannel.open(filePath, StandardOpenOption.READ)) {
+                long totalSent = 0;
+                int lastDecile = 0;
+                
+                while (totalSent < count) {
+                    long chunk = admission.chunk(Math.min(count - totalSent, TRANSFER_CHUNK_SIZE));
+                    long sent = fileChannel.transferTo(offset + totalSent, chunk, channel);
+                    if (sent <= 0) {
+                        throw new EOFException("File truncated at " + (offset + totalSent) + " bytes");
+                    }
+                    totalSent += sent;
+                    load.bytesSent.add(sent);
+                    admission.throttle(clientAddress, sent);
+                    lastDecile = logProgress(filename, totalSent, count, lastDecile);
+                }
+            }
+        }
+        
+        // Fallback path when the socket has no channel or zero-copy is disabled
+        private void copyFile(Path filePath, String filename, long offset, long count,
+                              OutputStream outStream) throws IOException {
+            int bufferSize = Config.getBufferSize();
+            byte[] buffer = new byte[bufferSize];
+            try (FileChannel fileChannel = FileChannel.open(filePath, StandardOpenOption.READ);
+                 InputStream fileIn = Channels.newInputStream(fileChannel.position(offset))) {
+                BufferedOutputStream bout = new BufferedOutputStream(outStream, bufferSize);
+                
+                int bytesRead;
+                long totalSent = 0;
+                int lastDecile = 0;
+                
+                while (totalSent < count &&
+                       (bytesRead = fileIn.read(buffer, 0, (int) Math.min(bufferSize, count - totalSent))) != -1) {
+                    bout.write(buffer, 0, bytesRead);
+                    totalSent += bytesRead;
+                    load.bytesSent.add(bytesRead);
+                    admission.throttle(clientAddress, bytesRead);
+                    lastDecile = logProgress(filename, totalSent, count, lastDecile);
+                }
+                bout.flush();
+            }
+        }
+        
+        // Body of a cached file, straight from its off-heap buffer
+        private void writeCached(ByteBuffer data, SocketChannel channel, OutputStream outStream) throws IOException {
+            if (channel != null) {
+                int end = data.limit();
+                while (data.position() < end) {
+                    // Limited to one chunk per write while a bandwidth limit applies
+                    data.limit((int) Math.min(end, data.position() + admission.chunk(end - data.position())));
+                    int sent = channel.write(data);
+                    data.limit(end);
+                    admission.throttle(clientAddress, sent);
+                }
+            } else {
+                byte[] chunk = new byte[Math.min(data.remaining(), Config.getBufferSize())];
+                while (data.hasRemaining()) {
+                    int length = Math.min(chunk.length, data.remaining());
+                    data.get(chunk, 0, length);
+                    outStream.write(chunk, 0, length);
+                    admission.throttle(clientAddress, length);
+                }
+                outStream.flush();
+            }
+        }
+        
+        private void sendLine(OutputStream outStream, String line) throws IOException {
+            outStream.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+            outStream.flush();
+        }
+    }
+    
+    // Load figures sent with each heartbeat. Counters are updated by every
+    // connection; sample() turns them into rates over the last interval.
+    static class LoadStats {
+        final AtomicInteger activeConnections = new AtomicInteger();
+        final LongAdder bytesSent = new LongAdder();
+        final LongAdder bytesReceived = new LongAdder();
+        // Time from request to response header for downloads
+        private final LongAdder latencyNanos = new LongAdder();
+        private final LongAdder responses = new LongAdder();
+        private long lastSampleAt = System.nanoTime();
+        private long lastBytes;
+        private long lastLatencyNanos;
+        private long lastResponses;
+        
+        void recordLatency(long nanos) {
+            latencyNanos.add(nanos);
+            responses.increment();
+        }
+        
+        // ACTIVE|QUEUE|BYTES_PER_SEC|LATENCY_MICROS, the latency being the
+        // mean over this interval (0 if nothing was served)
+        synchronized String sample(int queueDepth) {
+            long now = System.nanoTime();
+            long bytes = bytesSent.sum();
+            long latency = latencyNanos.sum();
+            long count = responses.sum();
+            long elapsed = Math.max(1, now - lastSampleAt);
+            
+            long bytesPerSecond = (bytes - lastBytes) * 1_000_000_000L / elapsed;
+            long latencyMicros = count > lastResponses
+                ? (latency - lastLatencyNanos) / (count - lastResponses) / 1000 : 0;
+            
+            lastSampleAt = now;
+            lastBytes = bytes;
+            lastLatencyNanos = latency;
+            lastResponses = count;
+            return activeConnections.get() + "|" + queueDepth + "|" + bytesPerSecond + "|" + latencyMicros;
+        }
+    }
+    
+    // A resolved download: either a file region to stream after the header,
+    // or just an error line (path == null)
+    static class DownloadPlan {
+        final String filename;
+        final Path path;
+        final long offset;
+        final long count;
+        final long fileSize;
+        final String header;
+        // The requested bytes from the hot-file cache, or null to read the file
+        final ByteBuffer data;
+        // SHA-256 of the whole file, or null if not hashed yet
+        final String hash;
+        // Send the whole file as a zlib stream
+        final boolean deflate;
+        
+        DownloadPlan(String filename, Path path, long offset, long count, long fileSize, String header,
+                     ByteBuffer data, String hash) {
+            this(filename, path, offset, count, fileSize, header, data, hash, false);
+        }
+        
+        private DownloadPlan(String filename, Path path, long offset, long count, long fileSize, String header,
+                             ByteBuffer data, String hash, boolean deflate) {
+            this.filename = filename;
+            this.path = path;
+            this.offset = offset;
+            this.count = count;
+            this.fileSize = fileSize;
+            this.header = header;
+            this.data = data;
+            this.hash = hash;
+            this.deflate = deflate;
+        }
+        
+        static DownloadPlan error(String filename, String message) {
+            return new DownloadPlan(filename, null, 0, 0, 0, message, null, null);
+        }
+        
+        DownloadPlan deflated() {
+            return new DownloadPlan(filename, path, offset, count, fileSize,
+                                    "DEFLATE " + fileSize + (hash != null ? " " + hash : ""), data, hash, true);
+        }
     }
     
     public static void main(String[] args) {
-        if (args.length != 5) {
-            System.out.println("Usage: java DepartmentServer <serverName> <port> <fileDirectory> <indexHost> <indexPort>");
+        if (args.length != 5 && args.length != 6) {
+            System.out.println("Usage: java DepartmentServer <serverName> <port> <fileDirectory> <indexHost> <indexPort> [thread|nio|virtual]");
             System.out.println("Example: java DepartmentServer CS_Server 9091 cs_department localhost 9090");
             System.out.println("For network use, replace 'localhost' with server IP");
             return;
@@ -330,15 +1497,18 @@ public class DepartmentServer {
         String fileDirectory = args[2];
         String indexHost = args[3];
         int indexPort = Integer.parseInt(args[4]);
+        String serverMode = args.length == 6 ? args[5] : Config.getServerMode();
         
         System.out.println("=== Department Server Configuration ===");
         System.out.println("Server Name: " + serverName);
         System.out.println("Port: " + port);
         System.out.println("File Directory: " + new File(fileDirectory).getAbsolutePath());
         System.out.println("Index Server: " + indexHost + ":" + indexPort);
+        System.out.println("Connection Mode: " + serverMode);
         System.out.println("=======================================");
         
-        DepartmentServer server = new DepartmentServer(serverName, port, fileDirectory, indexHost, indexPort);
+        DepartmentServer server = new DepartmentServer(serverName, port, fileDirectory, 
+                                                       indexHost, indexPort, serverMode);
         server.start();
     }
 }
\ No newline at end of file
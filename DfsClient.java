@@ -0,0 +1,1281 @@
+// DfsClient.java
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.InflaterOutputStream;
+
+/**
+ * Non-interactive client library: SEARCH, name searches, LIST_ALL,
+ * downloads and uploads, each returning a CompletableFuture.
+ *
+ * Index requests run on index.pool.size threads over pooled connections, or
+ * one binary session when client.protocol=binary. Downloads run at most
+ * client.max.downloads at a time, and at most client.max.downloads.per.server
+ * from one Department Server; further downloads wait in a queue per server
+ * and servers take turns. downloadAll and downloadMatching fetch many files
+ * concurrently within those limits and report the aggregate throughput.
+ *
+ * Failed calls complete exceptionally, usually with an IOException whose
+ * message can be shown to the user. Downloads resume from
+ * {@code <target>.part}, are checked against the content hash the server
+ * sends, and reuse the local content store like FileClient always has.
+ */
+public class DfsClient implements Closeable {
+    // Names fetched per LIST_ALL page in binary mode
+    private static final int LIST_PAGE_SIZE = 1000;
+    // SEARCH requests pipelined per round trip when locating many files
+    private static final int SEARCH_BATCH = 256;
+    // fetch() result when the server's copy matches the cached one
+    private static final long NOT_MODIFIED = -1;
+    // How long a transfer keeps waiting out BUSY replies before it fails
+    private static final long BUSY_WAIT_MILLIS = 30_000;
+    // Longest DOWNLOAD_BATCH request line; servers accept 8192 bytes
+    private static final int BATCH_LINE_BYTES = 8000;
+    // Read buffer of a batch connection, which carries many headers and bodies
+    private static final int BATCH_BUFFER_SIZE = 64 * 1024;
+
+    private final String indexServerHost;
+    private final int indexServerPort;
+    private final IndexConnectionPool indexPool;
+    private final boolean binaryProtocol;
+    // Guards binaryIndex, a single session shared by the index threads
+    private final Object binaryLock = new Object();
+    private BinaryConnection binaryIndex;
+    // Recent SEARCH answers used for downloads, by lowercase filename
+    private final LookupCache<String, List<Location>> searchCache;
+    // Contents of earlier downloads; null if the store can't be opened,
+    // with the reason in contentStoreError
+    private final ContentStore contentStore;
+    private final IOException contentStoreError;
+    private final ExecutorService indexCalls;
+    private final ExecutorService transferThreads;
+    private final TransferScheduler transfers;
+    private final int maxDownloadsPerServer;
+
+    public DfsClient(String indexServerHost, int indexServerPort) {
+        this(indexServerHost, indexServerPort, Config.getClientMaxDownloads(), Config.getClientMaxDownloadsPerServer());
+    }
+
+    public DfsClient(String indexServerHost, int indexServerPort, int maxDownloads, int maxDownloadsPerServer) {
+        if (maxDownloads < 1 || maxDownloadsPerServer < 1) {
+            throw new IllegalArgumentException("Download limits must be at least 1");
+        }
+        this.indexServerHost = indexServerHost;
+        this.indexServerPort = indexServerPort;
+        this.maxDownloadsPerServer = maxDownloadsPerServer;
+        this.indexPool = new IndexConnectionPool(indexServerHost, indexServerPort);
+        this.binaryProtocol = Config.isBinaryProtocol();
+        this.searchCache = new LookupCache<>(Config.getLookupCacheEntries(), Config.getLookupCacheTtlMillis());
+        ContentStore store = null;
+        IOException storeError = null;
+        Path root = Paths.get(Config.getDownloadDir(), ".store");
+        try {
+            store = new ContentStore(root, Config.getContentStoreMaxBytes());
+        } catch (IOException e) {
+            storeError = new IOException("Download cache disabled, cannot open " + root + ": " + e.getMessage(), e);
+        }
+        this.contentStore = store;
+        this.contentStoreError = storeError;
+        this.indexCalls = Executors.newFixedThreadPool(Math.max(1, Config.getIndexPoolSize()), daemonThreads("dfs-index"));
+        // Sized by the scheduler, which never runs more than maxDownloads
+        this.transferThreads = Executors.newCachedThreadPool(daemonThreads("dfs-download"));
+        this.transfers = new TransferScheduler(transferThreads, maxDownloads, maxDownloadsPerServer);
+    }
+
+    /**
+     * Why the local content store could not be opened, or null if it is in
+     * use. Without it, downloads still work but every one is a transfer.
+     */
+    public IOException contentStoreError() {
+        return contentStoreError;
+    }
+
+    /** Every location holding the file, asking the index; empty if none. */
+    public CompletableFuture<List<Location>> search(String filename) {
+        return onIndex(() -> findLocations(filename, false));
+    }
+
+    /** Like search, but reuses a recent answer for the same name. */
+    public CompletableFuture<List<Location>> locate(String filename) {
+        return onIndex(() -> findLocations(filename, true));
+    }
+
+    /** Names matching query, at most limit of them. */
+    public CompletableFuture<List<String>> searchNames(NameMatch match, String query, int limit) {
+        return onIndex(() -> queryNames(match, query, limit));
+    }
+
+    /** Every name in the index, in name order. */
+    public CompletableFuture<List<String>> list() {
+        return onIndex(() -> {
+            List<String> names = new ArrayList<>();
+            listAllNames(names::add);
+            return names;
+        });
+    }
+
+    /**
+     * Hands every name in the index to names as it arrives, on an index
+     * thread, without holding the listing in memory; returns the count.
+     */
+    public CompletableFuture<Long> list(Consumer<String> names) {
+        return onIndex(() -> {
+            long[] count = new long[1];
+            listAllNames(name -> {
+                count[0]++;
+                names.accept(name);
+            });
+            return count[0];
+        });
+    }
+
+    /** Downloads filename from the first location the index lists for it. */
+    public CompletableFuture<Download> download(String filename, Path target) {
+        return download(filename, target, null);
+    }
+
+    public CompletableFuture<Download> download(String filename, Path target, Listener listener) {
+        return locate(filename).thenCompose(locations -> locations.isEmpty()
+            ? CompletableFuture.failedFuture(new FileNotFoundException("File not found: " + filename))
+            : download(locations.get(0), target, listener));
+    }
+
+    /** Downloads the file from one location, e.g. one picked from search. */
+    public CompletableFuture<Download> download(Location location, Path target, Listener listener) {
+        return transfers.submit(location.serverKey(), () -> {
+            try {
+                return retryWhenBusy(() -> fetch(location, target, listener));
+            } catch (IOException | RuntimeException e) {
+                // The cached location may be stale; ask the index next time
+                searchCache.invalidate(location.filename.toLowerCase());
+                throw e;
+            }
+        });
+    }
+
+    /**
+     * Fetches the file in chunks from every location at once with
+     * ParallelDownloader, outside the per-server limits.
+     */
+    public CompletableFuture<Download> downloadFromReplicas(String filename, Path target) {
+        return downloadFromReplicas(filename, target, null);
+    }
+
+    public CompletableFuture<Download> downloadFromReplicas(String filename, Path target, Listener listener) {
+        return locate(filename).thenApplyAsync(locations -> {
+            if (locations.isEmpty()) {
+                throw new CompletionException(new FileNotFoundException("File not found: " + filename));
+            }
+            List<ParallelDownloader.Replica> replicas = new ArrayList<>();
+            for (Location location : locations) {
+                replicas.add(new ParallelDownloader.Replica(
+                    location.server, location.host, location.port, location.filename, location.hash));
+            }
+            long start = System.nanoTime();
+            try {
+                ParallelDownloader downloader = new ParallelDownloader(replicas, target,
+                    Config.getDownloadChunkSize(), Config.getDownloadParallelism(), listener);
+                try {
+                    downloader.download();
+                } catch (IOException e) {
+                    searchCache.invalidate(filename.toLowerCase());
+                    throw e;
+                }
+                remember(locations.get(0).filename, target, listener);
+                long size = Files.size(target);
+                return new Download(locations.get(0).filename, target, Download.Outcome.DOWNLOADED,
+                                    size, size, System.nanoTime() - start);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, transferThreads);
+    }
+
+    /**
+     * Downloads every named file into directory, concurrently within the
+     * download limits. Each file comes from the location this client is
+     * busiest with least, so a bulk pull spreads over the replicas. The
+     * result completes when every file has finished or failed; it only
+     * fails itself if the index can't be asked.
+     */
+    public CompletableFuture<BulkResult> downloadAll(Collection<String> filenames, Path directory, Listener listener) {
+        List<String> names = new ArrayList<>(new LinkedHashSet<>(filenames));
+        long start = System.nanoTime();
+        BulkResult result = new BulkResult(names.size());
+        return onIndex(() -> locateAll(names)).thenCompose(found -> {
+            List<CompletableFuture<?>> pending = new ArrayList<>();
+            for (int i = 0; i < names.size(); i++) {
+                String name = names.get(i);
+                if (found.get(i).isEmpty()) {
+                    failed(result, listener, name, new FileNotFoundException("File not found: " + name));
+                    continue;
+                }
+                Location location = transfers.leastBusy(found.get(i));
+                // Index names never contain directories, but don't trust that
+                Path target = directory.resolve(Paths.get(location.filename).getFileName().toString());
+                pending.add(download(location, target, listener).whenComplete((download, error) -> {
+                    if (error != null) {
+                        failed(result, listener, name, error instanceof CompletionException ? error.getCause() : error);
+                    } else {
+                        result.add(download);
+                        if (listener != null) {
+                            listener.finished(download);
+                        }
+                    }
+                }));
+            }
+            return CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0]))
+                .handle((ignored, error) -> result.finish(System.nanoTime() - start));
+        });
+    }
+
+    /**
+     * Downloads every named file into directory like downloadAll, but asks
+     * each Department Server for its share with DOWNLOAD_BATCH. A bundle of
+     * hundreds of small files then costs a few connections rather than one
+     * per file. Names are spread over the replicas, and each server's share
+     * is split into at most client.max.downloads.per.server batches that
+     * run side by side. Files are unpacked and checked as they arrive.
+     * Content already in the local store is copied from there. Batches
+     * don't resume partial files; use downloadAll for large files.
+     */
+    public CompletableFuture<BulkResult> downloadBatch(Collection<String> filenames, Path directory,
+                                                       Listener listener) {
+        List<String> names = new ArrayList<>(new LinkedHashSet<>(filenames));
+        long start = System.nanoTime();
+        BulkResult result = new BulkResult(names.size());
+        return onIndex(() -> locateAll(names)).thenCompose(found -> {
+            Map<String, List<Location>> shares = new LinkedHashMap<>();
+            for (int i = 0; i < names.size(); i++) {
+                if (found.get(i).isEmpty()) {
+                    failed(result, listener, names.get(i), new FileNotFoundException("File not found: " + names.get(i)));
+                    continue;
+                }
+                // The replica whose server has the fewest names so far
+                Location best = null;
+                int bestLoad = Integer.MAX_VALUE;
+                for (Location location : found.get(i)) {
+                    List<Location> share = shares.get(location.serverKey());
+                    int load = share == null ? 0 : share.size();
+                    if (load < bestLoad) {
+                        best = location;
+                        bestLoad = load;
+                    }
+                }
+                shares.computeIfAbsent(best.serverKey(), key -> new ArrayList<>()).add(best);
+            }
+
+            List<CompletableFuture<?>> pending = new ArrayList<>();
+            for (List<Location> share : shares.values()) {
+                for (Map<String, Location> batch : splitBatches(share)) {
+                    Location server = share.get(0);
+                    pending.add(transfers.submit(server.serverKey(),
+                        () -> retryWhenBusy(() -> fetchBatch(server, batch, directory, result, listener)))
+                        .whenComplete((ignored, error) -> {
+                            Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+                            synchronized (batch) {
+                                for (String name : batch.keySet()) {
+                                    failed(result, listener, name, cause != null ? cause
+                                        : new FileNotFoundException("Not sent by " + server.server));
+                                }
+                            }
+                        }));
+                }
+            }
+            return CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0]))
+                .handle((ignored, error) -> result.finish(System.nanoTime() - start));
+        });
+    }
+
+    // A server's share in at most maxDownloadsPerServer parts, each short
+    // enough for one request line; names map to their locations
+    private List<Map<String, Location>> splitBatches(List<Location> share) {
+        int perBatch = (share.size() + maxDownloadsPerServer - 1) / maxDownloadsPerServer;
+        List<Map<String, Location>> batches = new ArrayList<>();
+        Map<String, Location> batch = new LinkedHashMap<>();
+        int lineBytes = 0;
+        for (Location location : share) {
+            int nameBytes = location.filename.getBytes(StandardCharsets.UTF_8).length + 1;
+            if (!batch.isEmpty() && (batch.size() == perBatch || lineBytes + nameBytes > BATCH_LINE_BYTES)) {
+                batches.add(batch);
+                batch = new LinkedHashMap<>();
+                lineBytes = 0;
+            }
+            batch.put(location.filename, location);
+            lineBytes += nameBytes;
+        }
+        if (!batch.isEmpty()) {
+            batches.add(batch);
+        }
+        return batches;
+    }
+
+    /**
+     * Downloads every file in the index whose name matches a glob such as
+     * "lecture-*.pdf" or "*.{txt,md}", like downloadBatch.
+     */
+    public CompletableFuture<BulkResult> downloadMatching(String glob, Path directory, Listener listener) {
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+        return onIndex(() -> {
+            List<String> names = new ArrayList<>();
+            listAllNames(name -> {
+                try {
+                    if (matcher.matches(Paths.get(name))) {
+                        names.add(name);
+                    }
+                } catch (InvalidPathException e) {
+                    // Not a name this platform can store anyway
+                }
+            });
+            return names;
+        }).thenCompose(names -> downloadBatch(names, directory, listener));
+    }
+
+    /**
+     * Publishes a local file on a Department Server under name, with UPLOAD.
+     * Completes with the content's sha256 once the server has stored the
+     * file and told the index about it. Counts against the download limits
+     * of that server.
+     */
+    public CompletableFuture<String> upload(String host, int port, Path file, String name) {
+        return transfers.submit(host + ":" + port, () -> retryWhenBusy(() -> {
+            String hash = FileHashes.compute(file);
+            try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ);
+                 SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port))) {
+                long size = in.size();
+                ByteBuffer header = ByteBuffer.wrap(("UPLOAD " + size + " " + hash + " " + name + "\n")
+                                                    .getBytes(StandardCharsets.UTF_8));
+                InputStream replies = channel.socket().getInputStream();
+                try {
+                    while (header.hasRemaining()) {
+                        channel.write(header);
+                    }
+                    for (long sent = 0; sent < size; ) {
+                        long count = in.transferTo(sent, size - sent, channel);
+                        if (count <= 0) {
+                            throw new EOFException("File shrank while uploading");
+                        }
+                        sent += count;
+                    }
+                } catch (IOException e) {
+                    // A server that refused the upload has answered and closed;
+                    // its reason says more than the broken pipe
+                    String reply = readHeaderLine(replies);
+                    throw reply == null ? e
+                        : reply.startsWith("ERROR ") ? new IOException(reply.substring(6))
+                        : reply.startsWith("BUSY ") ? new IOException(reply) : e;
+                }
+                String reply = readHeaderLine(replies);
+                if (reply == null || !reply.startsWith("UPLOADED ")) {
+                    throw new IOException(reply == null ? "Connection closed by server"
+                                          : reply.startsWith("ERROR ") ? reply.substring(6) : reply);
+                }
+                // Locations and hash for the name have just changed
+                searchCache.invalidate(name.toLowerCase());
+                return hash;
+            }
+        }));
+    }
+
+    // A BUSY the index pool's own retries could not get past is an error,
+    // not an empty answer
+    private static void checkNotBusy(String response) throws IOException {
+        if (AdmissionControl.retryAfter(response) >= 0) {
+            throw new IOException("Index server busy, try again later");
+        }
+    }
+
+    // Runs a transfer again after the server's retry-after time while it
+    // is answered BUSY, for up to BUSY_WAIT_MILLIS; the transfer keeps its
+    // slot meanwhile, so a busy server gets no more connections from us
+    private static <T> T retryWhenBusy(Callable<T> transfer) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(BUSY_WAIT_MILLIS);
+        while (true) {
+            try {
+                return transfer.call();
+            } catch (IOException e) {
+                long retryAfter = AdmissionControl.retryAfter(e.getMessage());
+                if (retryAfter < 0 || System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(retryAfter) > deadline) {
+                    throw e;
+                }
+                AdmissionControl.backOff(retryAfter);
+            }
+        }
+    }
+
+    private static void failed(BulkResult result, Listener listener, String name, Throwable error) {
+        result.fail(name, error);
+        if (listener != null) {
+            listener.failed(name, error);
+        }
+    }
+
+    @Override
+    public void close() {
+        indexCalls.shutdown();
+        transferThreads.shutdown();
+        indexPool.close();
+        synchronized (binaryLock) {
+            if (binaryIndex != null) {
+                try {
+                    binaryIndex.close();
+                } catch (IOException e) {
+                    // Closing anyway
+                }
+                binaryIndex = null;
+            }
+        }
+    }
+
+    private <T> CompletableFuture<T> onIndex(Callable<T> call) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return call.call();
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, indexCalls);
+    }
+
+    // With useCache, a recent answer for the same name is reused. Only hits
+    // are cached, so a newly registered file is found at once.
+    private List<Location> findLocations(String filename, boolean useCache) throws IOException {
+        String key = filename.toLowerCase();
+        if (useCache) {
+            List<Location> cached = searchCache.get(key);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        List<Location> locations = queryLocations(filename);
+        if (!locations.isEmpty()) {
+            searchCache.put(key, locations);
+        }
+        return locations;
+    }
+
+    // Locations for every name, in order, pipelining the SEARCHes in text mode
+    private List<List<Location>> locateAll(List<String> names) throws IOException {
+        List<List<Location>> found = new ArrayList<>(names.size());
+        if (binaryProtocol) {
+            for (String name : names) {
+                found.add(findLocations(name, true));
+            }
+            return found;
+        }
+        for (int from = 0; from < names.size(); from += SEARCH_BATCH) {
+            List<String> batch = names.subList(from, Math.min(names.size(), from + SEARCH_BATCH));
+            List<String> commands = new ArrayList<>(batch.size());
+            for (String name : batch) {
+                commands.add("SEARCH " + name);
+            }
+            List<String> responses = indexPool.pipeline(commands);
+            for (int i = 0; i < batch.size(); i++) {
+                List<Location> locations = parseFound(responses.get(i));
+                if (!locations.isEmpty()) {
+                    searchCache.put(batch.get(i).toLowerCase(), locations);
+                }
+                found.add(locations);
+            }
+        }
+        return found;
+    }
+
+    private List<Location> queryLocations(String filename) throws IOException {
+        if (!binaryProtocol) {
+            return parseFound(indexPool.request("SEARCH " + filename));
+        }
+        List<Location> locations = new ArrayList<>();
+        synchronized (binaryLock) {
+            binaryIndex().begin(FrameCodec.OP_SEARCH).putString(filename);
+            FrameCodec.Decoder reply = callIndex();
+            if (reply.opcode() == FrameCodec.OP_FOUND) {
+                int count = reply.getShort();
+                for (int i = 0; i < count; i++) {
+                    String server = reply.getString();
+                    String ip = reply.getString();
+                    int port = reply.getShort();
+                    locations.add(new Location(server, ip, port, reply.getString(), null));
+                }
+                // Content hashes follow the locations, if the index has them
+                for (int i = 0; i < count && reply.remaining() > 0; i++) {
+                    String hash = reply.getString();
+                    if (!hash.isEmpty()) {
+                        Location location = locations.get(i);
+                        locations.set(i, new Location(location.server, location.host, location.port,
+                                                      location.filename, hash));
+                    }
+                }
+            }
+        }
+        return locations;
+    }
+
+    // FOUND server|ip|port|filename[|sha256],...
+    private static List<Location> parseFound(String response) throws IOException {
+        checkNotBusy(response);
+        List<Location> locations = new ArrayList<>();
+        if (response.startsWith("FOUND")) {
+            for (String location : response.substring(6).split(",")) {
+                String[] info = location.split("\\|");
+                locations.add(new Location(info[0], info[1], Integer.parseInt(info[2]), info[3],
+                                           info.length > 4 ? info[4] : null));
+            }
+        }
+        return locations;
+    }
+
+    // Streams the catalog: LIST_ALL_STREAM in text mode, pages of
+    // LIST_PAGE_SIZE names in binary mode
+    private void listAllNames(Consumer<String> names) throws IOException {
+        if (binaryProtocol) {
+            String cursor = "";
+            do {
+                List<String> page = new ArrayList<>();
+                // Released between pages so searches don't wait for the whole listing
+                synchronized (binaryLock) {
+                    binaryIndex().begin(FrameCodec.OP_LIST_ALL).putShort(LIST_PAGE_SIZE).putString(cursor);
+                    FrameCodec.Decoder reply = callIndex();
+                    if (reply.opcode() != FrameCodec.OP_PAGE) {
+                        return;
+                    }
+                    cursor = reply.getString();
+                    int count = reply.getInt();
+                    for (int i = 0; i < count; i++) {
+                        page.add(reply.getString());
+                    }
+                }
+                page.forEach(names);
+            } while (!cursor.isEmpty());
+            return;
+        }
+
+        String last = indexPool.stream("LIST_ALL_STREAM", names);
+        if (!last.startsWith("END")) {
+            throw new IOException("Listing failed: " + last);
+        }
+    }
+
+    private List<String> queryNames(NameMatch match, String query, int limit) throws IOException {
+        List<String> names = new ArrayList<>();
+        if (binaryProtocol) {
+            synchronized (binaryLock) {
+                binaryIndex().begin(match.opcode).putShort(limit).putString(query);
+                FrameCodec.Decoder reply = callIndex();
+                if (reply.opcode() == FrameCodec.OP_FILES) {
+                    int count = reply.getInt();
+                    for (int i = 0; i < count; i++) {
+                        names.add(reply.getString());
+                    }
+                }
+            }
+            return names;
+        }
+
+        String response = indexPool.request(match.command + " " + limit + " " + query);
+        checkNotBusy(response);
+        if (response.startsWith("FILES")) {
+            names.addAll(Arrays.asList(response.substring(6).split(",")));
+        }
+        return names;
+    }
+
+    // Persistent framed session with the index server, opened on first use;
+    // callers hold binaryLock
+    private BinaryConnection binaryIndex() throws IOException {
+        if (binaryIndex == null) {
+            binaryIndex = new BinaryConnection(indexServerHost, indexServerPort);
+        }
+        return binaryIndex;
+    }
+
+    private FrameCodec.Decoder callIndex() throws IOException {
+        try {
+            return binaryIndex.call();
+        } catch (IOException e) {
+            // Reconnect on the next request
+            binaryIndex.close();
+            binaryIndex = null;
+            throw e;
+        }
+    }
+
+    // Runs on a transfer thread, within the scheduler's limits
+    private Download fetch(Location location, Path target, Listener listener) throws IOException {
+        long start = System.nanoTime();
+        // Data is written to <name>.part and renamed once complete, so an
+        // interrupted transfer can be resumed from where it stopped
+        Path partial = Paths.get(target + ".part");
+        Files.createDirectories(target.toAbsolutePath().getParent());
+        long resumeFrom = Files.exists(partial) ? Files.size(partial) : 0;
+        // The same content fetched earlier, possibly under another name
+        // or from another department, needs no transfer at all
+        ContentStore.Entry same = location.hash != null && resumeFrom == 0 && contentStore != null
+            ? contentStore.find(location.hash) : null;
+        if (same != null) {
+            contentStore.restore(same, target);
+            remember(location.filename, target, listener);
+            return new Download(location.filename, target, Download.Outcome.COPIED, 0, same.size,
+                                System.nanoTime() - start);
+        }
+        // A copy we may already have; the server skips the transfer if it still matches
+        ContentStore.Entry cached = resumeFrom > 0 ? null : cachedCopy(location.filename, target);
+
+        long received = binaryProtocol
+            ? fetchFramed(location, partial, resumeFrom, cached, listener)
+            : fetchText(location, partial, resumeFrom, cached, listener);
+        if (received == NOT_MODIFIED) {
+            contentStore.restore(cached, target);
+            return new Download(location.filename, target, Download.Outcome.NOT_MODIFIED, 0, cached.size,
+                                System.nanoTime() - start);
+        }
+        Files.move(partial, target, StandardCopyOption.REPLACE_EXISTING);
+        remember(location.filename, target, listener);
+        return new Download(location.filename, target, Download.Outcome.DOWNLOADED, received, Files.size(target),
+                            System.nanoTime() - start);
+    }
+
+    // The stored copy of a remote file, from an earlier download or, failing
+    // that, from an existing file at the target path
+    private ContentStore.Entry cachedCopy(String filename, Path target) throws IOException {
+        if (contentStore == null) {
+            return null;
+        }
+        ContentStore.Entry cached = contentStore.lookup(filename);
+        if (cached == null && Files.isRegularFile(target)) {
+            cached = contentStore.add(filename, target);
+        }
+        return cached;
+    }
+
+    // A failure here leaves the download itself intact, so it only goes to the listener
+    private void remember(String filename, Path file, Listener listener) {
+        if (contentStore == null) {
+            return;
+        }
+        try {
+            contentStore.add(filename, file);
+        } catch (IOException e) {
+            if (listener != null) {
+                listener.notCached(file, e);
+            }
+        }
+    }
+
+    // Text protocol: one header line, then the raw body on the same stream.
+    // Returns the bytes received, or NOT_MODIFIED.
+    private long fetchText(Location location, Path partial, long resumeFrom, ContentStore.Entry cached,
+                           Listener listener) throws IOException {
+        String filename = location.filename;
+        try (Socket socket = new Socket(location.host, location.port)) {
+            OutputStream socketOut = socket.getOutputStream();
+            InputStream socketIn = socket.getInputStream();
+
+            // Request file download. Resumed ranges are never compressed.
+            String accept = Config.isCompressionEnabled() ? "+deflate" : "";
+            String request = resumeFrom > 0 ? "DOWNLOAD_RANGE " + resumeFrom + " -1 " + filename
+                : cached != null ? "DOWNLOAD_IF_NONE_MATCH" + accept + " " + cached.hash + " " + filename
+                : "DOWNLOAD" + accept + " " + filename;
+            socketOut.write((request + "\n").getBytes(StandardCharsets.UTF_8));
+            socketOut.flush();
+
+            // Read response. The header is read byte by byte: a BufferedReader
+            // would swallow the start of the file body.
+            String response = readHeaderLine(socketIn);
+            if (response == null) {
+                throw new EOFException("Connection closed by server");
+            }
+
+            long fileSize;
+            long expected;
+            // SHA-256 of the whole file, if the server sent one
+            String hash = null;
+            InputStream body = socketIn;
+            Inflater inflater = null;
+            String[] fields = response.split(" ");
+            if (response.startsWith("NOT_MODIFIED")) {
+                return NOT_MODIFIED;
+            } else if (response.startsWith("DEFLATE")) {
+                // The rest of the stream is the whole file, zlib-compressed
+                fileSize = Long.parseLong(fields[1]);
+                hash = fields.length > 2 ? fields[2] : null;
+                expected = fileSize;
+                resumeFrom = 0;
+                inflater = new Inflater();
+                body = new InflaterInputStream(socketIn, inflater, Config.getBufferSize());
+            } else if (response.startsWith("SIZE")) {
+                fileSize = Long.parseLong(fields[1]);
+                hash = fields.length > 2 ? fields[2] : null;
+                expected = fileSize;
+                resumeFrom = 0;
+            } else if (response.startsWith("RANGE")) {
+                expected = Long.parseLong(fields[2]);
+                fileSize = Long.parseLong(fields[3]);
+                hash = fields.length > 4 ? fields[4] : null;
+            } else if (response.startsWith("ERROR Invalid range")) {
+                // The partial file no longer matches the source; start over next time
+                Files.deleteIfExists(partial);
+                throw new IOException("Partial download is stale and was removed. Please retry.");
+            } else {
+                throw new IOException(response.startsWith("ERROR") && response.length() > 6
+                                      ? response.substring(6) : response);
+            }
+            if (listener != null) {
+                listener.started(filename, fileSize, resumeFrom, inflater != null);
+            }
+
+            // Download file, hashing it on the way when there is a hash to check
+            MessageDigest digest = startDigest(hash, partial, resumeFrom);
+            long totalRead = 0;
+            try (FileOutputStream fileOut = new FileOutputStream(partial.toFile(), resumeFrom > 0);
+                 BufferedOutputStream bout = new BufferedOutputStream(fileOut)) {
+
+                byte[] buffer = new byte[Config.getBufferSize()];
+                int bytesRead;
+
+                while (totalRead < expected &&
+                       (bytesRead = body.read(buffer, 0, (int) Math.min(buffer.length, expected - totalRead))) != -1) {
+                    bout.write(buffer, 0, bytesRead);
+                    if (digest != null) {
+                        digest.update(buffer, 0, bytesRead);
+                    }
+                    totalRead += bytesRead;
+                    if (listener != null) {
+                        listener.progress(filename, resumeFrom + totalRead, fileSize);
+                    }
+                }
+                bout.flush();
+            } finally {
+                if (inflater != null) {
+                    inflater.end();
+                }
+            }
+
+            if (totalRead < expected) {
+                throw new EOFException("Download interrupted at byte " + (resumeFrom + totalRead) +
+                                       ". Download again to resume.");
+            }
+            verify(digest, hash, partial);
+            return totalRead;
+        }
+    }
+
+    // One DOWNLOAD_BATCH connection. Entries are written to <name>.part as
+    // they arrive, checked and renamed one at a time, and taken out of
+    // pending once they are done or known to be missing. Whatever is still
+    // pending when this returns or fails was not delivered.
+    private Void fetchBatch(Location server, Map<String, Location> pending, Path directory,
+                            BulkResult result, Listener listener) throws IOException {
+        Files.createDirectories(directory);
+        List<String> request = new ArrayList<>();
+        synchronized (pending) {
+            for (Iterator<Location> it = pending.values().iterator(); it.hasNext(); ) {
+                Location location = it.next();
+                // The same content fetched earlier needs no transfer
+                ContentStore.Entry same = location.hash != null && contentStore != null
+                    ? contentStore.find(location.hash) : null;
+                if (same != null) {
+                    long start = System.nanoTime();
+                    Path target = directory.resolve(Paths.get(location.filename).getFileName().toString());
+                    contentStore.restore(same, target);
+                    remember(location.filename, target, listener);
+                    delivered(result, listener, new Download(location.filename, target, Download.Outcome.COPIED,
+                                                             0, same.size, System.nanoTime() - start));
+                    it.remove();
+                } else {
+                    request.add(location.filename);
+                }
+            }
+        }
+        if (request.isEmpty()) {
+            return null;
+        }
+
+        try (Socket socket = new Socket(server.host, server.port)) {
+            OutputStream socketOut = socket.getOutputStream();
+            socketOut.write(("DOWNLOAD_BATCH " + String.join(",", request) + "\n").getBytes(StandardCharsets.UTF_8));
+            socketOut.flush();
+            // Headers and bodies alternate on one stream, so one buffer serves both
+            InputStream in = new BufferedInputStream(socket.getInputStream(), BATCH_BUFFER_SIZE);
+            String response = readHeaderLine(in);
+            if (response == null) {
+                throw new EOFException("Connection closed by server");
+            }
+            if (!response.startsWith("BATCH ")) {
+                throw new IOException(response.startsWith("ERROR ") ? response.substring(6) : response);
+            }
+
+            byte[] buffer = new byte[Config.getBufferSize()];
+            String line;
+            while ((line = readHeaderLine(in)) != null && !line.startsWith("END")) {
+                if (line.startsWith("MISSING ")) {
+                    String name = line.substring(8);
+                    synchronized (pending) {
+                        pending.remove(name);
+                    }
+                    failed(result, listener, name, new FileNotFoundException("File not found on " + server.server));
+                    continue;
+                }
+                // FILE <size> <sha256|-> <name>
+                String[] fields = line.split(" ", 4);
+                if (fields.length != 4 || !fields[0].equals("FILE") || !pending.containsKey(fields[3])) {
+                    throw new IOException("Unexpected batch entry: " + line);
+                }
+                long start = System.nanoTime();
+                String name = fields[3];
+                long size = Long.parseLong(fields[1]);
+                String hash = fields[2].equals("-") ? null : fields[2];
+                Path target = directory.resolve(Paths.get(name).getFileName().toString());
+                Path partial = Paths.get(target + ".part");
+                if (listener != null) {
+                    listener.started(name, size, 0, false);
+                }
+
+                MessageDigest digest = startDigest(hash, partial, 0);
+                try (OutputStream fileOut = new BufferedOutputStream(Files.newOutputStream(partial))) {
+                    long received = 0;
+                    while (received < size) {
+                        int bytesRead = in.read(buffer, 0, (int) Math.min(buffer.length, size - received));
+                        if (bytesRead == -1) {
+                            throw new EOFException("Batch cut off in " + name + " at byte " + received);
+                        }
+                        fileOut.write(buffer, 0, bytesRead);
+                        if (digest != null) {
+                            digest.update(buffer, 0, bytesRead);
+                        }
+                        received += bytesRead;
+                        if (listener != null) {
+                            listener.progress(name, received, size);
+                        }
+                    }
+                }
+                synchronized (pending) {
+                    pending.remove(name);
+                }
+                try {
+                    // The rest of the batch is still good if one file is not
+                    verify(digest, hash, partial);
+                } catch (IOException e) {
+                    failed(result, listener, name, e);
+                    continue;
+                }
+                Files.move(partial, target, StandardCopyOption.REPLACE_EXISTING);
+                remember(name, target, listener);
+                delivered(result, listener, new Download(name, target, Download.Outcome.DOWNLOADED, size, size,
+                                                         System.nanoTime() - start));
+            }
+            if (line == null) {
+                throw new EOFException("Batch cut off by the server");
+            }
+            return null;
+        }
+    }
+
+    private static void delivered(BulkResult result, Listener listener, Download download) {
+        result.add(download);
+        if (listener != null) {
+            listener.finished(download);
+        }
+    }
+
+    // Framed protocol: FILE_HEADER, DATA frames, END
+    private long fetchFramed(Location location, Path partial, long resumeFrom, ContentStore.Entry cached,
+                             Listener listener) throws IOException {
+        String filename = location.filename;
+        try (BinaryConnection conn = new BinaryConnection(location.host, location.port)) {
+            FrameCodec.Encoder request = conn.begin(FrameCodec.OP_DOWNLOAD)
+                                             .putLong(resumeFrom).putLong(-1).putString(filename);
+            request.putString(cached != null ? cached.hash : "");
+            // Resumed ranges are never compressed
+            request.putByte(Config.isCompressionEnabled() && resumeFrom == 0 ? FrameCodec.ENCODING_DEFLATE : 0);
+            FrameCodec.Decoder frame;
+            try {
+                frame = conn.call();
+            } catch (IOException e) {
+                if (e.getMessage() != null && e.getMessage().startsWith("Invalid range")) {
+                    Files.deleteIfExists(partial);
+                    throw new IOException("Partial download is stale and was removed. Please retry.");
+                }
+                throw e;
+            }
+            if (frame.opcode() == FrameCodec.OP_NOT_MODIFIED) {
+                return NOT_MODIFIED;
+            }
+            if (frame.opcode() == FrameCodec.OP_FILE_NOT_FOUND) {
+                throw new FileNotFoundException("File not found on server");
+            }
+            frame.getLong();
+            long expected = frame.getLong();
+            long fileSize = frame.getLong();
+            boolean deflated = frame.remaining() > 0 && frame.getByte() == FrameCodec.ENCODING_DEFLATE;
+            String hash = frame.remaining() > 0 ? frame.getString() : null;
+            if (listener != null) {
+                listener.started(filename, fileSize, resumeFrom, deflated);
+            }
+
+            long totalRead = 0;
+            MessageDigest digest = startDigest(hash, partial, resumeFrom);
+            // DATA payloads of a compressed file together form one zlib stream
+            Inflater inflater = deflated ? new Inflater() : null;
+            try (FileOutputStream fileOut = new FileOutputStream(partial.toFile(), resumeFrom > 0);
+                 BufferedOutputStream bout = new BufferedOutputStream(fileOut);
+                 OutputStream plain = digest != null ? new DigestOutputStream(bout, digest) : bout;
+                 OutputStream sink = deflated ? new InflaterOutputStream(plain, inflater) : plain) {
+                while ((frame = conn.receive()).opcode() == FrameCodec.OP_DATA) {
+                    if (deflated) {
+                        frame.copyPayloadTo(sink);
+                        totalRead = inflater.getBytesWritten();
+                    } else {
+                        totalRead += frame.remaining();
+                        frame.copyPayloadTo(sink);
+                    }
+                    if (listener != null) {
+                        listener.progress(filename, resumeFrom + totalRead, fileSize);
+                    }
+                }
+            } finally {
+                if (inflater != null) {
+                    inflater.end();
+                }
+            }
+
+            if (frame.opcode() != FrameCodec.OP_END || totalRead != expected) {
+                throw new EOFException("Download interrupted at byte " + (resumeFrom + totalRead) +
+                                       ". Download again to resume.");
+            }
+            verify(digest, hash, partial);
+            return totalRead;
+        }
+    }
+
+    // A digest to check the download against hash, already fed with the
+    // part of the file downloaded before; null if there is nothing to check
+    private static MessageDigest startDigest(String hash, Path partial, long resumeFrom) throws IOException {
+        if (hash == null || hash.isEmpty()) {
+            return null;
+        }
+        MessageDigest digest = FileHashes.newDigest();
+        if (resumeFrom > 0) {
+            FileHashes.update(digest, partial);
+        }
+        return digest;
+    }
+
+    // A file that does not match its hash is deleted, so the next attempt
+    // starts over instead of resuming from corrupt data
+    private static void verify(MessageDigest digest, String hash, Path partial) throws IOException {
+        if (digest == null) {
+            return;
+        }
+        String actual = FileHashes.hex(digest);
+        if (!actual.equalsIgnoreCase(hash)) {
+            Files.deleteIfExists(partial);
+            throw new IOException("Content hash mismatch (expected " + hash + ", got " + actual +
+                                  "). The download was discarded; please retry.");
+        }
+    }
+
+    // Reads one '\n'-terminated header line without buffering past it
+    static String readHeaderLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        if (b == -1 && line.size() == 0) {
+            return null;
+        }
+        return line.toString(StandardCharsets.UTF_8);
+    }
+
+    private static ThreadFactory daemonThreads(String prefix) {
+        AtomicInteger count = new AtomicInteger();
+        return task -> {
+            Thread thread = new Thread(task, prefix + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /** Name searches the index supports, closest matches first for FUZZY. */
+    public enum NameMatch {
+        PREFIX("SEARCH_PREFIX", FrameCodec.OP_SEARCH_PREFIX),
+        SUBSTRING("SEARCH_SUBSTRING", FrameCodec.OP_SEARCH_SUBSTRING),
+        FUZZY("SEARCH_FUZZY", FrameCodec.OP_SEARCH_FUZZY);
+
+        final String command;
+        final byte opcode;
+
+        NameMatch(String command, byte opcode) {
+            this.command = command;
+            this.opcode = opcode;
+        }
+    }
+
+    /** One Department Server holding a file, as SEARCH reports it. */
+    public static final class Location {
+        public final String server;
+        public final String host;
+        public final int port;
+        public final String filename;
+        // SHA-256 of the content, or null if the server registered none
+        public final String hash;
+
+        public Location(String server, String host, int port, String filename, String hash) {
+            this.server = server;
+            this.host = host;
+            this.port = port;
+            this.filename = filename;
+            this.hash = hash;
+        }
+
+        String serverKey() {
+            return host + ":" + port;
+        }
+
+        @Override
+        public String toString() {
+            return server + "|" + host + "|" + port + "|" + filename + (hash != null ? "|" + hash : "");
+        }
+    }
+
+    /** A finished download. */
+    public static final class Download {
+        public enum Outcome {
+            // Transferred from the server
+            DOWNLOADED,
+            // The server's copy matched the stored one, which was copied
+            NOT_MODIFIED,
+            // Content with the same hash was already stored and was copied
+            COPIED
+        }
+
+        public final String filename;
+        public final Path target;
+        public final Outcome outcome;
+        // Bytes received over the network, excluding any resumed part
+        public final long bytesReceived;
+        public final long fileSize;
+        public final long nanos;
+
+        Download(String filename, Path target, Outcome outcome, long bytesReceived, long fileSize, long nanos) {
+            this.filename = filename;
+            this.target = target;
+            this.outcome = outcome;
+            this.bytesReceived = bytesReceived;
+            this.fileSize = fileSize;
+            this.nanos = nanos;
+        }
+    }
+
+    /** Totals of a bulk download, including its aggregate throughput. */
+    public static final class BulkResult {
+        private final int requested;
+        private final Map<String, Throwable> failures = new LinkedHashMap<>();
+        private int downloaded;
+        private int unchanged;
+        private long bytesReceived;
+        private long elapsedNanos;
+
+        BulkResult(int requested) {
+            this.requested = requested;
+        }
+
+        synchronized void add(Download download) {
+            if (download.outcome == Download.Outcome.DOWNLOADED) {
+                downloaded++;
+            } else {
+                unchanged++;
+            }
+            bytesReceived += download.bytesReceived;
+        }
+
+        synchronized void fail(String filename, Throwable error) {
+            failures.put(filename, error);
+        }
+
+        synchronized BulkResult finish(long elapsedNanos) {
+            this.elapsedNanos = elapsedNanos;
+            return this;
+        }
+
+        public int requested() {
+            return requested;
+        }
+
+        /** Files transferred from a server. */
+        public synchronized int downloaded() {
+            return downloaded;
+        }
+
+        /** Files copied from the local content store instead. */
+        public synchronized int unchanged() {
+            return unchanged;
+        }
+
+        /** Failed files and why, in the order they failed. */
+        public synchronized Map<String, Throwable> failures() {
+            return new LinkedHashMap<>(failures);
+        }
+
+        public synchronized long bytesReceived() {
+            return bytesReceived;
+        }
+
+        public synchronized long elapsedNanos() {
+            return elapsedNanos;
+        }
+
+        public synchronized double bytesPerSecond() {
+            return elapsedNanos == 0 ? 0 : bytesReceived * 1e9 / elapsedNanos;
+        }
+
+        public synchronized double filesPerSecond() {
+            return elapsedNanos == 0 ? 0 : (downloaded + unchanged) * 1e9 / elapsedNanos;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format("%d of %d files (%d downloaded, %d unchanged), %d failed, %.1f MB in %.2f s"
+                                 + " (%.1f MB/s, %.1f files/s)",
+                                 downloaded + unchanged, requested, downloaded, unchanged, failures.size(),
+                                 bytesReceived / 1e6, elapsedNanos / 1e9, bytesPerSecond() / 1e6, filesPerSecond());
+        }
+    }
+
+    /**
+     * Callbacks for watching downloads. started and progress are called on
+     * the download thread for every transfer; finished and failed once per
+     * file of a bulk download.
+     */
+    public interface Listener {
+        default void started(String filename, long fileSize, long resumeFrom, boolean compressed) {
+        }
+
+        // done counts bytes of the file written so far, including a resumed part
+        default void progress(String filename, long done, long fileSize) {
+        }
+
+        default void finished(Download download) {
+        }
+
+        default void failed(String filename, Throwable error) {
+        }
+
+        // The file was saved but not added to the content store, so the
+        // same content will be transferred again next time
+        default void notCached(Path file, IOException error) {
+        }
+
+        // A replica was left out of a parallel download, or failed one of
+        // its chunks; the other replicas take over
+        default void replicaFailed(String filename, String server, String reason) {
+        }
+    }
+
+    /**
+     * Runs downloads at most maxActive at a time and at most maxPerServer
+     * per server. Waiting downloads queue per server; a free slot goes to
+     * the next server in turn, so one server with a long queue doesn't hold
+     * up the others.
+     */
+    static class TransferScheduler {
+        private final Executor executor;
+        private final int maxActive;
+        private final int maxPerServer;
+        // Servers with running or waiting downloads, in the order they take turns
+        private final LinkedHashMap<String, Server> servers = new LinkedHashMap<>();
+        private int active;
+
+        TransferScheduler(Executor executor, int maxActive, int maxPerServer) {
+            this.executor = executor;
+            this.maxActive = maxActive;
+            this.maxPerServer = maxPerServer;
+        }
+
+        <T> CompletableFuture<T> submit(String server, Callable<T> task) {
+            CompletableFuture<T> future = new CompletableFuture<>();
+            Runnable run = () -> {
+                try {
+                    future.complete(task.call());
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                } finally {
+                    finished(server);
+                }
+            };
+            synchronized (this) {
+                servers.computeIfAbsent(server, key -> new Server()).waiting.add(run);
+                dispatch();
+            }
+            return future;
+        }
+
+        /** The location whose server has the fewest downloads running or waiting. */
+        synchronized Location leastBusy(List<Location> locations) {
+            Location best = null;
+            int bestLoad = Integer.MAX_VALUE;
+            for (Location location : locations) {
+                Server server = servers.get(location.serverKey());
+                int load = server == null ? 0 : server.active + server.waiting.size();
+                if (load < bestLoad) {
+                    best = location;
+                    bestLoad = load;
+                }
+            }
+            return best;
+        }
+
+        private synchronized void finished(String key) {
+            Server server = servers.get(key);
+            server.active--;
+            active--;
+            if (server.active == 0 && server.waiting.isEmpty()) {
+                servers.remove(key);
+            }
+            dispatch();
+        }
+
+        // Starts waiting downloads while slots are free
+        private void dispatch() {
+            while (active < maxActive) {
+                String next = null;
+                for (Map.Entry<String, Server> entry : servers.entrySet()) {
+                    if (!entry.getValue().waiting.isEmpty() && entry.getValue().active < maxPerServer) {
+                        next = entry.getKey();
+                        break;
+                    }
+                }
+                if (next == null) {
+                    return;
+                }
+                // To the back of the line, so servers take turns
+                Server server = servers.remove(next);
+                servers.put(next, server);
+                server.active++;
+                active++;
+                executor.execute(server.waiting.poll());
+            }
+        }
+
+        private static class Server {
+            final ArrayDeque<Runnable> waiting = new ArrayDeque<>();
+            int active;
+        }
+    }
+}
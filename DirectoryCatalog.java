@@ -0,0 +1,196 @@
+// DirectoryCatalog.java
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * The regular files of one directory with their size, modification time and
+ * content hash, held in memory and sorted by name.
+ *
+ * A full scan builds it: the directory is read once and the entries are
+ * stat'ed in parallel, which hides the per-call latency of network storage.
+ * After that, filesystem change events keep it current through refresh()
+ * and remove(), so GET and LIST are answered from memory without touching
+ * the disk. Files are hashed only when the hash cache has no current digest.
+ */
+public class DirectoryCatalog {
+    // Names stat'ed per task during a scan
+    private static final int SCAN_BATCH = 256;
+
+    private final Path directory;
+    private final FileHashes hashes;
+    private final int scanThreads;
+    private final int hashThreads;
+    // Name order for listings, and a hash index for single lookups, which a
+    // skip list would answer with a cache miss per level
+    private final ConcurrentSkipListMap<String, Entry> entries = new ConcurrentSkipListMap<>();
+    private final Map<String, Entry> byName = new ConcurrentHashMap<>();
+
+    public DirectoryCatalog(Path directory, FileHashes hashes, int scanThreads, int hashThreads) {
+        this.directory = directory;
+        this.hashes = hashes;
+        this.scanThreads = scanThreads;
+        this.hashThreads = hashThreads;
+    }
+
+    /** Rebuilds the catalog from the directory and returns all entries in name order. */
+    public List<Entry> rescan() throws IOException {
+        List<String> names = new ArrayList<>();
+        try (DirectoryStream<Path> listing = Files.newDirectoryStream(directory)) {
+            for (Path path : listing) {
+                names.add(path.getFileName().toString());
+            }
+        }
+        List<Entry> found = read(names);
+        Set<String> present = new HashSet<>();
+        for (Entry entry : found) {
+            present.add(entry.name);
+            put(entry);
+        }
+        Set<String> gone = new HashSet<>(entries.keySet());
+        gone.removeAll(present);
+        remove(gone);
+        return new ArrayList<>(entries.values());
+    }
+
+    /**
+     * Reads the named files again after they changed. Names that are no
+     * longer regular files are dropped; the current entries are returned.
+     */
+    public List<Entry> refresh(Collection<String> names) {
+        List<Entry> found = read(names);
+        Set<String> gone = new HashSet<>(names);
+        for (Entry entry : found) {
+            gone.remove(entry.name);
+            put(entry);
+        }
+        remove(gone);
+        return found;
+    }
+
+    public void remove(Collection<String> names) {
+        for (String name : names) {
+            byName.remove(name);
+            entries.remove(name);
+        }
+    }
+
+    private void put(Entry entry) {
+        entries.put(entry.name, entry);
+        byName.put(entry.name, entry);
+    }
+
+    /** The entry for a file name, or null if the directory has no such regular file. */
+    public Entry get(String name) {
+        return byName.get(name);
+    }
+
+    /** Whether name has an entry that still matches the file's size and modification time. */
+    public boolean isCurrent(String name) {
+        Entry entry = byName.get(name);
+        if (entry == null) {
+            return false;
+        }
+        BasicFileAttributes stat = DepartmentServer.regularFileAttributes(directory.resolve(name));
+        return stat != null && stat.size() == entry.size && stat.lastModifiedTime().toMillis() == entry.modified;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /** All entries in name order; a live view that reflects later changes. */
+    public Collection<Entry> entries() {
+        return entries.values();
+    }
+
+    /**
+     * Up to pageSize + 1 names after the given one (null for the first
+     * page), in name order; the extra name means more pages follow.
+     */
+    public List<String> page(String after, int pageSize) {
+        NavigableMap<String, Entry> rest = after == null ? entries : entries.tailMap(after, false);
+        // Not sized from rest.size(), which walks the whole skip list
+        List<String> page = new ArrayList<>();
+        for (String name : rest.keySet()) {
+            if (page.size() > pageSize) {
+                break;
+            }
+            page.add(name);
+        }
+        return page;
+    }
+
+    // Stats the names in parallel batches, then hashes those whose digest
+    // isn't cached. Names that are not regular files are left out.
+    private List<Entry> read(Collection<String> names) {
+        List<String> all = new ArrayList<>(names);
+        Map<String, BasicFileAttributes> attributes = new ConcurrentHashMap<>();
+        ExecutorService pool = Executors.newFixedThreadPool(
+            Math.max(1, Math.min(scanThreads, (all.size() + SCAN_BATCH - 1) / SCAN_BATCH)));
+        try {
+            List<Future<?>> pending = new ArrayList<>();
+            for (int start = 0; start < all.size(); start += SCAN_BATCH) {
+                List<String> batch = all.subList(start, Math.min(start + SCAN_BATCH, all.size()));
+                pending.add(pool.submit(() -> {
+                    for (String name : batch) {
+                        BasicFileAttributes stat = DepartmentServer.regularFileAttributes(directory.resolve(name));
+                        if (stat != null) {
+                            attributes.put(name, stat);
+                        }
+                    }
+                }));
+            }
+            for (Future<?> result : pending) {
+                result.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+
+        List<Path> unhashed = new ArrayList<>();
+        for (Map.Entry<String, BasicFileAttributes> file : attributes.entrySet()) {
+            Path path = directory.resolve(file.getKey());
+            if (hashes.peek(path, file.getValue()) == null) {
+                unhashed.add(path);
+            }
+        }
+        if (!unhashed.isEmpty()) {
+            // Fills the hash cache, which peek() reads below
+            hashes.sha256All(unhashed, hashThreads);
+        }
+
+        List<Entry> found = new ArrayList<>(attributes.size());
+        for (Map.Entry<String, BasicFileAttributes> file : attributes.entrySet()) {
+            Path path = directory.resolve(file.getKey());
+            BasicFileAttributes stat = file.getValue();
+            // Null if the file changed again while it was hashed; the next
+            // change event refreshes it
+            String hash = hashes.peek(path, stat);
+            found.add(new Entry(file.getKey(), stat.size(), stat.lastModifiedTime().toMillis(), hash));
+        }
+        found.sort(Comparator.comparing(entry -> entry.name));
+        return found;
+    }
+
+    public static class Entry {
+        public final String name;
+        public final long size;
+        public final long modified;
+        // SHA-256 of the content, or null if it could not be hashed
+        public final String hash;
+
+        Entry(String name, long size, long modified, String hash) {
+            this.name = name;
+            this.size = size;
+            this.modified = modified;
+            this.hash = hash;
+        }
+    }
+}
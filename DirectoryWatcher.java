@@ -0,0 +1,116 @@
+// DirectoryWatcher.java
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches one directory with a WatchService and reports coalesced changes.
+ *
+ * Events are collected until the directory has been quiet for the coalesce
+ * window (or the window has been exceeded four times over, so a steady
+ * stream of writes still gets reported), then each touched name is checked
+ * once against the filesystem. A file created and deleted inside one window
+ * is therefore never reported, and a burst of events for one file becomes a
+ * single change.
+ */
+public class DirectoryWatcher implements Runnable {
+
+    public interface Listener {
+        /** Names that now exist as regular files, names that no longer do, and names modified in place. */
+        void filesChanged(Set<String> added, Set<String> removed, Set<String> modified);
+
+        /** The event queue overflowed; the directory must be rescanned. */
+        void rescanNeeded();
+    }
+
+    private final Path directory;
+    private final long coalesceMillis;
+    private final Listener listener;
+
+    public DirectoryWatcher(Path directory, long coalesceMillis, Listener listener) {
+        this.directory = directory;
+        this.coalesceMillis = coalesceMillis;
+        this.listener = listener;
+    }
+
+    /** Runs the watch loop on a daemon thread. */
+    public Thread start(String name) {
+        Thread thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    @Override
+    public void run() {
+        try (WatchService watcher = directory.getFileSystem().newWatchService()) {
+            directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+
+            Set<String> touched = new HashSet<>();
+            Set<String> modified = new HashSet<>();
+            boolean overflow = false;
+            long firstEventAt = 0;
+
+            while (!Thread.currentThread().isInterrupted()) {
+                WatchKey key = touched.isEmpty() && !overflow
+                    ? watcher.take()
+                    : watcher.poll(coalesceMillis, TimeUnit.MILLISECONDS);
+
+                if (key != null) {
+                    if (firstEventAt == 0) {
+                        firstEventAt = System.currentTimeMillis();
+                    }
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            overflow = true;
+                            continue;
+                        }
+                        String name = ((Path) event.context()).getFileName().toString();
+                        touched.add(name);
+                        if (event.kind() == StandardWatchEventKinds.ENTRY_MODIFY) {
+                            modified.add(name);
+                        }
+                    }
+                    if (!key.reset()) {
+                        Log.error("Watch on %s is no longer valid", directory);
+                        return;
+                    }
+                    boolean windowExceeded = System.currentTimeMillis() - firstEventAt > coalesceMillis * 4;
+                    if (!windowExceeded) {
+                        continue;
+                    }
+                }
+
+                if (overflow) {
+                    listener.rescanNeeded();
+                } else if (!touched.isEmpty()) {
+                    report(touched, modified);
+                }
+                touched = new HashSet<>();
+                modified = new HashSet<>();
+                overflow = false;
+                firstEventAt = 0;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            Log.error("Cannot watch %s: %s", directory, e.getMessage());
+        }
+    }
+
+    private void report(Set<String> touched, Set<String> modified) {
+        Set<String> added = new HashSet<>();
+        Set<String> removed = new HashSet<>();
+        for (String name : touched) {
+            if (Files.isRegularFile(directory.resolve(name))) {
+                added.add(name);
+            } else {
+                removed.add(name);
+            }
+        }
+        modified.retainAll(added);
+        listener.filesChanged(added, removed, modified);
+    }
+}
@@ -0,0 +1,247 @@
+// DownloadCompressor.java
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
+
+/**
+ * On-the-fly zlib compression of downloads for clients that accept it.
+ *
+ * Whether a file is worth compressing is decided once per file version.
+ * Names of already-compressed formats (archives, images, audio, video,
+ * office documents) are skipped. For other files the first SAMPLE_BYTES
+ * are deflated at the fastest level, and the file is compressed only if
+ * that saves at least MIN_SAVING. The verdict is kept until the file's
+ * size or modification time changes.
+ *
+ * Files are compressed in CHUNK_SIZE pieces, so a transfer needs the same
+ * memory whatever the file size. Compressed forms of files up to
+ * maxCachedFileBytes are kept, least recently used out first, within
+ * cacheBytes. Popular handouts are therefore compressed once rather than
+ * on every request.
+ */
+public class DownloadCompressor {
+    static final int CHUNK_SIZE = 64 * 1024;
+    private static final int SAMPLE_BYTES = 64 * 1024;
+    private static final double MIN_SAVING = 0.10;
+    // Too small for compression to pay for the extra round of CPU work
+    private static final long MIN_FILE_BYTES = 512;
+    private static final Set<String> COMPRESSED_TYPES = Set.of(
+        "zip", "gz", "tgz", "bz2", "xz", "zst", "7z", "rar", "jar", "war",
+        "jpg", "jpeg", "png", "gif", "webp", "heic",
+        "mp3", "m4a", "aac", "ogg", "flac", "opus",
+        "mp4", "m4v", "mkv", "avi", "mov", "webm",
+        "docx", "xlsx", "pptx", "odt", "ods", "odp", "epub");
+
+    private final int level;
+    private final long cacheBytes;
+    private final long maxCachedFileBytes;
+    private final Map<Path, Verdict> verdicts = new ConcurrentHashMap<>();
+    private final LinkedHashMap<Path, Compressed> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedBytes;
+    private final LongAdder responses = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+
+    public DownloadCompressor(int level, long cacheBytes, long maxCachedFileBytes) {
+        this.level = level;
+        this.cacheBytes = cacheBytes;
+        this.maxCachedFileBytes = Math.min(maxCachedFileBytes, cacheBytes);
+    }
+
+    /** Whether the current version of the file should be sent compressed. */
+    public boolean shouldCompress(Path file) {
+        BasicFileAttributes attributes = DepartmentServer.regularFileAttributes(file);
+        if (attributes == null || attributes.size() < MIN_FILE_BYTES || isCompressedType(file)) {
+            return false;
+        }
+        long size = attributes.size();
+        long modified = attributes.lastModifiedTime().toMillis();
+        Verdict verdict = verdicts.get(file);
+        if (verdict == null || verdict.size != size || verdict.modified != modified) {
+            verdict = new Verdict(size, modified, sampleSaving(file) >= MIN_SAVING);
+            verdicts.put(file, verdict);
+        }
+        return verdict.compress;
+    }
+
+    /**
+     * Writes the whole file to out as one zlib stream, from the compressed
+     * cache when possible. data, if not null, holds the file's contents
+     * already (from the hot-file cache). Returns the compressed size.
+     */
+    public long write(Path file, ByteBuffer data, OutputStream out) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        long size = attributes.size();
+        long modified = attributes.lastModifiedTime().toMillis();
+        responses.increment();
+        bytesIn.add(size);
+
+        byte[] cached = cached(file, size, modified);
+        if (cached != null) {
+            cacheHits.increment();
+            for (int offset = 0; offset < cached.length; offset += CHUNK_SIZE) {
+                out.write(cached, offset, Math.min(CHUNK_SIZE, cached.length - offset));
+            }
+            bytesOut.add(cached.length);
+            return cached.length;
+        }
+
+        // Keep a copy of the output for the cache while streaming it
+        ByteArrayOutputStream copy = size <= maxCachedFileBytes ? new ByteArrayOutputStream((int) (size / 2)) : null;
+        long written = 0;
+        Deflater deflater = new Deflater(level);
+        byte[] input = new byte[CHUNK_SIZE];
+        byte[] output = new byte[CHUNK_SIZE];
+        try (FileChannel channel = data == null ? FileChannel.open(file, StandardOpenOption.READ) : null) {
+            ByteBuffer source = data != null ? data.duplicate() : null;
+            while (true) {
+                int length;
+                if (source != null) {
+                    length = Math.min(CHUNK_SIZE, source.remaining());
+                    source.get(input, 0, length);
+                } else {
+                    length = Math.max(0, channel.read(ByteBuffer.wrap(input)));
+                }
+                if (length == 0) {
+                    break;
+                }
+                deflater.setInput(input, 0, length);
+                while (!deflater.needsInput()) {
+                    written += drain(deflater, output, out, copy);
+                }
+            }
+            deflater.finish();
+            while (!deflater.finished()) {
+                written += drain(deflater, output, out, copy);
+            }
+        } finally {
+            deflater.end();
+        }
+        bytesOut.add(written);
+
+        if (copy != null) {
+            BasicFileAttributes after = Files.readAttributes(file, BasicFileAttributes.class);
+            if (after.size() == size && after.lastModifiedTime().toMillis() == modified) {
+                store(file, new Compressed(size, modified, copy.toByteArray()));
+            }
+        }
+        return written;
+    }
+
+    /** "responses bytes_in bytes_out ratio cache_hits cached_files cached_bytes" */
+    public String stats() {
+        long in = bytesIn.sum();
+        long outBytes = bytesOut.sum();
+        int files;
+        long bytes;
+        synchronized (cache) {
+            files = cache.size();
+            bytes = cachedBytes;
+        }
+        return String.format(Locale.ROOT, "%d %d %d %.3f %d %d %d", responses.sum(), in, outBytes,
+                             in == 0 ? 0.0 : (double) outBytes / in, cacheHits.sum(), files, bytes);
+    }
+
+    private static int drain(Deflater deflater, byte[] output, OutputStream out,
+                             ByteArrayOutputStream copy) throws IOException {
+        int length = deflater.deflate(output);
+        if (length > 0) {
+            out.write(output, 0, length);
+            if (copy != null) {
+                copy.write(output, 0, length);
+            }
+        }
+        return length;
+    }
+
+    private static boolean isCompressedType(Path file) {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return dot >= 0 && COMPRESSED_TYPES.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    // Fraction saved by fast compression of the start of the file
+    private static double sampleSaving(Path file) {
+        byte[] sample = new byte[SAMPLE_BYTES];
+        int length;
+        try (InputStream in = Files.newInputStream(file)) {
+            length = in.readNBytes(sample, 0, sample.length);
+        } catch (IOException e) {
+            return 0;
+        }
+        if (length == 0) {
+            return 0;
+        }
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(sample, 0, length);
+            deflater.finish();
+            byte[] output = new byte[CHUNK_SIZE];
+            long compressed = 0;
+            while (!deflater.finished()) {
+                compressed += deflater.deflate(output);
+            }
+            return 1.0 - (double) compressed / length;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private byte[] cached(Path file, long size, long modified) {
+        synchronized (cache) {
+            Compressed entry = cache.get(file);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.size != size || entry.modified != modified) {
+                cache.remove(file);
+                cachedBytes -= entry.bytes.length;
+                return null;
+            }
+            return entry.bytes;
+        }
+    }
+
+    private void store(Path file, Compressed entry) {
+        synchronized (cache) {
+            Compressed previous = cache.put(file, entry);
+            cachedBytes += entry.bytes.length - (previous != null ? previous.bytes.length : 0);
+            Iterator<Compressed> eldest = cache.values().iterator();
+            while (cachedBytes > cacheBytes && eldest.hasNext()) {
+                cachedBytes -= eldest.next().bytes.length;
+                eldest.remove();
+            }
+        }
+    }
+
+    private static class Verdict {
+        final long size;
+        final long modified;
+        final boolean compress;
+
+        Verdict(long size, long modified, boolean compress) {
+            this.size = size;
+            this.modified = modified;
+            this.compress = compress;
+        }
+    }
+
+    private static class Compressed {
+        final long size;
+        final long modified;
+        final byte[] bytes;
+
+        Compressed(long size, long modified, byte[] bytes) {
+            this.size = size;
+            this.modified = modified;
+            this.bytes = bytes;
+        }
+    }
+}
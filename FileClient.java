@@ -1,17 +1,26 @@
 // FileClient.java
-import java.io.*;
-import java.net.*;
+import java.io.IOException;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
+/**
+ * Interactive menu on top of DfsClient, which does the actual work.
+ */
 public class FileClient {
-    private final String indexServerHost;
-    private final int indexServerPort;
+    // Results shown per name search
+    private static final int SEARCH_LIMIT = 20;
+    
     private final Scanner scanner;
+    private final DfsClient client;
     
     public FileClient(String indexServerHost, int indexServerPort) {
-        this.indexServerHost = indexServerHost;
-        this.indexServerPort = indexServerPort;
         this.scanner = new Scanner(System.in);
+        this.client = new DfsClient(indexServerHost, indexServerPort);
+        if (client.contentStoreError() != null) {
+            System.err.println(client.contentStoreError().getMessage());
+        }
     }
     
     public void start() {
@@ -20,7 +29,10 @@ public class FileClient {
             System.out.println("1. Search for a file");
             System.out.println("2. List all available files");
             System.out.println("3. Download a file");
-            System.out.println("4. Exit");
+            System.out.println("4. Parallel download from all replicas");
+            System.out.println("5. Find files by partial or misspelled name");
+            System.out.println("6. Download several files (names or a pattern)");
+            System.out.println("7. Exit");
             System.out.print("Choose option: ");
             
             int choice = scanner.nextInt();
@@ -30,7 +42,11 @@ public class FileClient {
                 case 1 -> searchFile();
                 case 2 -> listAllFiles();
                 case 3 -> downloadFile();
-                case 4 -> {
+                case 4 -> parallelDownload();
+                case 5 -> findByName();
+                case 6 -> bulkDownload();
+                case 7 -> {
+                    client.close();
                     System.out.println("Exiting...");
                     return;
                 }
@@ -43,51 +59,75 @@ public class FileClient {
         System.out.print("Enter filename to search: ");
         String filename = scanner.nextLine();
         
-        try (Socket socket = new Socket(indexServerHost, indexServerPort);
-             PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
-            
-            out.println("SEARCH " + filename);
-            String response = in.readLine();
-            
-            if (response.startsWith("FOUND")) {
-                System.out.println("File found at:");
-                String[] locations = response.substring(6).split(",");
-                for (int i = 0; i < locations.length; i++) {
-                    String[] info = locations[i].split("\\|");
-                    System.out.println((i+1) + ". Server: " + info[0] + 
-                                     ", File: " + info[3]);
-                }
-            } else {
-                System.out.println("File not found in the system");
+        // Always asks the index, and refreshes the cached answer
+        List<DfsClient.Location> locations = await(client.search(filename), "Error connecting to index server: ");
+        if (locations == null) {
+            return;
+        }
+        if (!locations.isEmpty()) {
+            System.out.println("File found at:");
+            for (int i = 0; i < locations.size(); i++) {
+                DfsClient.Location info = locations.get(i);
+                System.out.println((i+1) + ". Server: " + info.server + 
+                                 ", File: " + info.filename + 
+                                 (info.hash != null ? ", SHA-256: " + info.hash.substring(0, 12) + "..." : ""));
+            }
+        } else {
+            System.out.println("File not found in the system");
+        }
+    }
+    
+    private void findByName() {
+        System.out.print("Enter part of a filename: ");
+        String query = scanner.nextLine().trim();
+        if (query.isEmpty()) {
+            return;
+        }
+        
+        // Names starting with the text first, then ones containing it;
+        // only if neither matches, names within a typo or two
+        List<String> prefix = await(client.searchNames(DfsClient.NameMatch.PREFIX, query, SEARCH_LIMIT),
+                                    "Error connecting to index server: ");
+        List<String> substring = await(client.searchNames(DfsClient.NameMatch.SUBSTRING, query, SEARCH_LIMIT),
+                                       "Error connecting to index server: ");
+        if (prefix == null || substring == null) {
+            return;
+        }
+        Set<String> names = new LinkedHashSet<>(prefix);
+        names.addAll(substring);
+        if (names.isEmpty()) {
+            List<String> fuzzy = await(client.searchNames(DfsClient.NameMatch.FUZZY, query, SEARCH_LIMIT),
+                                       "Error connecting to index server: ");
+            if (fuzzy == null) {
+                return;
+            }
+            names.addAll(fuzzy);
+            if (!names.isEmpty()) {
+                System.out.println("No exact matches. Did you mean:");
+            }
+        }
+        
+        if (names.isEmpty()) {
+            System.out.println("No matching files");
+        } else {
+            for (String name : names) {
+                System.out.println("- " + name);
             }
-            
-        } catch (IOException e) {
-            System.err.println("Error connecting to index server: " + e.getMessage());
         }
     }
     
     private void listAllFiles() {
-        try (Socket socket = new Socket(indexServerHost, indexServerPort);
-             PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
-            
-            out.println("LIST_ALL");
-            String response = in.readLine();
-            
-            if (response.startsWith("FILES")) {
+        // Names are printed as they arrive, already sorted by the index
+        boolean[] started = new boolean[1];
+        Long count = await(client.list(file -> {
+            if (!started[0]) {
+                started[0] = true;
                 System.out.println("Available files:");
-                String[] files = response.substring(6).split(",");
-                Arrays.sort(files);
-                for (String file : files) {
-                    System.out.println("- " + file);
-                }
-            } else {
-                System.out.println("No files available");
             }
-            
-        } catch (IOException e) {
-            System.err.println("Error connecting to index server: " + e.getMessage());
+            System.out.println("- " + file);
+        }), "Error connecting to index server: ");
+        if (count != null && count == 0) {
+            System.out.println("No files available");
         }
     }
     
@@ -96,101 +136,144 @@ public class FileClient {
         String filename = scanner.nextLine();
         
         // First, search for the file
-        String serverInfo;
-        try (Socket socket = new Socket(indexServerHost, indexServerPort);
-             PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
-            
-            out.println("SEARCH " + filename);
-            String response = in.readLine();
-            
-            if (response.startsWith("FOUND")) {
-                String[] locations = response.substring(6).split(",");
-                if (locations.length > 1) {
-                    System.out.println("File found on multiple servers. Choose one:");
-                    for (int i = 0; i < locations.length; i++) {
-                        String[] info = locations[i].split("\\|");
-                        System.out.println((i+1) + ". Server: " + info[0]);
-                    }
-                    System.out.print("Choose server (1-" + locations.length + "): ");
-                    int choice = scanner.nextInt();
-                    scanner.nextLine();
-                    serverInfo = locations[choice - 1];
-                } else {
-                    serverInfo = locations[0];
-                }
-            } else {
-                System.out.println("File not found");
-                return;
+        List<DfsClient.Location> locations = await(client.locate(filename), "Error connecting to index server: ");
+        if (locations == null) {
+            return;
+        }
+        DfsClient.Location location;
+        if (locations.isEmpty()) {
+            System.out.println("File not found");
+            return;
+        } else if (locations.size() > 1) {
+            // The index lists the least loaded server first
+            System.out.println("File found on multiple servers. Choose one:");
+            for (int i = 0; i < locations.size(); i++) {
+                System.out.println((i+1) + ". Server: " + locations.get(i).server +
+                                   (i == 0 ? " (least loaded)" : ""));
             }
-            
-        } catch (IOException e) {
-            System.err.println("Error connecting to index server: " + e.getMessage());
+            System.out.print("Choose server (1-" + locations.size() + "): ");
+            int choice = scanner.nextInt();
+            scanner.nextLine();
+            location = locations.get(choice - 1);
+        } else {
+            location = locations.get(0);
+        }
+        
+        Path target = Paths.get(Config.getDownloadDir(), localName(location.filename));
+        DfsClient.Download download = await(client.download(location, target, new ConsoleProgress()), "Error: ");
+        if (download == null) {
+            return;
+        }
+        switch (download.outcome) {
+            case COPIED -> System.out.println("Same content already in the local cache, copied: " + target);
+            case NOT_MODIFIED -> System.out.println("Unchanged since the last download, copied from the local cache: " + target);
+            case DOWNLOADED -> System.out.println("\nDownload completed: " + target);
+        }
+    }
+    
+    private void parallelDownload() {
+        System.out.print("Enter filename to download: ");
+        String filename = scanner.nextLine();
+        
+        List<DfsClient.Location> locations = await(client.locate(filename), "Error connecting to index server: ");
+        if (locations == null) {
+            return;
+        }
+        if (locations.isEmpty()) {
+            System.out.println("File not found");
             return;
         }
         
-        if (serverInfo != null) {
-            String[] info = serverInfo.split("\\|");
-            downloadFromServer(info[1], Integer.parseInt(info[2]), info[3]);
+        String localFilename = localName(locations.get(0).filename);
+        System.out.println("Fetching from " + locations.size() + " replica(s)...");
+        Path target = Paths.get(Config.getDownloadDir(), localFilename);
+        if (await(client.downloadFromReplicas(filename, target, new ConsoleProgress()), "\nError: ") != null) {
+            System.out.println("\nDownload completed: " + Config.getDownloadDir() + "/" + localFilename);
         }
     }
     
-    private void downloadFromServer(String serverHost, int serverPort, String filename) {
-        System.out.print("Enter local filename to save as (or press Enter for same name): ");
-        String localFilename = scanner.nextLine();
-        if (localFilename.isEmpty()) {
-            localFilename = filename;
+    private void bulkDownload() {
+        System.out.print("Enter filenames separated by commas, or a pattern such as *.pdf: ");
+        String input = scanner.nextLine().trim();
+        if (input.isEmpty()) {
+            return;
         }
         
-        try (Socket socket = new Socket(serverHost, serverPort);
-             PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
-            
-            // Request file download
-            out.println("DOWNLOAD " + filename);
+        Path directory = Paths.get(Config.getDownloadDir());
+        DfsClient.Listener listener = new DfsClient.Listener() {
+            @Override
+            public void finished(DfsClient.Download download) {
+                System.out.println("Done: " + download.filename);
+            }
             
-            // Read response
-            String response = in.readLine();
-            if (response.startsWith("SIZE")) {
-                long fileSize = Long.parseLong(response.split(" ")[1]);
-                System.out.println("Downloading " + filename + " (" + fileSize + " bytes)...");
-                
-                // Create downloads directory
-                new File("downloads").mkdirs();
-                
-                // Download file
-                try (FileOutputStream fileOut = new FileOutputStream("downloads/" + localFilename);
-                     BufferedOutputStream bout = new BufferedOutputStream(fileOut)) {
-                    
-                    byte[] buffer = new byte[4096];
-                    int bytesRead;
-                    long totalRead = 0;
-                    
-                    InputStream socketIn = socket.getInputStream();
-                    while (totalRead < fileSize && 
-                           (bytesRead = socketIn.read(buffer)) != -1) {
-                        bout.write(buffer, 0, bytesRead);
-                        totalRead += bytesRead;
-                        
-                        // Show progress
-                        if (fileSize > 0) {
-                            int percent = (int)((totalRead * 100) / fileSize);
-                            System.out.print("\rProgress: " + percent + "%");
-                        }
-                    }
-                    bout.flush();
-                    System.out.println("\nDownload completed: downloads/" + localFilename);
-                    
-                } catch (IOException e) {
-                    System.err.println("Error saving file: " + e.getMessage());
-                }
-                
-            } else if (response.startsWith("ERROR")) {
-                System.out.println("Error: " + response.substring(6));
+            @Override
+            public void failed(String filename, Throwable error) {
+                System.out.println("Failed: " + filename + " (" + error.getMessage() + ")");
             }
             
-        } catch (IOException e) {
-            System.err.println("Error connecting to file server: " + e.getMessage());
+            @Override
+            public void notCached(Path file, IOException error) {
+                ConsoleProgress.reportNotCached(file, error);
+            }
+        };
+        // Glob characters make it a pattern over the whole index
+        CompletableFuture<DfsClient.BulkResult> call = input.matches(".*[*?\\[{].*")
+            ? client.downloadMatching(input, directory, listener)
+            : client.downloadBatch(Arrays.asList(input.split("\\s*,\\s*")), directory, listener);
+        DfsClient.BulkResult result = await(call, "Error connecting to index server: ");
+        if (result != null) {
+            System.out.println(result.requested() == 0 ? "No matching files" : result.toString());
+        }
+    }
+    
+    private String localName(String filename) {
+        System.out.print("Enter local filename to save as (or press Enter for same name): ");
+        String localFilename = scanner.nextLine();
+        return localFilename.isEmpty() ? filename : localFilename;
+    }
+    
+    // The call's result, or null after printing why it failed
+    private static <T> T await(CompletableFuture<T> call, String failure) {
+        try {
+            return call.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            System.err.println(failure + cause.getMessage());
+            return null;
+        }
+    }
+    
+    /** Prints what a single download is doing. */
+    private static class ConsoleProgress implements DfsClient.Listener {
+        @Override
+        public void started(String filename, long fileSize, long resumeFrom, boolean compressed) {
+            if (resumeFrom > 0) {
+                System.out.println("Resuming " + filename + " at byte " + resumeFrom + " of " + fileSize + "...");
+            } else {
+                System.out.println("Downloading " + filename + " (" + fileSize + " bytes" +
+                                   (compressed ? ", compressed" : "") + ")...");
+            }
+        }
+        
+        @Override
+        public void progress(String filename, long done, long fileSize) {
+            if (fileSize > 0) {
+                System.out.print("\rProgress: " + (done * 100) / fileSize + "%");
+            }
+        }
+        
+        @Override
+        public void notCached(Path file, IOException error) {
+            reportNotCached(file, error);
+        }
+        
+        @Override
+        public void replicaFailed(String filename, String server, String reason) {
+            System.err.println("\n" + server + ": " + reason);
+        }
+        
+        static void reportNotCached(Path file, IOException error) {
+            System.err.println("Could not add " + file + " to the download cache: " + error.getMessage());
         }
     }
     
@@ -206,4 +289,4 @@ public class FileClient {
         FileClient client = new FileClient(host, port);
         client.start();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,27 @@
+// FileEntry.java
+
+/**
+ * One file in REGISTER and ADD_FILES lists: its name, optionally followed by
+ * "/" and the SHA-256 of its content. A slash cannot be part of a file name,
+ * so names still parse unambiguously, and lists from servers that send no
+ * hashes stay valid.
+ */
+public final class FileEntry {
+    private FileEntry() {
+    }
+
+    public static String format(String name, String hash) {
+        return hash == null || hash.isEmpty() ? name : name + "/" + hash;
+    }
+
+    public static String name(String entry) {
+        int slash = entry.lastIndexOf('/');
+        return slash < 0 ? entry : entry.substring(0, slash);
+    }
+
+    /** The content hash, or "" when the entry has none. */
+    public static String hash(String entry) {
+        int slash = entry.lastIndexOf('/');
+        return slash < 0 ? "" : entry.substring(slash + 1);
+    }
+}
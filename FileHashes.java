@@ -0,0 +1,223 @@
+// FileHashes.java
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * SHA-256 digests of files, remembered per path until the file's size or
+ * modification time changes, so a file is read for hashing only once per
+ * version rather than on every request.
+ *
+ * With a cache file the digests also survive restarts: they are loaded at
+ * startup and written back by save(), so a server that restarts over an
+ * unchanged directory hashes nothing. save() only writes after new digests
+ * came in, and saveEvery() batches a burst of them into one write.
+ */
+public class FileHashes {
+    private static final int READ_SIZE = 1024 * 1024;
+
+    private final Map<Path, Entry> cache = new ConcurrentHashMap<>();
+    // Where digests are kept between runs; null for memory only
+    private final Path cacheFile;
+    // Digests were added since the cache file was last written
+    private final AtomicBoolean dirty = new AtomicBoolean();
+
+    public FileHashes() {
+        this.cacheFile = null;
+    }
+
+    /** Loads digests saved by an earlier run; a missing or damaged file just starts empty. */
+    public FileHashes(Path cacheFile) {
+        this.cacheFile = cacheFile;
+        if (!Files.exists(cacheFile)) {
+            return;
+        }
+        Properties saved = new Properties();
+        try (InputStream in = Files.newInputStream(cacheFile)) {
+            saved.load(in);
+        } catch (IOException | IllegalArgumentException e) {
+            Log.warn("Ignoring hash cache %s: %s", cacheFile, e.getMessage());
+            return;
+        }
+        for (String path : saved.stringPropertyNames()) {
+            // Value: <size> <mtime> <sha256>
+            String[] fields = saved.getProperty(path).split(" ");
+            if (fields.length == 3) {
+                cache.put(Paths.get(path), new Entry(Long.parseLong(fields[0]), Long.parseLong(fields[1]), fields[2]));
+            }
+        }
+    }
+
+    /** Lowercase hex SHA-256 of the file, from the cache when still current. */
+    public String sha256(Path file) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        String hash = peek(file, attributes);
+        if (hash != null) {
+            return hash;
+        }
+        hash = compute(file);
+        cache.put(file, new Entry(attributes.size(), attributes.lastModifiedTime().toMillis(), hash));
+        dirty.set(true);
+        return hash;
+    }
+
+    /** The cached digest if it matches these attributes, else null. Never reads the file. */
+    public String peek(Path file, BasicFileAttributes attributes) {
+        Entry entry = cache.get(file);
+        if (entry != null && entry.size == attributes.size()
+                && entry.modified == attributes.lastModifiedTime().toMillis()) {
+            return entry.hash;
+        }
+        return null;
+    }
+
+    /**
+     * Digests of all the files, hashing the ones not cached on up to
+     * threads threads at once. Files that cannot be read are left out.
+     */
+    public Map<Path, String> sha256All(Collection<Path> files, int threads) {
+        Map<Path, String> hashes = new ConcurrentHashMap<>();
+        List<Path> missing = new ArrayList<>();
+        for (Path file : files) {
+            try {
+                String hash = peek(file, Files.readAttributes(file, BasicFileAttributes.class));
+                if (hash != null) {
+                    hashes.put(file, hash);
+                } else {
+                    missing.add(file);
+                }
+            } catch (IOException e) {
+                // Gone since it was listed
+            }
+        }
+        if (missing.isEmpty()) {
+            return hashes;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, missing.size())));
+        try {
+            List<Future<?>> pending = new ArrayList<>();
+            for (Path file : missing) {
+                pending.add(pool.submit(() -> {
+                    try {
+                        hashes.put(file, sha256(file));
+                    } catch (IOException e) {
+                        Log.warn("Cannot hash %s: %s", file, e.getMessage());
+                    }
+                }));
+            }
+            for (Future<?> result : pending) {
+                result.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+        return hashes;
+    }
+
+    /** Records a digest computed elsewhere, e.g. while the file was received. */
+    public void remember(Path file, BasicFileAttributes attributes, String hash) {
+        cache.put(file, new Entry(attributes.size(), attributes.lastModifiedTime().toMillis(), hash));
+        dirty.set(true);
+    }
+
+    // Forgotten entries leave the cache file with the next save
+    public void forget(Path file) {
+        cache.remove(file);
+    }
+
+    /**
+     * Saves every intervalMillis while there are new digests, on a daemon
+     * thread, and once more when the JVM shuts down.
+     */
+    public void saveEvery(long intervalMillis) {
+        if (cacheFile == null) {
+            return;
+        }
+        ScheduledExecutorService saver = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "hash-cache-saver");
+            thread.setDaemon(true);
+            return thread;
+        });
+        saver.scheduleWithFixedDelay(this::save, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::save));
+    }
+
+    /** Writes the cache file, if there is one and digests were added since the last write. */
+    public synchronized void save() {
+        if (cacheFile == null || !dirty.getAndSet(false)) {
+            return;
+        }
+        Properties saved = new Properties();
+        for (Map.Entry<Path, Entry> entry : cache.entrySet()) {
+            Entry value = entry.getValue();
+            saved.setProperty(entry.getKey().toString(), value.size + " " + value.modified + " " + value.hash);
+        }
+        try {
+            Path parent = cacheFile.toAbsolutePath().getParent();
+            Files.createDirectories(parent);
+            Path temp = Files.createTempFile(parent, cacheFile.getFileName().toString(), ".tmp");
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                saved.store(out, "path -> size mtime sha256");
+            }
+            Files.move(temp, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            dirty.set(true);
+            Log.warn("Could not save hash cache %s: %s", cacheFile, e.getMessage());
+        }
+    }
+
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    public static String compute(Path file) throws IOException {
+        MessageDigest digest = newDigest();
+        update(digest, file);
+        return hex(digest);
+    }
+
+    /** Feeds the whole file into the digest, e.g. the part of a download already on disk. */
+    public static void update(MessageDigest digest, Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            // Small files get a small buffer; zeroing a full one would cost
+            // more than hashing them
+            ByteBuffer buffer = ByteBuffer.allocateDirect((int) Math.max(1, Math.min(READ_SIZE, channel.size())));
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+    }
+
+    public static String hex(MessageDigest digest) {
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private static class Entry {
+        final long size;
+        final long modified;
+        final String hash;
+
+        Entry(long size, long modified, String hash) {
+            this.size = size;
+            this.modified = modified;
+            this.hash = hash;
+        }
+    }
+}
@@ -0,0 +1,448 @@
+// FrameCodec.java
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Length-prefixed binary framing, offered next to the text protocol.
+ *
+ * A client switches a fresh connection to frames by sending the text line
+ * "BINARY <version>" and waiting for "BINARY_OK <version>". From then on both
+ * sides exchange frames:
+ *
+ * <pre>
+ *   u8 opcode | u32 request id | u32 payload length | payload
+ * </pre>
+ *
+ * All integers are big-endian. Strings are a u16 byte length followed by
+ * UTF-8. A file body is sent as FILE_HEADER, any number of DATA frames and
+ * END, so the reader never has to guess where the header stops and the body
+ * starts. Encoder and Decoder reuse their buffers, so steady-state encoding
+ * and field access allocate nothing.
+ */
+public final class FrameCodec {
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 9;
+    public static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+    // Requests carry a few short strings; servers refuse longer frames
+    // before buffering their payload
+    public static final int MAX_REQUEST_SIZE = 64 * 1024;
+
+    // Requests
+    public static final byte OP_SEARCH = 0x01;        // string filename
+    public static final byte OP_LIST_ALL = 0x02;      // empty, or u16 page size, string cursor ("" = start) for a PAGE
+    public static final byte OP_SEARCH_PREFIX = 0x03; // u16 limit, string query; answered with FILES or NO_FILES
+    public static final byte OP_SEARCH_SUBSTRING = 0x04; // u16 limit, string query
+    public static final byte OP_SEARCH_FUZZY = 0x05;  // u16 limit, string query
+    public static final byte OP_SEARCH_HASH = 0x06;   // string sha256; every location with that content, as FOUND
+    public static final byte OP_GET = 0x10;           // string filename
+    public static final byte OP_LIST = 0x11;          // empty, or u16 page size, string cursor ("" = start) for a PAGE
+    public static final byte OP_DOWNLOAD = 0x12;      // u64 offset, i64 length (-1 = to end), string filename,
+                                                      // optional string sha256 to answer NOT_MODIFIED on ("" = none),
+                                                      // optional u8 accepted encodings (ENCODING_DEFLATE)
+    public static final byte OP_TEST = 0x13;          // empty
+    public static final byte OP_PING = 0x20;          // empty
+    public static final byte OP_QUIT = 0x21;          // empty
+
+    // Responses
+    public static final byte OP_FOUND = 0x41;         // u16 count, then per location: server, ip, u16 port, filename;
+                                                      // optionally followed by one string sha256 per location ("" = unknown)
+    public static final byte OP_NOT_FOUND = 0x42;     // empty
+    public static final byte OP_FILES = 0x43;         // u32 count, then names
+    public static final byte OP_FILE_INFO = 0x44;     // u64 size, optional string sha256
+    public static final byte OP_FILE_NOT_FOUND = 0x45;// empty
+    public static final byte OP_FILE_HEADER = 0x46;   // u64 offset, u64 count, u64 file size, optional u8 encoding
+                                                      // of the DATA frames (0 = raw, ENCODING_DEFLATE = zlib stream),
+                                                      // optional string sha256 of the whole file
+    public static final byte OP_DATA = 0x47;          // raw file bytes
+    public static final byte OP_END = 0x48;           // empty
+    public static final byte OP_ALIVE = 0x49;         // string status
+    public static final byte OP_PONG = 0x4A;          // empty
+    public static final byte OP_NO_FILES = 0x4B;      // empty
+    public static final byte OP_PAGE = 0x4C;          // string next cursor ("" = last page), u32 count, then names
+    public static final byte OP_NOT_MODIFIED = 0x4D;  // u64 file size, string sha256
+    public static final byte OP_ERROR = 0x7F;         // string message
+
+    public static final int ENCODING_DEFLATE = 1;
+
+    private FrameCodec() {
+    }
+
+    /** Client side of the handshake; the connection speaks frames afterwards. */
+    public static void negotiate(InputStream in, OutputStream out) throws IOException {
+        out.write(("BINARY " + VERSION + "\n").getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+        String reply = DfsClient.readHeaderLine(in);
+        if (reply != null && reply.startsWith("BUSY ")) {
+            throw new IOException(reply);
+        }
+        if (reply == null || !reply.equals("BINARY_OK " + VERSION)) {
+            throw new IOException("Binary protocol refused: " + reply);
+        }
+    }
+
+    /** Server side: returns the reply line for a "BINARY <version>" request. */
+    public static String acceptVersion(String requestedVersion) {
+        return String.valueOf(VERSION).equals(requestedVersion.trim())
+            ? "BINARY_OK " + VERSION
+            : "ERROR Unsupported binary protocol version: " + requestedVersion;
+    }
+
+    /**
+     * Server side: reads the next request frame like {@link Decoder#read}, but
+     * answers one over the decoder's limit with an ERROR frame and reports
+     * the end of the session instead of buffering it.
+     */
+    public static boolean readRequest(Decoder decoder, InputStream in, Encoder encoder, OutputStream out)
+            throws IOException {
+        try {
+            return decoder.read(in);
+        } catch (FrameTooLargeException e) {
+            encoder.begin(OP_ERROR, e.requestId()).putString(e.getMessage()).writeTo(out);
+            out.flush();
+            return false;
+        }
+    }
+
+    /** Builds one frame at a time in a reusable, growable buffer. */
+    public static final class Encoder {
+        private ByteBuffer buffer;
+
+        public Encoder(int initialCapacity) {
+            buffer = ByteBuffer.allocate(Math.max(initialCapacity, HEADER_SIZE));
+        }
+
+        public Encoder() {
+            this(4096);
+        }
+
+        public Encoder begin(byte opcode, int requestId) {
+            buffer.clear();
+            buffer.put(opcode).putInt(requestId).putInt(0);
+            return this;
+        }
+
+        public Encoder putByte(int value) {
+            ensure(1);
+            buffer.put((byte) value);
+            return this;
+        }
+
+        public Encoder putShort(int value) {
+            ensure(2);
+            buffer.putShort((short) value);
+            return this;
+        }
+
+        public Encoder putInt(int value) {
+            ensure(4);
+            buffer.putInt(value);
+            return this;
+        }
+
+        public Encoder putLong(long value) {
+            ensure(8);
+            buffer.putLong(value);
+            return this;
+        }
+
+        /** Current write offset, for patching a count once it is known. */
+        public int position() {
+            return buffer.position();
+        }
+
+        public Encoder patchShort(int position, int value) {
+            buffer.putShort(position, (short) value);
+            return this;
+        }
+
+        public Encoder patchInt(int position, int value) {
+            buffer.putInt(position, value);
+            return this;
+        }
+
+        /** Writes a u16 length and the UTF-8 bytes of value without intermediate arrays. */
+        public Encoder putString(CharSequence value) {
+            int length = value.length();
+            ensure(2 + length * 3);
+            int lengthPos = buffer.position();
+            buffer.position(lengthPos + 2);
+            for (int i = 0; i < length; i++) {
+                char c = value.charAt(i);
+                if (c < 0x80) {
+                    buffer.put((byte) c);
+                } else if (c < 0x800) {
+                    buffer.put((byte) (0xC0 | (c >> 6)));
+                    buffer.put((byte) (0x80 | (c & 0x3F)));
+                } else if (Character.isHighSurrogate(c) && i + 1 < length
+                           && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, value.charAt(++i));
+                    buffer.put((byte) (0xF0 | (cp >> 18)));
+                    buffer.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+                    buffer.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+                    buffer.put((byte) (0x80 | (cp & 0x3F)));
+                } else {
+                    buffer.put((byte) (0xE0 | (c >> 12)));
+                    buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                    buffer.put((byte) (0x80 | (c & 0x3F)));
+                }
+            }
+            int byteLength = buffer.position() - lengthPos - 2;
+            if (byteLength > 0xFFFF) {
+                throw new IllegalArgumentException("String too long for frame: " + byteLength + " bytes");
+            }
+            buffer.putShort(lengthPos, (short) byteLength);
+            return this;
+        }
+
+        /** Patches the payload length and writes the whole frame. */
+        public void writeTo(OutputStream out) throws IOException {
+            buffer.putInt(5, buffer.position() - HEADER_SIZE);
+            out.write(buffer.array(), 0, buffer.position());
+        }
+
+        /**
+         * Writes just a frame header for a payload the caller streams itself,
+         * e.g. a DATA frame whose body goes out through transferTo.
+         */
+        public void writeHeader(OutputStream out, byte opcode, int requestId, int payloadLength) throws IOException {
+            buffer.clear();
+            buffer.put(opcode).putInt(requestId).putInt(payloadLength);
+            out.write(buffer.array(), 0, HEADER_SIZE);
+        }
+
+        public int size() {
+            return buffer.position();
+        }
+
+        private void ensure(int extra) {
+            if (buffer.remaining() < extra) {
+                int needed = buffer.position() + extra;
+                if (needed > MAX_FRAME_SIZE) {
+                    throw new IllegalStateException("Frame exceeds " + MAX_FRAME_SIZE + " bytes");
+                }
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(needed, buffer.capacity() * 2));
+                buffer.flip();
+                larger.put(buffer);
+                buffer = larger;
+            }
+        }
+    }
+
+    /**
+     * A frame longer than the reader accepts. Its payload is left unread, so
+     * the connection can only be answered and closed.
+     */
+    public static final class FrameTooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+        private final int requestId;
+
+        FrameTooLargeException(int requestId, int length, int maxLength) {
+            super("Frame of " + length + " bytes exceeds the limit of " + maxLength);
+            this.requestId = requestId;
+        }
+
+        public int requestId() {
+            return requestId;
+        }
+    }
+
+    /** Reads frames into a reusable buffer and exposes typed accessors over the payload. */
+    public static final class Decoder {
+        private final byte[] header = new byte[HEADER_SIZE];
+        private final CharView scratch = new CharView();
+        private final int maxLength;
+        private ByteBuffer payload;
+        private byte opcode;
+        private int requestId;
+
+        public Decoder(int initialCapacity, int maxLength) {
+            payload = ByteBuffer.allocate(Math.min(initialCapacity, maxLength));
+            this.maxLength = maxLength;
+        }
+
+        public Decoder(int initialCapacity) {
+            this(initialCapacity, MAX_FRAME_SIZE);
+        }
+
+        public Decoder() {
+            this(4096);
+        }
+
+        /**
+         * Reads the next complete frame. Returns false on a clean end of stream
+         * before any header byte; a frame cut short is an EOFException. A
+         * length over this decoder's limit is a FrameTooLargeException, thrown
+         * before any of the payload is read.
+         */
+        public boolean read(InputStream in) throws IOException {
+            int first = in.read();
+            if (first == -1) {
+                return false;
+            }
+            header[0] = (byte) first;
+            readFully(in, header, 1, HEADER_SIZE - 1);
+
+            opcode = header[0];
+            requestId = ((header[1] & 0xFF) << 24) | ((header[2] & 0xFF) << 16)
+                      | ((header[3] & 0xFF) << 8) | (header[4] & 0xFF);
+            int length = ((header[5] & 0xFF) << 24) | ((header[6] & 0xFF) << 16)
+                       | ((header[7] & 0xFF) << 8) | (header[8] & 0xFF);
+            if (length < 0 || length > MAX_FRAME_SIZE) {
+                throw new IOException("Invalid frame length: " + length);
+            }
+            if (length > maxLength) {
+                throw new FrameTooLargeException(requestId, length, maxLength);
+            }
+            if (payload.capacity() < length) {
+                payload = ByteBuffer.allocate(Math.max(length, payload.capacity() * 2));
+            }
+            readFully(in, payload.array(), 0, length);
+            payload.clear().limit(length);
+            return true;
+        }
+
+        /** Decodes a frame already held in memory, e.g. by a benchmark or a test. */
+        public void wrap(byte[] frame, int offset, int length) {
+            ByteBuffer src = ByteBuffer.wrap(frame, offset, length);
+            opcode = src.get();
+            requestId = src.getInt();
+            int payloadLength = src.getInt();
+            if (payload.capacity() < payloadLength) {
+                payload = ByteBuffer.allocate(payloadLength);
+            }
+            payload.clear();
+            src.get(payload.array(), 0, payloadLength);
+            payload.limit(payloadLength);
+        }
+
+        public byte opcode() {
+            return opcode;
+        }
+
+        public int requestId() {
+            return requestId;
+        }
+
+        public int payloadLength() {
+            return payload.limit();
+        }
+
+        public int remaining() {
+            return payload.remaining();
+        }
+
+        public int getByte() {
+            return payload.get() & 0xFF;
+        }
+
+        public int getShort() {
+            return payload.getShort() & 0xFFFF;
+        }
+
+        public int getInt() {
+            return payload.getInt();
+        }
+
+        public long getLong() {
+            return payload.getLong();
+        }
+
+        /**
+         * Decodes the next string into a builder owned by this decoder. The
+         * result is only valid until the next call; use {@link #getString()}
+         * to keep it.
+         */
+        public CharSequence getChars() {
+            int length = getShort();
+            if (payload.remaining() < length) {
+                throw new BufferUnderflowException();
+            }
+            byte[] bytes = payload.array();
+            int pos = payload.position();
+            int end = pos + length;
+            char[] chars = scratch.ensure(length);
+            int n = 0;
+            // ASCII fast path, then general UTF-8 for whatever is left
+            while (pos < end && bytes[pos] >= 0) {
+                chars[n++] = (char) bytes[pos++];
+            }
+            while (pos < end) {
+                int b = bytes[pos++] & 0xFF;
+                if (b < 0x80) {
+                    chars[n++] = (char) b;
+                } else if (b < 0xE0) {
+                    chars[n++] = (char) (((b & 0x1F) << 6) | (bytes[pos++] & 0x3F));
+                } else if (b < 0xF0) {
+                    chars[n++] = (char) (((b & 0x0F) << 12) | ((bytes[pos++] & 0x3F) << 6)
+                                         | (bytes[pos++] & 0x3F));
+                } else {
+                    int cp = ((b & 0x07) << 18) | ((bytes[pos++] & 0x3F) << 12)
+                           | ((bytes[pos++] & 0x3F) << 6) | (bytes[pos++] & 0x3F);
+                    n += Character.toChars(cp, chars, n);
+                }
+            }
+            payload.position(end);
+            scratch.length = n;
+            return scratch;
+        }
+
+        public String getString() {
+            return getChars().toString();
+        }
+
+        /** Copies the raw payload, used for DATA frames. */
+        public void copyPayloadTo(OutputStream out) throws IOException {
+            out.write(payload.array(), payload.position(), payload.remaining());
+            payload.position(payload.limit());
+        }
+
+        // Reusable CharSequence over a char array; a UTF-8 string never decodes to more chars than bytes
+        private static final class CharView implements CharSequence {
+            private char[] chars = new char[64];
+            private int length;
+
+            char[] ensure(int capacity) {
+                if (chars.length < capacity) {
+                    chars = new char[Math.max(capacity, chars.length * 2)];
+                }
+                return chars;
+            }
+
+            @Override
+            public int length() {
+                return length;
+            }
+
+            @Override
+            public char charAt(int index) {
+                if (index >= length) {
+                    throw new IndexOutOfBoundsException(index);
+                }
+                return chars[index];
+            }
+
+            @Override
+            public CharSequence subSequence(int start, int end) {
+                return toString().substring(start, end);
+            }
+
+            @Override
+            public String toString() {
+                return new String(chars, 0, length);
+            }
+        }
+
+        private static void readFully(InputStream in, byte[] dest, int offset, int length) throws IOException {
+            while (length > 0) {
+                int n = in.read(dest, offset, length);
+                if (n == -1) {
+                    throw new EOFException("Connection closed inside a frame");
+                }
+                offset += n;
+                length -= n;
+            }
+        }
+    }
+}
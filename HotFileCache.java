@@ -0,0 +1,251 @@
+// HotFileCache.java
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Contents of frequently downloaded files, held off-heap in direct buffers.
+ *
+ * A file is admitted once it has been requested admitAfter times, if it is
+ * no larger than maxFileBytes. The total size of the cached files stays
+ * within budgetBytes. Eviction follows GreedyDual-Size-Frequency: a file's
+ * priority is the inflation value at its last hit plus hits per KiB. Small,
+ * popular handouts therefore stay, while one large file fetched a few times
+ * is the first to go. Each entry remembers the size and modification time
+ * it was read at; a file that changed on disk is dropped and read again.
+ *
+ * Callers get a read-only view of the shared buffer, so any number of
+ * connections can send the same cached file at once.
+ */
+public class HotFileCache {
+    // Requests remembered for files that are not cached yet
+    private static final int MAX_CANDIDATES = 10000;
+
+    private final long budgetBytes;
+    private final long maxFileBytes;
+    private final int admitAfter;
+    private final Map<Path, Entry> entries = new HashMap<>();
+    // The same entries, lowest priority first; ties go to the older entry
+    private final TreeSet<Entry> byPriority = new TreeSet<>(
+        Comparator.comparingDouble((Entry e) -> e.priority).thenComparingLong(e -> e.sequence));
+    // Files being read in for admission
+    private final Set<Path> loading = new HashSet<>();
+    private long nextSequence;
+    // Request counts of files not (yet) admitted, least recent first
+    private final LinkedHashMap<Path, Integer> candidates = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, Integer> eldest) {
+            return size() > MAX_CANDIDATES;
+        }
+    };
+    private long usedBytes;
+    // GDSF inflation value: the priority of the last evicted entry
+    private double inflation;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public HotFileCache(long budgetBytes, long maxFileBytes, int admitAfter) {
+        this.budgetBytes = budgetBytes;
+        this.maxFileBytes = Math.min(maxFileBytes, budgetBytes);
+        this.admitAfter = Math.max(1, admitAfter);
+    }
+
+    /**
+     * A read-only buffer with the whole file, positioned at 0, or null when
+     * the file should be read from disk. The attributes are the ones the
+     * caller just read. They tell whether a cached copy is still current.
+     * The request that admits a file reads it in before returning.
+     */
+    public ByteBuffer get(Path file, BasicFileAttributes attributes) {
+        long size = attributes.size();
+        long modified = attributes.lastModifiedTime().toMillis();
+        ByteBuffer data = cached(file, size, modified);
+        if (data != null) {
+            return data;
+        }
+        long requests = admission(file, size);
+        return requests > 0 ? admit(file, size, modified, requests) : null;
+    }
+
+    /**
+     * Like get, but never reads the file on the calling thread, for the
+     * selector thread. A file due for admission is read in on loader, and
+     * this request is served from disk.
+     */
+    public ByteBuffer lookup(Path file, BasicFileAttributes attributes, Executor loader) {
+        long size = attributes.size();
+        long modified = attributes.lastModifiedTime().toMillis();
+        ByteBuffer data = cached(file, size, modified);
+        if (data != null) {
+            return data;
+        }
+        long requests = admission(file, size);
+        if (requests > 0) {
+            try {
+                loader.execute(() -> admit(file, size, modified, requests));
+            } catch (RejectedExecutionException e) {
+                // Workers are saturated; the file has to earn admission again
+                synchronized (this) {
+                    loading.remove(file);
+                }
+            }
+        }
+        return null;
+    }
+
+    // The cached copy if it is current, counting the hit or miss
+    private synchronized ByteBuffer cached(Path file, long size, long modified) {
+        Entry entry = entries.get(file);
+        if (entry != null) {
+            if (entry.size == size && entry.modified == modified) {
+                hits++;
+                byPriority.remove(entry);
+                entry.hits++;
+                entry.priority = inflation + priorityOf(entry.hits, entry.size);
+                byPriority.add(entry);
+                return entry.data.asReadOnlyBuffer();
+            }
+            remove(file);
+        }
+        misses++;
+        return null;
+    }
+
+    // Counts a request for a file that is not cached. Returns its request
+    // count once it is due for admission and not being read in already,
+    // otherwise 0.
+    private synchronized long admission(Path file, long size) {
+        if (size > maxFileBytes || budgetBytes <= 0 || loading.contains(file)) {
+            return 0;
+        }
+        int requests = candidates.merge(file, 1, Integer::sum);
+        if (requests < admitAfter) {
+            return 0;
+        }
+        candidates.remove(file);
+        loading.add(file);
+        return requests;
+    }
+
+    // Reads the file in and caches it; null if it changed or can't be read
+    private ByteBuffer admit(Path file, long size, long modified, long requests) {
+        try {
+            // Read outside the lock; loading keeps a second read of the file out
+            ByteBuffer data;
+            try {
+                data = load(file, size);
+                BasicFileAttributes after = Files.readAttributes(file, BasicFileAttributes.class);
+                if (after.size() != size || after.lastModifiedTime().toMillis() != modified) {
+                    // Changed while we read it; try again on a later request
+                    return null;
+                }
+            } catch (IOException e) {
+                return null;
+            }
+            synchronized (this) {
+                Entry previous = entries.get(file);
+                if (previous != null && previous.modified == modified && previous.size == size) {
+                    return previous.data.asReadOnlyBuffer();
+                }
+                if (previous != null) {
+                    remove(file);
+                }
+                while (usedBytes + size > budgetBytes) {
+                    evictOne();
+                }
+                Entry entry = new Entry(file, data, size, modified, requests, nextSequence++);
+                entry.priority = inflation + priorityOf(entry.hits, size);
+                entries.put(file, entry);
+                byPriority.add(entry);
+                usedBytes += size;
+            }
+            return data.asReadOnlyBuffer();
+        } finally {
+            synchronized (this) {
+                loading.remove(file);
+            }
+        }
+    }
+
+    public synchronized void invalidate(Path file) {
+        remove(file);
+        candidates.remove(file);
+    }
+
+    /** "hits misses hit_rate entries bytes evictions" */
+    public synchronized String stats() {
+        long requests = hits + misses;
+        return String.format(Locale.ROOT, "%d %d %.3f %d %d %d", hits, misses,
+                             requests == 0 ? 0.0 : (double) hits / requests, entries.size(), usedBytes, evictions);
+    }
+
+    public synchronized long hits() {
+        return hits;
+    }
+
+    public synchronized long misses() {
+        return misses;
+    }
+
+    public synchronized long usedBytes() {
+        return usedBytes;
+    }
+
+    private static double priorityOf(long hits, long size) {
+        return hits * 1024.0 / Math.max(size, 1024);
+    }
+
+    private void evictOne() {
+        Entry victim = byPriority.first();
+        inflation = victim.priority;
+        remove(victim.file);
+        evictions++;
+    }
+
+    private void remove(Path file) {
+        Entry entry = entries.remove(file);
+        if (entry != null) {
+            byPriority.remove(entry);
+            usedBytes -= entry.size;
+        }
+    }
+
+    private static ByteBuffer load(Path file, long size) throws IOException {
+        ByteBuffer data = ByteBuffer.allocateDirect((int) size);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (data.hasRemaining()) {
+                if (channel.read(data) < 0) {
+                    throw new EOFException("File truncated while caching: " + file);
+                }
+            }
+        }
+        return data.flip();
+    }
+
+    // priority may only change while the entry is out of byPriority
+    private static class Entry {
+        final Path file;
+        final ByteBuffer data;
+        final long size;
+        final long modified;
+        final long sequence;
+        long hits;
+        double priority;
+
+        Entry(Path file, ByteBuffer data, long size, long modified, long hits, long sequence) {
+            this.file = file;
+            this.data = data;
+            this.size = size;
+            this.modified = modified;
+            this.hits = hits;
+            this.sequence = sequence;
+        }
+    }
+}
@@ -0,0 +1,261 @@
+// IndexCluster.java
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Membership and routing for IndexServer cluster mode.
+ *
+ * The nodes listed in index.cluster.nodes share the filename keyspace through
+ * a consistent-hash ring. Each node is placed on the ring at VIRTUAL_NODES
+ * points. A name belongs to the first index.cluster.replication distinct nodes
+ * clockwise from its hash. Only owners store a name's locations. Every node
+ * knows every department server (address, version, lease, load), so any node
+ * can accept registrations and answer searches.
+ *
+ * Requests between nodes use the normal text protocol with a "PEER " prefix.
+ * It tells the receiver to apply the command locally instead of routing it
+ * again.
+ */
+public class IndexCluster implements Closeable {
+    private static final int VIRTUAL_NODES = 128;
+
+    private final String self;
+    private final List<String> nodes;
+    private final int replication;
+    private final long[] ringHashes;
+    private final String[] ringNodes;
+    private final Map<String, IndexConnectionPool> peers = new HashMap<>();
+    // Fans requests out to the peers concurrently
+    private final ExecutorService senders = Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "index-peer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** self is null for a client that only uses the ring to pick owners. */
+    public IndexCluster(String self, List<String> nodes, int replication) {
+        if (self != null && !nodes.contains(self)) {
+            throw new IllegalArgumentException(self + " is not listed in index.cluster.nodes " + nodes);
+        }
+        this.self = self;
+        this.nodes = List.copyOf(nodes);
+        this.replication = Math.max(1, Math.min(replication, nodes.size()));
+
+        TreeMap<Long, String> ring = new TreeMap<>();
+        for (String node : nodes) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                ring.put(hash(node + "#" + i), node);
+            }
+            if (!node.equals(self)) {
+                String[] address = node.split(":");
+                peers.put(node, new IndexConnectionPool(address[0], Integer.parseInt(address[1])));
+            }
+        }
+        ringHashes = new long[ring.size()];
+        ringNodes = new String[ring.size()];
+        int i = 0;
+        for (Map.Entry<Long, String> point : ring.entrySet()) {
+            ringHashes[i] = point.getKey();
+            ringNodes[i] = point.getValue();
+            i++;
+        }
+    }
+
+    /** The cluster this node belongs to, or null when index.cluster.nodes is not set. */
+    public static IndexCluster fromConfig(int port) {
+        List<String> nodes = Config.getClusterNodes();
+        if (nodes.isEmpty()) {
+            return null;
+        }
+        String self = Config.getClusterSelf();
+        if (self.isEmpty()) {
+            // Default: the entry with our port
+            for (String node : nodes) {
+                if (node.endsWith(":" + port)) {
+                    self = node;
+                    break;
+                }
+            }
+        }
+        return new IndexCluster(self, nodes, Config.getClusterReplication());
+    }
+
+    public String self() {
+        return self;
+    }
+
+    public List<String> nodes() {
+        return nodes;
+    }
+
+    public int replication() {
+        return replication;
+    }
+
+    /** IP addresses of the nodes' hosts, to tell peer connections from clients. */
+    public Set<String> addresses() {
+        Set<String> addresses = new HashSet<>();
+        for (String node : nodes) {
+            String host = node.substring(0, node.lastIndexOf(':'));
+            try {
+                for (InetAddress address : InetAddress.getAllByName(host)) {
+                    addresses.add(address.getHostAddress());
+                }
+            } catch (UnknownHostException e) {
+                Log.warn("Cannot resolve index node %s: %s", node, e.getMessage());
+            }
+        }
+        return addresses;
+    }
+
+    /** The nodes holding a (lowercase) filename, preferred first. */
+    public List<String> owners(String name) {
+        long h = hash(name);
+        int start = Arrays.binarySearch(ringHashes, h);
+        if (start < 0) {
+            start = -start - 1;
+        }
+        List<String> owners = new ArrayList<>(replication);
+        for (int i = 0; owners.size() < replication && i < ringNodes.length; i++) {
+            String node = ringNodes[(start + i) % ringNodes.length];
+            if (!owners.contains(node)) {
+                owners.add(node);
+            }
+        }
+        return owners;
+    }
+
+    public boolean owns(String name) {
+        return owners(name).contains(self);
+    }
+
+    /** "CLUSTER <replication> node1,node2,...", from which clients can build the same ring. */
+    public String describe() {
+        return "CLUSTER " + replication + " " + String.join(",", nodes);
+    }
+
+    /**
+     * Splits file entries (see FileEntry) by the node owning their name.
+     * Every node has an entry, possibly empty.
+     */
+    public Map<String, List<String>> partition(Collection<String> files) {
+        Map<String, List<String>> byNode = new LinkedHashMap<>();
+        for (String node : nodes) {
+            byNode.put(node, new ArrayList<>());
+        }
+        for (String file : files) {
+            for (String owner : owners(FileEntry.name(file).toLowerCase())) {
+                byNode.get(owner).add(file);
+            }
+        }
+        return byNode;
+    }
+
+    /**
+     * Sends a command to another node for local execution. Returns the
+     * reply, or null if the node cannot be reached; callers treat an
+     * unreachable node as absent, and it catches up via RESYNC later.
+     */
+    public String send(String node, String command) {
+        List<String> reply = pipeline(node, List.of(command));
+        return reply != null ? reply.get(0) : null;
+    }
+
+    /**
+     * Sends the commands, one per peer, concurrently and waits for all
+     * replies. Unreachable peers map to null.
+     */
+    public Map<String, String> sendAll(Map<String, String> commands) {
+        Map<String, List<String>> batches = new LinkedHashMap<>();
+        for (Map.Entry<String, String> command : commands.entrySet()) {
+            batches.put(command.getKey(), List.of(command.getValue()));
+        }
+        Map<String, String> replies = new LinkedHashMap<>();
+        for (Map.Entry<String, List<String>> reply : pipelineAll(batches).entrySet()) {
+            replies.put(reply.getKey(), reply.getValue() != null ? reply.getValue().get(0) : null);
+        }
+        return replies;
+    }
+
+    /**
+     * Pipelines a list of commands to each peer, all peers concurrently,
+     * and returns each peer's replies in command order, or null for a
+     * peer that could not be reached.
+     */
+    public Map<String, List<String>> pipelineAll(Map<String, List<String>> commands) {
+        if (commands.size() == 1) {
+            // Nothing to overlap with; skip the hand-off
+            Map.Entry<String, List<String>> batch = commands.entrySet().iterator().next();
+            Map<String, List<String>> replies = new LinkedHashMap<>();
+            replies.put(batch.getKey(), pipeline(batch.getKey(), batch.getValue()));
+            return replies;
+        }
+        Map<String, Future<List<String>>> pending = new LinkedHashMap<>();
+        for (Map.Entry<String, List<String>> batch : commands.entrySet()) {
+            pending.put(batch.getKey(), senders.submit(() -> pipeline(batch.getKey(), batch.getValue())));
+        }
+        Map<String, List<String>> replies = new LinkedHashMap<>();
+        for (Map.Entry<String, Future<List<String>>> reply : pending.entrySet()) {
+            try {
+                replies.put(reply.getKey(), reply.getValue().get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                replies.put(reply.getKey(), null);
+            } catch (ExecutionException e) {
+                replies.put(reply.getKey(), null);
+            }
+        }
+        return replies;
+    }
+
+    private List<String> pipeline(String node, List<String> commands) {
+        List<String> tagged = new ArrayList<>(commands.size());
+        for (String command : commands) {
+            tagged.add("PEER " + command);
+        }
+        try {
+            return peers.get(node).pipeline(tagged);
+        } catch (IOException e) {
+            Log.warn("Index node %s unreachable: %s", node, e.getMessage());
+            return null;
+        }
+    }
+
+    /** Sends the same command to every other node; see {@link #sendAll(Map)}. */
+    public Map<String, String> broadcast(String command) {
+        Map<String, String> commands = new LinkedHashMap<>();
+        for (String node : peers.keySet()) {
+            commands.put(node, command);
+        }
+        return sendAll(commands);
+    }
+
+    @Override
+    public void close() {
+        senders.shutdown();
+        for (IndexConnectionPool pool : peers.values()) {
+            pool.close();
+        }
+    }
+
+    // 64-bit FNV-1a over the UTF-8 bytes, then a murmur finaliser to spread
+    // similar names (f001.txt, f002.txt) evenly around the ring
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb93fe53ef5a3L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,255 @@
+// IndexConnectionPool.java
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Reusable keep-alive connections to an IndexServer.
+ *
+ * Each request is tagged "#<id> " and the reply is checked against it, so a
+ * connection can carry many requests, pipelined with {@link #pipeline(List)}.
+ * Connections that fail are dropped and the request is retried once on a
+ * fresh socket, which covers sessions the server closed while idle.
+ * Requests answered "BUSY <millis>", or turned away with it at connect, are
+ * sent again after the server's retry-after time, up to BUSY_RETRIES times.
+ */
+public class IndexConnectionPool implements Closeable {
+    private static final int BUSY_RETRIES = 3;
+
+    private final String host;
+    private final int port;
+    private final int maxIdle;
+    private final ConcurrentLinkedDeque<Connection> idle = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+    private volatile boolean closed;
+
+    public IndexConnectionPool(String host, int port, int maxIdle) {
+        this.host = host;
+        this.port = port;
+        this.maxIdle = maxIdle;
+    }
+
+    public IndexConnectionPool(String host, int port) {
+        this(host, port, Config.getIndexPoolSize());
+    }
+
+    /** Sends one command and returns its single-line response. */
+    public String request(String command) throws IOException {
+        return pipeline(Collections.singletonList(command)).get(0);
+    }
+
+    /**
+     * Writes all commands before reading any response, then returns the
+     * responses in command order.
+     */
+    public List<String> pipeline(List<String> commands) throws IOException {
+        List<String> responses = send(commands);
+        for (int retry = 0; retry < BUSY_RETRIES; retry++) {
+            List<Integer> busy = new ArrayList<>();
+            long wait = 0;
+            for (int i = 0; i < responses.size(); i++) {
+                long retryAfter = AdmissionControl.retryAfter(responses.get(i));
+                if (retryAfter >= 0) {
+                    busy.add(i);
+                    wait = Math.max(wait, retryAfter);
+                }
+            }
+            if (busy.isEmpty()) {
+                return responses;
+            }
+            AdmissionControl.backOff(wait);
+            List<String> again = new ArrayList<>(busy.size());
+            for (int i : busy) {
+                again.add(commands.get(i));
+            }
+            List<String> answers = send(again);
+            responses = new ArrayList<>(responses);
+            for (int j = 0; j < busy.size(); j++) {
+                responses.set(busy.get(j), answers.get(j));
+            }
+        }
+        return responses;
+    }
+
+    private List<String> send(List<String> commands) throws IOException {
+        IOException lastError = null;
+        for (int attempt = 0; attempt < 2; attempt++) {
+            Connection conn = borrow();
+            try {
+                List<String> responses = conn.exchange(commands);
+                release(conn);
+                return responses;
+            } catch (BusyException e) {
+                // Turned away at connect: every command gets the reply
+                conn.close();
+                return Collections.nCopies(commands.size(), e.getMessage());
+            } catch (IOException e) {
+                conn.close();
+                lastError = e;
+            }
+        }
+        throw lastError;
+    }
+
+    /**
+     * Sends a command answered by "FILE <name>" lines and a closing "END"
+     * line, such as LIST_ALL_STREAM. Each name is handed to the consumer as
+     * it arrives; the closing line (or an error line) is returned. Only a
+     * request that failed before any entry arrived is retried.
+     */
+    public String stream(String command, Consumer<String> entries) throws IOException {
+        IOException lastError = null;
+        int busyRetries = 0;
+        for (int attempt = 0; attempt < 2; attempt++) {
+            Connection conn = borrow();
+            boolean[] started = new boolean[1];
+            try {
+                String last = conn.stream(command, name -> {
+                    started[0] = true;
+                    entries.accept(name);
+                });
+                release(conn);
+                long retryAfter = AdmissionControl.retryAfter(last);
+                if (retryAfter >= 0 && busyRetries++ < BUSY_RETRIES) {
+                    AdmissionControl.backOff(retryAfter);
+                    attempt--;
+                    continue;
+                }
+                return last;
+            } catch (BusyException e) {
+                conn.close();
+                if (busyRetries++ == BUSY_RETRIES) {
+                    return e.getMessage();
+                }
+                AdmissionControl.backOff(AdmissionControl.retryAfter(e.getMessage()));
+                attempt--;
+            } catch (IOException e) {
+                conn.close();
+                if (started[0]) {
+                    throw e;
+                }
+                lastError = e;
+            }
+        }
+        throw lastError;
+    }
+
+    private Connection borrow() throws IOException {
+        if (closed) {
+            throw new IOException("Connection pool is closed");
+        }
+        Connection conn = idle.pollFirst();
+        if (conn != null) {
+            idleCount.decrementAndGet();
+            return conn;
+        }
+        return new Connection(host, port);
+    }
+
+    private void release(Connection conn) {
+        if (!closed && idleCount.incrementAndGet() <= maxIdle) {
+            idle.offerFirst(conn);
+        } else {
+            idleCount.decrementAndGet();
+            conn.close();
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        Connection conn;
+        while ((conn = idle.pollFirst()) != null) {
+            idleCount.decrementAndGet();
+            conn.close();
+        }
+    }
+
+    private static class Connection {
+        private final Socket socket;
+        private final PrintWriter out;
+        private final BufferedReader in;
+        private long nextId = 1;
+
+        Connection(String host, int port) throws IOException {
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream())), false);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        }
+
+        List<String> exchange(List<String> commands) throws IOException {
+            long firstId = nextId;
+            for (String command : commands) {
+                out.println("#" + (nextId++) + " " + command);
+            }
+            out.flush();
+            if (out.checkError()) {
+                throw new IOException("Write to index server failed");
+            }
+
+            // The server answers in order; the ids guard against a desynchronised stream
+            List<String> responses = new ArrayList<>(commands.size());
+            for (int i = 0; i < commands.size(); i++) {
+                String line = in.readLine();
+                if (line == null) {
+                    throw new EOFException("Index server closed the connection");
+                }
+                String expected = "#" + (firstId + i) + " ";
+                if (!line.startsWith(expected)) {
+                    throw unexpected(line);
+                }
+                responses.add(line.substring(expected.length()));
+            }
+            return responses;
+        }
+
+        String stream(String command, Consumer<String> entries) throws IOException {
+            String prefix = "#" + nextId + " ";
+            out.println("#" + (nextId++) + " " + command);
+            out.flush();
+            if (out.checkError()) {
+                throw new IOException("Write to index server failed");
+            }
+            while (true) {
+                String line = in.readLine();
+                if (line == null) {
+                    throw new EOFException("Index server closed the connection");
+                }
+                if (!line.startsWith(prefix)) {
+                    throw unexpected(line);
+                }
+                line = line.substring(prefix.length());
+                if (!line.startsWith("FILE ")) {
+                    return line;
+                }
+                entries.accept(line.substring(5));
+            }
+        }
+
+        // An untagged BUSY is the server refusing the connection itself
+        private static IOException unexpected(String line) {
+            return line.startsWith("BUSY ") ? new BusyException(line)
+                                            : new IOException("Out-of-order response: " + line);
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+    }
+
+    private static class BusyException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        BusyException(String reply) {
+            super(reply);
+        }
+    }
+}
@@ -1,142 +1,1551 @@
 // IndexServer.java
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class IndexServer {
-    private static final int PORT = 9090;
-    private static final Map<String, List<FileLocation>> fileIndex = new ConcurrentHashMap<>();
+    private static final int DEFAULT_PORT = 9090;
+    // Locations by lowercase name. The key is the registered name itself
+    // when that is lowercase already, so most names are stored once.
+    private static final Map<String, Locations> fileIndex = new ConcurrentHashMap<>();
     private static final Map<String, ServerInfo> departmentServers = new ConcurrentHashMap<>();
+    // Server names as small ints, so a location is an int rather than an
+    // object. A server keeps its id when it registers again after
+    // eviction. Only used inside serverId().
+    private static final Map<String, Integer> serverIds = new HashMap<>();
+    // The latest registration for each id, possibly evicted
+    private static volatile ServerInfo[] serversById = new ServerInfo[16];
+    // Locations by SHA-256 of their content, across names and servers, for
+    // the files whose name this node holds
+    private static final Map<String, Locations> contentIndex = new ConcurrentHashMap<>();
+    // Prefix, substring and fuzzy lookups over the keys of fileIndex
+    private static final SearchIndex searchIndex = new SearchIndex();
+    // Set while the log is replayed: exact lookups are ready as soon as
+    // replay ends, and the search index is filled in afterwards
+    private static volatile boolean searchIndexDeferred;
+    private static final long LEASE_MILLIS = Config.getLeaseMillis();
+    // Most pipelined searches forwarded to peers in one go
+    private static final int SEARCH_BATCH = 256;
+    // Reply buffer of a text session
+    private static final int REPLY_BUFFER_SIZE = 8192;
+    // Write-ahead log and snapshots; null when index.data.dir is empty
+    private static IndexStore store;
+    // Peers sharing the keyspace; null for a stand-alone server
+    private static IndexCluster cluster;
+    // Addresses of the index nodes, the only ones whose PEER requests are served
+    private static Set<String> peerAddresses = Set.of();
+    // Request latencies and the most searched names, for STATS
+    private static final Metrics metrics = new Metrics("index", Config.getMetricsTopFiles());
+    private static final AtomicInteger sessions = new AtomicInteger();
+    // Session limit and per-client lookup rate
+    private static final AdmissionControl admission = AdmissionControl.forIndexServer();
+    // Commands from department servers, which keep the index itself
+    // current and are never rate limited
+    private static final Set<String> SERVER_COMMANDS =
+        Set.of("REGISTER", "HEARTBEAT", "ADD_FILES", "REMOVE_FILES", "QUIT");
     
     public static void main(String[] args) {
-        System.out.println("Index Server starting on port " + PORT);
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        Log.info("Index Server starting on port %s", port);
         
-        try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-            ExecutorService pool = Executors.newFixedThreadPool(10);
+        String dataDir = Config.getIndexDataDir();
+        if (!Config.getClusterNodes().isEmpty()) {
+            try {
+                cluster = IndexCluster.fromConfig(port);
+            } catch (IllegalArgumentException e) {
+                Log.error("Cannot join index cluster: %s", e.getMessage());
+                return;
+            }
+            Log.info("Cluster node %s of %s, replication %s",
+                     cluster.self(), cluster.nodes(), cluster.replication());
+            peerAddresses = cluster.addresses();
+            if (!dataDir.isEmpty()) {
+                // Nodes on one machine must not share a log
+                dataDir = Paths.get(dataDir, "node-" + port).toString();
+            }
+        }
+        
+        // Rebuild the index from disk before accepting any connection
+        if (!dataDir.isEmpty()) {
+            try {
+                long started = System.currentTimeMillis();
+                IndexStore recovered = new IndexStore(Paths.get(dataDir),
+                    Config.getWalSyncMillis(), Config.getSnapshotBytes(), new StoreTarget());
+                searchIndexDeferred = true;
+                long records = recovered.recover();
+                searchIndexDeferred = false;
+                store = recovered;
+                Log.info("Recovered %s servers and %s file names from %s records in %s ms",
+                         departmentServers.size(), fileIndex.size(), records, System.currentTimeMillis() - started);
+            } catch (IOException e) {
+                Log.error("Cannot open index data in %s: %s", dataDir, e.getMessage());
+                return;
+            }
+            Thread indexer = new Thread(IndexServer::buildSearchIndex, "search-indexer");
+            indexer.setDaemon(true);
+            indexer.start();
+        }
+        
+        // Drop servers whose lease lapsed, with all their file locations
+        ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor();
+        long sweep = Math.max(1, LEASE_MILLIS / 4);
+        evictor.scheduleWithFixedDelay(IndexServer::evictExpiredServers, sweep, sweep, TimeUnit.MILLISECONDS);
+        
+        metrics.gauge("sessions", "Open client and peer sessions.", sessions::get);
+        metrics.counter("busy_rejections", "Sessions and requests answered BUSY.", admission::rejected);
+        metrics.gauge("department_servers", "Registered Department Servers.", departmentServers::size);
+        metrics.gauge("file_names", "Distinct file names held by this node.", fileIndex::size);
+        int metricsOffset = Config.getMetricsPortOffset();
+        if (metricsOffset > 0) {
+            try {
+                metrics.serve(Config.getMetricsHost(), port + metricsOffset);
+                Log.info("Metrics at http://%s:%s/metrics", Config.getMetricsHost(), port + metricsOffset);
+            } catch (IOException e) {
+                Log.warn("Cannot serve metrics on port %s: %s", port + metricsOffset, e.getMessage());
+            }
+        }
+        
+        try (ServerSocket serverSocket = new ServerSocket(port)) {
+            // Sessions are persistent, so a thread is held per open connection
+            // rather than per request; idle sessions time out. Past
+            // index.max.sessions, new connections are answered BUSY at once
+            // rather than queued behind sessions that may stay open for minutes.
+            ExecutorService pool = Executors.newCachedThreadPool();
             
             while (true) {
                 Socket clientSocket = serverSocket.accept();
-                pool.execute(new IndexHandler(clientSocket));
+                if (!admission.tryEnter()) {
+                    AdmissionControl.turnAway(clientSocket, admission.busy());
+                    continue;
+                }
+                try {
+                    pool.execute(new IndexHandler(clientSocket));
+                } catch (RejectedExecutionException e) {
+                    admission.leave();
+                    AdmissionControl.turnAway(clientSocket, admission.busy());
+                }
             }
         } catch (IOException e) {
-            System.err.println("Index Server error: " + e.getMessage());
+            Log.error("Index Server error: %s", e.getMessage());
             e.printStackTrace(System.err);
         }
     }
     
     static class IndexHandler implements Runnable {
         private final Socket socket;
+        private final String clientAddress;
+        private ReplyWriter out;
+        private String replyPrefix = "";
+        // Ranks the replicas of each search without allocating
+        private final Ranking ranking = new Ranking();
+        // The current request came from another index node and is answered
+        // from local state only
+        private boolean peer;
+        // BUSY reply for the line a batch of searches ended on, which the
+        // batch already charged to the client
+        private String pendingBusy;
         
         public IndexHandler(Socket socket) {
             this.socket = socket;
+            this.clientAddress = socket.getInetAddress().getHostAddress();
         }
         
+        // Keep-alive session: one command per line until the client closes,
+        // sends QUIT or stays idle past index.idle.timeout.ms. A request may be
+        // prefixed with "#<id> "; the response then carries the same prefix so
+        // pipelined clients can match them up.
         @Override
         public void run() {
             try (
                 BufferedReader in = new BufferedReader(
-                    new InputStreamReader(socket.getInputStream()));
-                PrintWriter out = new PrintWriter(socket.getOutputStream(), true)
+                    new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                ReplyWriter writer = new ReplyWriter(socket.getOutputStream(), REPLY_BUFFER_SIZE)
             ) {
-                String request = in.readLine();
-                if (request == null) return;
+                out = writer;
+                sessions.incrementAndGet();
+                socket.setSoTimeout(Config.getIndexIdleTimeout());
                 
-                String[] parts = request.split(" ", 2);
-                String command = parts[0];
-                
-                switch (command) {
-                    case "REGISTER" -> handleRegister(parts[1], out);
-                    case "SEARCH" -> handleSearch(parts[1], out);
-                    case "LIST_ALL" -> handleListAll(out);
-                    case "GET_SERVER" -> handleGetServer(parts[1], out);
+                String request;
+                // A line read ahead while batching searches
+                String pending = null;
+                while ((request = pending != null ? pending : in.readLine()) != null) {
+                    pending = null;
+                    request = stripPrefix(request);
+                    
+                    int space = request.indexOf(' ');
+                    String command = space < 0 ? request : request.substring(0, space);
+                    String args = space < 0 ? "" : request.substring(space + 1);
+                    peer = command.equals("PEER");
+                    if (peer) {
+                        space = args.indexOf(' ');
+                        command = space < 0 ? args : args.substring(0, space);
+                        args = space < 0 ? "" : args.substring(space + 1);
+                    }
+                    
+                    if (command.equals("QUIT")) {
+                        reply("BYE");
+                        return;
+                    }
+                    if (peer && !peerAddresses.contains(clientAddress)) {
+                        peer = false;
+                        reply("ERROR PEER requests are only accepted from index nodes");
+                        if (!in.ready()) {
+                            out.flush();
+                        }
+                        continue;
+                    }
+                    // Requests are charged to the client's address, except
+                    // those of other index nodes and the index updates of
+                    // registered Department Servers
+                    boolean exempt = peer || SERVER_COMMANDS.contains(command) && fromDepartmentServer(clientAddress);
+                    String busy = pendingBusy != null ? pendingBusy
+                                  : exempt ? null : admission.admitRequest(clientAddress);
+                    pendingBusy = null;
+                    if (busy != null) {
+                        reply(busy);
+                        if (!in.ready()) {
+                            out.flush();
+                        }
+                        continue;
+                    }
+                    if (command.equals("BINARY")) {
+                        // The client waits for this reply before sending frames,
+                        // so nothing of the binary stream is in the text reader yet
+                        String answer = FrameCodec.acceptVersion(args);
+                        reply(answer);
+                        out.flush();
+                        if (answer.startsWith("BINARY_OK")) {
+                            runBinarySession();
+                            return;
+                        }
+                        continue;
+                    }
+                    long requestStart = System.nanoTime();
+                    // Name the request is recorded under; null once a batch
+                    // of searches recorded itself
+                    String recorded = command;
+                    try {
+                        switch (command) {
+                            case "REGISTER" -> handleRegister(args);
+                            case "HEARTBEAT" -> handleHeartbeat(args);
+                            case "ADD_FILES" -> handleDelta(args, true);
+                            case "REMOVE_FILES" -> handleDelta(args, false);
+                            case "SEARCH" -> {
+                                if (routing() && in.ready()) {
+                                    pending = handleSearchBatch(args, in, requestStart);
+                                    recorded = null;
+                                } else {
+                                    handleSearch(args);
+                                }
+                            }
+                            case "SEARCH_PREFIX", "SEARCH_SUBSTRING", "SEARCH_FUZZY" ->
+                                handleNameSearch(command, args);
+                            case "SEARCH_HASH" -> reply(searchHash(args.trim()));
+                            case "LIST_ALL" -> {
+                                if (args.isEmpty()) {
+                                    handleListAll();
+                                } else {
+                                    handleListPage(args);
+                                }
+                            }
+                            case "LIST_ALL_STREAM" -> handleListStream();
+                            case "GET_SERVER" -> handleGetServer(args);
+                            case "CLUSTER" -> reply(cluster != null ? cluster.describe() : "NO_CLUSTER");
+                            case "PING" -> reply("PONG");
+                            case "STATS" -> reply("STATS " + metrics.statsLine());
+                            default -> {
+                                reply("ERROR Unknown command: " + command);
+                                recorded = "UNKNOWN";
+                            }
+                        }
+                    } catch (RuntimeException e) {
+                        // A malformed request must not end the whole session
+                        reply("ERROR Bad request: " + e.getMessage());
+                    }
+                    if (recorded != null) {
+                        metrics.record(recorded, System.nanoTime() - requestStart);
+                    }
+                    
+                    // Batch responses to pipelined requests into as few packets as possible
+                    if (pending == null && !in.ready()) {
+                        out.flush();
+                    }
                 }
+            } catch (SocketTimeoutException e) {
+                // Idle session expired
             } catch (IOException e) {
-                System.err.println("Handler error: " + e.getMessage());
+                Log.error("Handler error: %s", e.getMessage());
                 e.printStackTrace(System.err);
             } finally {
+                if (out != null) {
+                    sessions.decrementAndGet();
+                }
+                admission.leave();
                 try { socket.close(); } catch (IOException e) {}
             }
         }
         
-        private void handleRegister(String data, PrintWriter out) {
-            // Format: SERVER_NAME|IP|PORT|FILE1,FILE2,FILE3
-            String[] serverData = data.split("\\|");
+        // Same commands as the text loop, exchanged as length-prefixed frames
+        private void runBinarySession() throws IOException {
+            InputStream frameIn = new BufferedInputStream(socket.getInputStream());
+            OutputStream frameOut = new BufferedOutputStream(socket.getOutputStream());
+            FrameCodec.Decoder decoder = new FrameCodec.Decoder(4096, FrameCodec.MAX_REQUEST_SIZE);
+            FrameCodec.Encoder encoder = new FrameCodec.Encoder();
+            
+            while (FrameCodec.readRequest(decoder, frameIn, encoder, frameOut)) {
+                int id = decoder.requestId();
+                long requestStart = System.nanoTime();
+                byte opcode = decoder.opcode();
+                String busy = opcode != FrameCodec.OP_QUIT ? admission.admitRequest(clientAddress) : null;
+                if (busy != null) {
+                    encoder.begin(FrameCodec.OP_ERROR, id).putString(busy).writeTo(frameOut);
+                    frameOut.flush();
+                    continue;
+                }
+                try {
+                    switch (opcode) {
+                        case FrameCodec.OP_SEARCH -> encodeSearch(decoder.getString(), id, encoder);
+                        case FrameCodec.OP_LIST_ALL -> {
+                            if (decoder.remaining() > 0) {
+                                int pageSize = Listing.clampPageSize(decoder.getShort());
+                                encodeListPage(id, Listing.decodeCursor(decoder.getString()), pageSize, encoder);
+                            } else {
+                                encodeListAll(id, encoder);
+                            }
+                        }
+                        case FrameCodec.OP_SEARCH_PREFIX, FrameCodec.OP_SEARCH_SUBSTRING,
+                             FrameCodec.OP_SEARCH_FUZZY -> {
+                            int limit = decoder.getShort();
+                            List<String> names = searchNames(decoder.opcode(), decoder.getString(), limit);
+                            if (names.isEmpty()) {
+                                encoder.begin(FrameCodec.OP_NO_FILES, id);
+                            } else {
+                                encoder.begin(FrameCodec.OP_FILES, id).putInt(names.size());
+                                for (String name : names) {
+                                    encoder.putString(name);
+                                }
+                            }
+                        }
+                        case FrameCodec.OP_SEARCH_HASH -> encodeFound(searchHash(decoder.getString()), id, encoder);
+                        case FrameCodec.OP_PING -> encoder.begin(FrameCodec.OP_PONG, id);
+                        case FrameCodec.OP_QUIT -> {
+                            frameOut.flush();
+                            return;
+                        }
+                        default -> encoder.begin(FrameCodec.OP_ERROR, id)
+                                          .putString("Unknown opcode: " + decoder.opcode());
+                    }
+                } catch (RuntimeException e) {
+                    encoder.begin(FrameCodec.OP_ERROR, id).putString("Bad request: " + e.getMessage());
+                }
+                encoder.writeTo(frameOut);
+                if (frameIn.available() == 0) {
+                    frameOut.flush();
+                }
+                metrics.record(frameName(opcode), System.nanoTime() - requestStart);
+            }
+        }
+        
+        // Binary requests are recorded under their text command's name
+        private static String frameName(byte opcode) {
+            return switch (opcode) {
+                case FrameCodec.OP_SEARCH -> "SEARCH";
+                case FrameCodec.OP_LIST_ALL -> "LIST_ALL";
+                case FrameCodec.OP_SEARCH_PREFIX -> "SEARCH_PREFIX";
+                case FrameCodec.OP_SEARCH_SUBSTRING -> "SEARCH_SUBSTRING";
+                case FrameCodec.OP_SEARCH_FUZZY -> "SEARCH_FUZZY";
+                case FrameCodec.OP_SEARCH_HASH -> "SEARCH_HASH";
+                case FrameCodec.OP_PING -> "PING";
+                default -> "UNKNOWN";
+            };
+        }
+        
+        private void encodeSearch(String filename, int id, FrameCodec.Encoder encoder) {
+            String key = filename.toLowerCase();
+            if (!peer) {
+                metrics.recordFile(key);
+            }
+            if (routing() && !cluster.owns(key)) {
+                encodeFound(forwardSearch(filename), id, encoder);
+                return;
+            }
+            Locations locations = fileIndex.get(key);
+            if (locations == null || ranking.rank(locations) == 0) {
+                encoder.begin(FrameCodec.OP_NOT_FOUND, id);
+                return;
+            }
+            encoder.begin(FrameCodec.OP_FOUND, id).putShort(ranking.count);
+            for (int i = 0; i < ranking.count; i++) {
+                ServerInfo info = ranking.servers[i];
+                encoder.putString(info.name).putString(info.ip)
+                       .putShort(info.port).putString(ranking.name(i));
+            }
+            for (int i = 0; i < ranking.count; i++) {
+                encoder.putString(ranking.hash(i));
+            }
+        }
+        
+        // A FOUND line, from the owning node or a hash search, re-encoded as a frame
+        private void encodeFound(String answer, int id, FrameCodec.Encoder encoder) {
+            if (!answer.startsWith("FOUND ")) {
+                encoder.begin(FrameCodec.OP_NOT_FOUND, id);
+                return;
+            }
+            String[] replicas = answer.substring(6).split(",");
+            encoder.begin(FrameCodec.OP_FOUND, id).putShort(replicas.length);
+            for (String replica : replicas) {
+                String[] fields = replica.split("\\|");
+                encoder.putString(fields[0]).putString(fields[1])
+                       .putShort(Integer.parseInt(fields[2])).putString(fields[3]);
+            }
+            for (String replica : replicas) {
+                String[] fields = replica.split("\\|");
+                encoder.putString(fields.length > 4 ? fields[4] : "");
+            }
+        }
+        
+        // Every live location holding this content, under any name. Each
+        // node indexes content for the names it owns, so in a cluster all
+        // nodes are asked and their answers merged.
+        private String searchHash(String hash) {
+            String local = searchContent(hash.toLowerCase());
+            if (!routing()) {
+                return local;
+            }
+            // Replicated names come back from several nodes; keep each location once
+            Map<String, String> merged = new LinkedHashMap<>();
+            List<String> answers = new ArrayList<>();
+            answers.add(local);
+            answers.addAll(cluster.broadcast("SEARCH_HASH " + hash).values());
+            for (String answer : answers) {
+                if (answer != null && answer.startsWith("FOUND ")) {
+                    for (String location : answer.substring(6).split(",")) {
+                        String[] fields = location.split("\\|");
+                        merged.putIfAbsent(fields[0] + "|" + fields[3], location);
+                    }
+                }
+            }
+            return merged.isEmpty() ? "NOT_FOUND" : "FOUND " + String.join(",", merged.values());
+        }
+        
+        private void encodeListAll(int id, FrameCodec.Encoder encoder) {
+            Iterator<String> names = allNames().iterator();
+            if (!names.hasNext()) {
+                encoder.begin(FrameCodec.OP_NO_FILES, id);
+                return;
+            }
+            // The index may change while we iterate, so the count is patched afterwards
+            encoder.begin(FrameCodec.OP_FILES, id);
+            int countPos = encoder.position();
+            int count = 0;
+            encoder.putInt(0);
+            while (names.hasNext()) {
+                String name = names.next();
+                encoder.putString(name);
+                count++;
+            }
+            encoder.patchInt(countPos, count);
+        }
+        
+        private void encodeListPage(int id, String after, int pageSize, FrameCodec.Encoder encoder) {
+            List<String> page = nextPage(after, pageSize);
+            boolean more = page.size() > pageSize;
+            if (more) {
+                page.remove(pageSize);
+            }
+            encoder.begin(FrameCodec.OP_PAGE, id)
+                   .putString(more ? Listing.encodeCursor(page.get(page.size() - 1)) : "")
+                   .putInt(page.size());
+            for (String name : page) {
+                encoder.putString(name);
+            }
+        }
+        
+        private static List<String> localPage(String after, int pageSize) {
+            List<String> page = new ArrayList<>(pageSize + 1);
+            for (String name : searchIndex.namesAfter(after)) {
+                page.add(name);
+                if (page.size() > pageSize) {
+                    break;
+                }
+            }
+            return page;
+        }
+        
+        // Up to pageSize names after the cursor, plus one more if the
+        // listing continues
+        private List<String> nextPage(String after, int pageSize) {
+            List<String> local = localPage(after, pageSize);
+            if (!routing()) {
+                return local;
+            }
+            // Each node's first pageSize + 1 names together contain the
+            // cluster's first pageSize + 1
+            String command = "LIST_ALL " + (pageSize + 1) + (after != null ? " " + Listing.encodeCursor(after) : "");
+            TreeSet<String> merged = new TreeSet<>(local);
+            for (String answer : cluster.broadcast(command).values()) {
+                if (answer != null && answer.startsWith("PAGE ")) {
+                    String[] parts = answer.split(" ", 3);
+                    if (parts.length > 2) {
+                        merged.addAll(Arrays.asList(parts[2].split(",")));
+                    }
+                }
+            }
+            List<String> page = new ArrayList<>(pageSize + 1);
+            for (String name : merged) {
+                page.add(name);
+                if (page.size() > pageSize) {
+                    break;
+                }
+            }
+            return page;
+        }
+        
+        // Every name in order. In cluster mode they are fetched a page at
+        // a time from all nodes rather than collected up front.
+        private Iterable<String> allNames() {
+            if (!routing()) {
+                return searchIndex.namesAfter(null);
+            }
+            int pageSize = Listing.MAX_PAGE_SIZE;
+            return () -> new Iterator<String>() {
+                private List<String> page = nextPage(null, pageSize);
+                private int next;
+                
+                @Override
+                public boolean hasNext() {
+                    if (next == pageSize && page.size() > pageSize) {
+                        page = nextPage(page.get(pageSize - 1), pageSize);
+                        next = 0;
+                    }
+                    return next < Math.min(page.size(), pageSize);
+                }
+                
+                @Override
+                public String next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    return page.get(next++);
+                }
+            };
+        }
+        
+        // Routing applies to requests from clients and department servers;
+        // requests from peers are answered from this node alone
+        private boolean routing() {
+            return cluster != null && !peer;
+        }
+        
+        private void reply(String line) {
+            out.print(replyPrefix).println(line);
+        }
+        
+        // Removes the optional "#<id> " tag, keeping it as the reply prefix
+        private String stripPrefix(String request) {
+            replyPrefix = "";
+            if (request.startsWith("#")) {
+                int space = request.indexOf(' ');
+                replyPrefix = (space < 0 ? request : request.substring(0, space)) + " ";
+                request = space < 0 ? "" : request.substring(space + 1);
+            }
+            return request;
+        }
+        
+        private void handleRegister(String data) {
+            // Format: SERVER_NAME|IP|PORT|FILE1,FILE2,FILE3[|VERSION]
+            // where each file may carry its content hash as NAME/SHA256
+            // A full snapshot: replaces whatever the server registered before
+            String[] serverData = data.split("\\|", -1);
             String serverName = serverData[0];
             String ip = serverData[1];
             int port = Integer.parseInt(serverData[2]);
+            long version = serverData.length > 4 ? Long.parseLong(serverData[4]) : 0;
             
-            departmentServers.put(serverName, new ServerInfo(ip, port));
-            
-            String[] files = new String[0];
+            Set<String> files = new HashSet<>();
             if (serverData.length > 3) {
-                files = serverData[3].split(",");
-                for (String file : files) {
-                    fileIndex.computeIfAbsent(file.trim().toLowerCase(), 
-                        k -> new ArrayList<>()).add(new FileLocation(serverName, file.trim()));
+                for (String file : serverData[3].split(",")) {
+                    if (!file.trim().isEmpty()) {
+                        files.add(file.trim());
+                    }
                 }
             }
             
-            out.println("REGISTERED");
-            System.out.println("Registered: " + serverName + " with " + files.length + " files");
+            if (routing()) {
+                // Every node learns the server; each stores the files it owns
+                Map<String, List<String>> byNode = cluster.partition(files);
+                Map<String, String> commands = new LinkedHashMap<>();
+                for (Map.Entry<String, List<String>> part : byNode.entrySet()) {
+                    if (!part.getKey().equals(cluster.self())) {
+                        commands.put(part.getKey(), "REGISTER " + serverName + "|" + ip + "|" + port + "|" + 
+                                     String.join(",", part.getValue()) + "|" + version);
+                    }
+                }
+                cluster.sendAll(commands);
+                files = new HashSet<>(byNode.get(cluster.self()));
+            }
+            registerServer(serverName, ip, port, version, files, true);
+            ServerInfo info = departmentServers.get(serverName);
+            if (info != null && !peer) {
+                info.address = clientAddress;
+            }
+            
+            reply("REGISTERED");
+            Log.info("Registered: %s with %s files", serverName, files.size());
         }
         
-        private void handleSearch(String filename, PrintWriter out) {
-            filename = filename.toLowerCase();
-            List<FileLocation> locations = fileIndex.get(filename);
+        // Format: SERVER_NAME|VERSION|FILE1,FILE2,... (NAME/SHA256 entries when adding)
+        private void handleDelta(String data, boolean add) {
+            String[] delta = data.split("\\|", 3);
+            String serverName = delta[0];
+            long version = Long.parseLong(delta[1]);
             
-            if (locations != null && !locations.isEmpty()) {
-                StringBuilder response = new StringBuilder("FOUND ");
-                for (FileLocation loc : locations) {
-                    ServerInfo info = departmentServers.get(loc.serverName);
-                    response.append(String.format("%s|%s|%d|%s,",
-                        loc.serverName, info.ip, info.port, loc.filename));
-                }
-                out.println(response.toString().substring(0, response.length() - 1));
+            List<String> files = new ArrayList<>();
+            if (delta.length > 2) {
+                for (String file : delta[2].split(",")) {
+                    file = file.trim();
+                    if (!file.isEmpty()) {
+                        files.add(file);
+                    }
+                }
+            }
+            if (!routing()) {
+                reply(applyDelta(serverName, version, add, files, true));
+                return;
+            }
+            // Every node gets the version, with or without files, so that
+            // all of them can spot a gap
+            Map<String, List<String>> byNode = cluster.partition(files);
+            Map<String, String> commands = new LinkedHashMap<>();
+            for (Map.Entry<String, List<String>> part : byNode.entrySet()) {
+                if (!part.getKey().equals(cluster.self())) {
+                    commands.put(part.getKey(), (add ? "ADD_FILES " : "REMOVE_FILES ") + serverName + "|" + 
+                                 version + "|" + String.join(",", part.getValue()));
+                }
+            }
+            Map<String, String> replies = cluster.sendAll(commands);
+            String local = applyDelta(serverName, version, add, byNode.get(cluster.self()), true);
+            reply(mergeReplies(local, replies.values()));
+        }
+        
+        // Format: SERVER_NAME|ACTIVE_CONNECTIONS|QUEUE_DEPTH|BYTES_PER_SEC|LATENCY_MICROS[|VERSION]
+        // Renews the lease and replaces the load figures used for ranking.
+        // VERSION is the last one we acknowledged to the server; if we are
+        // behind it (changes lost in a crash), the server must resync.
+        private void handleHeartbeat(String data) {
+            Collection<String> remote = routing() ? cluster.broadcast("HEARTBEAT " + data).values() : List.of();
+            reply(mergeReplies(heartbeat(data), remote));
+        }
+        
+        private String heartbeat(String data) {
+            String[] heartbeat = data.split("\\|");
+            ServerInfo info = departmentServers.get(heartbeat[0]);
+            if (info == null || info.evicted) {
+                return "UNKNOWN_SERVER";
+            }
+            info.activeConnections = Integer.parseInt(heartbeat[1]);
+            info.queueDepth = Integer.parseInt(heartbeat[2]);
+            info.bytesPerSecond = Long.parseLong(heartbeat[3]);
+            info.latencyMicros = Long.parseLong(heartbeat[4]);
+            info.assigned.set(0);
+            info.lastSeen = System.currentTimeMillis();
+            if (heartbeat.length > 5) {
+                long current;
+                synchronized (info) {
+                    current = info.version;
+                }
+                if (Long.parseLong(heartbeat[5]) > current) {
+                    return "RESYNC " + current;
+                }
+            }
+            return "LEASE " + LEASE_MILLIS;
+        }
+        
+        private void handleSearch(String filename) {
+            String key = filename.toLowerCase();
+            if (!peer) {
+                // Forwarded searches were counted by the node the client asked
+                metrics.recordFile(key);
+            }
+            if (routing() && !cluster.owns(key)) {
+                reply(forwardSearch(filename));
             } else {
-                out.println("NOT_FOUND");
+                out.print(replyPrefix);
+                writeFound(out, fileIndex.get(key), ranking);
+                out.println();
             }
         }
         
-        private void handleListAll(PrintWriter out) {
-            StringBuilder response = new StringBuilder("FILES ");
-            for (Map.Entry<String, List<FileLocation>> entry : fileIndex.entrySet()) {
-                response.append(entry.getKey()).append(",");
+        // Pipelined SEARCHes that arrived together. Names owned here are
+        // answered locally and the rest go to their owners as one pipeline
+        // per node, rather than one round trip each. Returns the line that
+        // ended the batch, if one was read.
+        private String handleSearchBatch(String filename, BufferedReader in, long requestStart) throws IOException {
+            List<String> prefixes = new ArrayList<>();
+            List<String> names = new ArrayList<>();
+            prefixes.add(replyPrefix);
+            names.add(filename);
+            String next = null;
+            while (names.size() < SEARCH_BATCH && in.ready()) {
+                String line = in.readLine();
+                if (line == null) {
+                    break;
+                }
+                String request = stripPrefix(line);
+                if (!request.startsWith("SEARCH ")) {
+                    next = line;
+                    break;
+                }
+                // A search over the client's rate ends the batch and is
+                // answered by the session loop, without being charged again
+                String busy = admission.admitRequest(clientAddress);
+                if (busy != null) {
+                    pendingBusy = busy;
+                    next = line;
+                    break;
+                }
+                prefixes.add(replyPrefix);
+                names.add(request.substring(7));
+            }
+            
+            // Answers from other nodes; names owned here are looked up as
+            // their reply is written
+            String[] answers = new String[names.size()];
+            Map<String, List<String>> forwards = new LinkedHashMap<>();
+            Map<String, List<Integer>> slots = new HashMap<>();
+            for (int i = 0; i < names.size(); i++) {
+                String key = names.get(i).toLowerCase();
+                if (!cluster.owns(key)) {
+                    String owner = cluster.owners(key).get(0);
+                    forwards.computeIfAbsent(owner, k -> new ArrayList<>()).add("SEARCH " + names.get(i));
+                    slots.computeIfAbsent(owner, k -> new ArrayList<>()).add(i);
+                }
+            }
+            Map<String, List<String>> replies = cluster.pipelineAll(forwards);
+            for (Map.Entry<String, List<Integer>> owner : slots.entrySet()) {
+                List<String> answered = replies.get(owner.getKey());
+                List<Integer> indexes = owner.getValue();
+                for (int j = 0; j < indexes.size(); j++) {
+                    int i = indexes.get(j);
+                    // The preferred owner is down: try the other replicas
+                    answers[i] = answered != null ? answered.get(j) : forwardSearch(names.get(i));
+                }
+            }
+            for (int i = 0; i < answers.length; i++) {
+                out.print(prefixes.get(i));
+                if (answers[i] != null) {
+                    out.print(answers[i]);
+                } else {
+                    writeFound(out, fileIndex.get(names.get(i).toLowerCase()), ranking);
+                }
+                out.println();
             }
-            if (response.length() > 6) {
-                out.println(response.toString().substring(0, response.length() - 1));
+            metrics.record("SEARCH", System.nanoTime() - requestStart, names.size());
+            for (String name : names) {
+                metrics.recordFile(name.toLowerCase());
+            }
+            return next;
+        }
+        
+        // Format: SEARCH_PREFIX|SEARCH_SUBSTRING|SEARCH_FUZZY <limit> <query>
+        // Answers FILES name1,name2,... like LIST_ALL, or NO_FILES
+        private void handleNameSearch(String command, String args) {
+            String[] parts = args.split(" ", 2);
+            if (parts.length < 2 || parts[1].isEmpty()) {
+                reply("ERROR Usage: " + command + " <limit> <query>");
+                return;
+            }
+            byte opcode = switch (command) {
+                case "SEARCH_PREFIX" -> FrameCodec.OP_SEARCH_PREFIX;
+                case "SEARCH_SUBSTRING" -> FrameCodec.OP_SEARCH_SUBSTRING;
+                default -> FrameCodec.OP_SEARCH_FUZZY;
+            };
+            List<String> names = searchNames(opcode, parts[1], Integer.parseInt(parts[0]));
+            if (names.isEmpty()) {
+                reply("NO_FILES");
             } else {
-                out.println("NO_FILES");
+                reply("FILES " + String.join(",", names));
             }
         }
         
-        private void handleGetServer(String serverName, PrintWriter out) {
+        private List<String> searchNames(byte opcode, String query, int limit) {
+            query = query.toLowerCase();
+            limit = Math.max(1, Math.min(limit, SearchIndex.MAX_RESULTS));
+            List<String> local = switch (opcode) {
+                case FrameCodec.OP_SEARCH_PREFIX -> searchIndex.prefix(query, limit);
+                case FrameCodec.OP_SEARCH_SUBSTRING -> searchIndex.substring(query, limit);
+                default -> searchIndex.fuzzy(query, limit);
+            };
+            if (!routing()) {
+                return local;
+            }
+            
+            // Scatter to every node and merge; replicas make duplicates
+            String command = switch (opcode) {
+                case FrameCodec.OP_SEARCH_PREFIX -> "SEARCH_PREFIX ";
+                case FrameCodec.OP_SEARCH_SUBSTRING -> "SEARCH_SUBSTRING ";
+                default -> "SEARCH_FUZZY ";
+            };
+            Set<String> merged = new HashSet<>(local);
+            for (String answer : cluster.broadcast(command + limit + " " + query).values()) {
+                if (answer != null && answer.startsWith("FILES ")) {
+                    merged.addAll(Arrays.asList(answer.substring(6).split(",")));
+                }
+            }
+            List<String> results = new ArrayList<>(merged);
+            if (opcode == FrameCodec.OP_SEARCH_FUZZY) {
+                String target = query;
+                results.sort(Comparator.<String>comparingInt(name -> SearchIndex.editDistance(target, name, 2))
+                                       .thenComparing(Comparator.naturalOrder()));
+            } else {
+                Collections.sort(results);
+            }
+            return new ArrayList<>(results.subList(0, Math.min(limit, results.size())));
+        }
+        
+        // The whole catalog on one line, as before, but written name by name
+        // instead of being built up in memory first
+        private void handleListAll() {
+            Iterator<String> names = allNames().iterator();
+            if (!names.hasNext()) {
+                reply("NO_FILES");
+                return;
+            }
+            out.print(replyPrefix);
+            out.print("FILES ");
+            out.print(names.next());
+            while (names.hasNext()) {
+                out.print(',');
+                out.print(names.next());
+            }
+            out.println();
+        }
+        
+        // Format: LIST_ALL <pageSize> [cursor]
+        // Answers PAGE <next cursor or -> name1,name2,...
+        private void handleListPage(String args) {
+            String[] parts = args.split(" ", 2);
+            // Peers ask for one name past the client's page, which may be
+            // just over the limit
+            int pageSize = peer ? Integer.parseInt(parts[0]) : Listing.clampPageSize(Integer.parseInt(parts[0]));
+            List<String> page = nextPage(Listing.decodeCursor(parts.length > 1 ? parts[1] : null), pageSize);
+            boolean more = page.size() > pageSize;
+            if (more) {
+                page.remove(pageSize);
+            }
+            reply(Listing.formatPage(page, more));
+        }
+        
+        // One "FILE <name>" line per entry, then "END <count>". The writer
+        // flushes as its buffer fills, so clients see entries straight away.
+        private void handleListStream() {
+            long count = 0;
+            for (String name : allNames()) {
+                out.print(replyPrefix);
+                out.print("FILE ");
+                out.print(name);
+                out.print('\n');
+                count++;
+            }
+            reply("END " + count);
+        }
+        
+        private void handleGetServer(String serverName) {
             ServerInfo info = departmentServers.get(serverName);
             if (info != null) {
-                out.println("SERVER " + info.ip + " " + info.port);
+                reply("SERVER " + info.ip + " " + info.port);
             } else {
-                out.println("SERVER_NOT_FOUND");
+                reply("SERVER_NOT_FOUND");
+            }
+        }
+    }
+    
+    // The FOUND or NOT_FOUND reply for content indexed on this node, as
+    // a string to merge with the answers of other nodes
+    private static String searchContent(String hash) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ReplyWriter writer = new ReplyWriter(bytes, REPLY_BUFFER_SIZE);
+        writeFound(writer, contentIndex.get(hash), new Ranking());
+        writer.flush();
+        return bytes.toString(StandardCharsets.UTF_8);
+    }
+    
+    // Writes FOUND server|ip|port|filename[|sha256],... for the live
+    // locations, least loaded first, or NOT_FOUND
+    private static void writeFound(ReplyWriter out, Locations locations, Ranking ranking) {
+        if (locations == null || ranking.rank(locations) == 0) {
+            out.print("NOT_FOUND");
+            return;
+        }
+        out.print("FOUND ");
+        for (int i = 0; i < ranking.count; i++) {
+            ServerInfo info = ranking.servers[i];
+            if (i > 0) {
+                out.print(',');
+            }
+            out.print(info.name).print('|').print(info.ip).print('|').print(info.port)
+               .print('|').print(ranking.name(i));
+            String hash = ranking.hash(i);
+            if (!hash.isEmpty()) {
+                out.print('|').print(hash);
+            }
+        }
+    }
+    
+    // Whether address is a registered Department Server's, as seen on its
+    // REGISTER connection or as it reported itself
+    private static boolean fromDepartmentServer(String address) {
+        for (ServerInfo info : departmentServers.values()) {
+            if (address.equals(info.address) || address.equals(info.ip)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    // Asks the owners of a name in ring order, moving on when one is down
+    private static String forwardSearch(String filename) {
+        for (String owner : cluster.owners(filename.toLowerCase())) {
+            String answer = cluster.send(owner, "SEARCH " + filename);
+            if (answer != null) {
+                return answer;
+            }
+        }
+        return "NOT_FOUND";
+    }
+    
+    // Combines the replies of all nodes to a delta or heartbeat. The most
+    // severe one wins: if any node lost the server or a change, the server
+    // registers again, which repairs every node at once. Unreachable nodes
+    // (null) are skipped.
+    private static String mergeReplies(String local, Collection<String> remote) {
+        String merged = local;
+        for (String reply : remote) {
+            if (reply != null && severity(reply) > severity(merged)) {
+                merged = reply;
+            }
+        }
+        return merged;
+    }
+    
+    private static int severity(String reply) {
+        return reply.startsWith("UNKNOWN_SERVER") ? 2 : reply.startsWith("RESYNC") ? 1 : 0;
+    }
+    
+    // Replaces a server's registration. Replaying the log calls this with
+    // durable == false, as the change is already on disk.
+    private static void registerServer(String serverName, String ip, int port, long version,
+                                       Collection<String> files, boolean durable) {
+        // Name -> content hash ("" if the server sent none)
+        Map<String, String> keep = new HashMap<>();
+        for (String entry : files) {
+            keep.put(FileEntry.name(entry), FileEntry.hash(entry));
+        }
+        while (true) {
+            ServerInfo info = departmentServers.computeIfAbsent(serverName, k -> new ServerInfo(k, ip, port));
+            synchronized (info) {
+                if (info.evicted) {
+                    // Lost a race with the evictor; start over with a fresh entry
+                    continue;
+                }
+                publish(info);
+                info.lastSeen = System.currentTimeMillis();
+                info.ip = ip;
+                info.port = port;
+                for (String file : info.files.toList()) {
+                    if (!keep.containsKey(file)) {
+                        removeLocation(info, file);
+                    }
+                }
+                for (Map.Entry<String, String> file : keep.entrySet()) {
+                    addLocation(info, file.getKey(), file.getValue());
+                }
+                info.version = version;
+                if (durable && store != null) {
+                    store.logRegister(serverName, ip, port, version, files);
+                }
+                return;
+            }
+        }
+    }
+    
+    // Deltas must arrive in version order. A version at or below the current
+    // one was already applied and is acknowledged again; a gap means a lost
+    // delta, so the server is asked for a full REGISTER. Returns the reply.
+    private static String applyDelta(String serverName, long version, boolean add,
+                                     Collection<String> files, boolean durable) {
+        ServerInfo info = departmentServers.get(serverName);
+        if (info == null) {
+            return "UNKNOWN_SERVER";
+        }
+        synchronized (info) {
+            if (info.evicted) {
+                return "UNKNOWN_SERVER";
+            }
+            info.lastSeen = System.currentTimeMillis();
+            if (version <= info.version) {
+                return "APPLIED " + info.version;
+            }
+            if (version != info.version + 1) {
+                return "RESYNC " + info.version;
+            }
+            for (String file : files) {
+                if (add) {
+                    addLocation(info, FileEntry.name(file), FileEntry.hash(file));
+                } else {
+                    removeLocation(info, FileEntry.name(file));
+                }
+            }
+            info.version = version;
+            if (durable) {
+                if (store != null) {
+                    store.logDelta(serverName, version, add, files);
+                }
+                Log.info("%s %s files for %s (version %s)",
+                         add ? "Added" : "Removed", files.size(), serverName, version);
+            }
+            return "APPLIED " + version;
+        }
+    }
+    
+    // Caller holds the ServerInfo lock
+    private static void removeServer(String serverName, ServerInfo info, boolean durable) {
+        info.evicted = true;
+        for (String file : info.files.toList()) {
+            removeLocation(info, file);
+        }
+        departmentServers.remove(serverName, info);
+        if (durable && store != null) {
+            store.logEvict(serverName);
+        }
+    }
+    
+    private static void evictExpiredServers() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, ServerInfo> entry : departmentServers.entrySet()) {
+            String serverName = entry.getKey();
+            ServerInfo info = entry.getValue();
+            synchronized (info) {
+                if (info.evicted || now - info.lastSeen <= LEASE_MILLIS) {
+                    continue;
+                }
+                int count = info.files.size();
+                removeServer(serverName, info, true);
+                Log.info("Evicted %s (no heartbeat for %s ms, %s files)",
+                         serverName, now - info.lastSeen, count);
+            }
+        }
+    }
+    
+    // Adds recovered names to the search index while requests are already
+    // served. Each add runs inside computeIfPresent, so it cannot race with
+    // the name's last location being removed; names added live in the
+    // meantime are already indexed and skipped.
+    private static void buildSearchIndex() {
+        long started = System.currentTimeMillis();
+        for (String name : fileIndex.keySet()) {
+            fileIndex.computeIfPresent(name, (key, locations) -> {
+                searchIndex.add(key);
+                return locations;
+            });
+        }
+        Log.info("Search index ready: %s names in %s ms",
+                 searchIndex.size(), System.currentTimeMillis() - started);
+    }
+    
+    private static synchronized int serverId(String serverName) {
+        Integer id = serverIds.get(serverName);
+        if (id == null) {
+            id = serverIds.size();
+            serverIds.put(serverName, id);
+        }
+        return id;
+    }
+    
+    // Makes info the registration that searches rank for its id
+    private static synchronized void publish(ServerInfo info) {
+        ServerInfo[] servers = serversById;
+        if (info.id < servers.length && servers[info.id] == info) {
+            return;
+        }
+        if (info.id >= servers.length) {
+            servers = Arrays.copyOf(servers, Math.max(servers.length * 2, info.id + 1));
+        }
+        servers[info.id] = info;
+        serversById = servers;
+    }
+    
+    // Callers hold the ServerInfo lock, so a server's file set and the
+    // per-file location sets change together. Adding a file again with
+    // other content moves it to its new hash. A name or hash that other
+    // servers registered already is stored as their instance.
+    private static void addLocation(ServerInfo info, String file, String hash) {
+        int server = info.id;
+        String lowercase = file.toLowerCase();
+        Locations sameName = fileIndex.get(lowercase);
+        String previous = null;
+        if (sameName != null) {
+            file = sameName.share(file);
+            previous = sameName.hashOf(server, file);
+        }
+        Locations sameContent = hash.isEmpty() ? null : contentIndex.get(hash);
+        if (sameContent != null) {
+            hash = sameContent.key;
+        }
+        if (hash.equals(previous)) {
+            return;
+        }
+        String name = file;
+        String content = hash;
+        if (previous != null) {
+            removeContent(previous, server, name);
+        }
+        if (!hash.isEmpty()) {
+            contentIndex.compute(hash, (key, locations) ->
+                locations == null ? Locations.of(key, server, name, key) : locations.with(server, name, key));
+        }
+        fileIndex.compute(lowercase, (key, locations) -> {
+            if (locations == null) {
+                if (!searchIndexDeferred) {
+                    searchIndex.add(key);
+                }
+                return Locations.of(key, server, name, content);
+            }
+            return locations.with(server, name, content);
+        });
+        info.files.add(name);
+    }
+    
+    private static void removeLocation(ServerInfo info, String file) {
+        if (info.files.remove(file)) {
+            int server = info.id;
+            String lowercase = file.toLowerCase();
+            Locations current = fileIndex.get(lowercase);
+            String hash = current != null ? current.hashOf(server, file) : null;
+            if (hash != null) {
+                removeContent(hash, server, file);
             }
+            fileIndex.computeIfPresent(lowercase, (key, locations) -> {
+                Locations rest = locations.without(server, file);
+                if (rest == null) {
+                    searchIndex.remove(key);
+                }
+                return rest;
+            });
         }
     }
     
-    static class FileLocation {
-        String serverName;
-        String filename;
+    private static void removeContent(String hash, int server, String file) {
+        if (hash.isEmpty()) {
+            return;
+        }
+        contentIndex.computeIfPresent(hash, (key, locations) -> locations.without(server, file));
+    }
+    
+    // Replays logged changes into the live maps, and exports them for snapshots
+    static class StoreTarget implements IndexStore.Target {
+        @Override
+        public void applyRegister(String server, String ip, int port, long version, Collection<String> files) {
+            registerServer(server, ip, port, version, files, false);
+        }
         
-        FileLocation(String serverName, String filename) {
-            this.serverName = serverName;
-            this.filename = filename;
+        @Override
+        public void applyDelta(String server, long version, boolean add, Collection<String> files) {
+            IndexServer.applyDelta(server, version, add, files, false);
+        }
+        
+        @Override
+        public void applyEvict(String server) {
+            ServerInfo info = departmentServers.get(server);
+            if (info != null) {
+                synchronized (info) {
+                    if (!info.evicted) {
+                        removeServer(server, info, false);
+                    }
+                }
+            }
+        }
+        
+        @Override
+        public void exportTo(IndexStore.Target snapshot) {
+            for (Map.Entry<String, ServerInfo> entry : departmentServers.entrySet()) {
+                ServerInfo info = entry.getValue();
+                synchronized (info) {
+                    if (!info.evicted) {
+                        List<String> files = new ArrayList<>(info.files.size());
+                        for (String file : info.files.toList()) {
+                            Locations locations = fileIndex.get(file.toLowerCase());
+                            String hash = locations != null ? locations.hashOf(info.id, file) : null;
+                            files.add(FileEntry.format(file, hash != null ? hash : ""));
+                        }
+                        snapshot.applyRegister(entry.getKey(), info.ip, info.port, info.version, files);
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * The servers holding one name, or one content hash, as a small int
+     * array, with each replica's file name and content hash alongside.
+     * Most names have one to three replicas, so this replaces a set with an
+     * object per location. Instances never change: each update builds a
+     * new one inside the map's compute, so searches read them without
+     * locking.
+     */
+    static final class Locations {
+        // The map key, kept so that servers registering the same name or
+        // hash later can share this instance instead of storing their own
+        final String key;
+        final int[] servers;
+        // The file name on every server, usually the same string as key;
+        // null if the servers differ in case, and names has one per server
+        final String name;
+        final String[] names;
+        // Likewise the content hash of every replica ("" if unknown), or
+        // null when replicas differ and hashes has one per server
+        final String hash;
+        final String[] hashes;
+        
+        private Locations(String key, int[] servers, String name, String[] names, String hash, String[] hashes) {
+            this.key = key;
+            this.servers = servers;
+            this.name = name;
+            this.names = names;
+            this.hash = hash;
+            this.hashes = hashes;
+        }
+        
+        static Locations of(String key, int server, String file, String hash) {
+            return new Locations(key, new int[] {server}, file.equals(key) ? key : file, null, hash, null);
+        }
+        
+        int size() {
+            return servers.length;
+        }
+        
+        String name(int i) {
+            return name != null ? name : names[i];
+        }
+        
+        String hash(int i) {
+            return hash != null ? hash : hashes[i];
+        }
+        
+        // An instance already held that equals file, or file itself
+        String share(String file) {
+            for (int i = 0; i < servers.length; i++) {
+                if (name(i).equals(file)) {
+                    return name(i);
+                }
+            }
+            return file;
+        }
+        
+        // The hash the server registered file with, or null if it didn't
+        String hashOf(int server, String file) {
+            int i = indexOf(server, file);
+            return i >= 0 ? hash(i) : null;
+        }
+        
+        private int indexOf(int server, String file) {
+            for (int i = 0; i < servers.length; i++) {
+                if (servers[i] == server && name(i).equals(file)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        
+        // Adds the location, or moves it to another hash
+        Locations with(int server, String file, String contentHash) {
+            int i = indexOf(server, file);
+            if (i >= 0) {
+                if (hash(i).equals(contentHash)) {
+                    return this;
+                }
+                String[] changed = hashes(servers.length);
+                changed[i] = contentHash;
+                String same = same(changed, changed.length);
+                return new Locations(key, servers, name, names, same, same != null ? null : changed);
+            }
+            int n = servers.length;
+            int[] moreServers = Arrays.copyOf(servers, n + 1);
+            moreServers[n] = server;
+            String[] moreNames = null;
+            if (name == null || !name.equals(file)) {
+                moreNames = names(n + 1);
+                moreNames[n] = file;
+            }
+            String[] moreHashes = null;
+            if (hash == null || !hash.equals(contentHash)) {
+                moreHashes = hashes(n + 1);
+                moreHashes[n] = contentHash;
+            }
+            return new Locations(key, moreServers, moreNames == null ? name : null, moreNames,
+                                 moreHashes == null ? hash : null, moreHashes);
+        }
+        
+        // null once the last location is gone
+        Locations without(int server, String file) {
+            int i = indexOf(server, file);
+            if (i < 0) {
+                return this;
+            }
+            int n = servers.length - 1;
+            if (n == 0) {
+                return null;
+            }
+            int[] fewerServers = new int[n];
+            System.arraycopy(servers, 0, fewerServers, 0, i);
+            System.arraycopy(servers, i + 1, fewerServers, i, n - i);
+            String fewerName = name;
+            String[] fewerNames = null;
+            if (name == null) {
+                fewerNames = remove(names, i);
+                fewerName = same(fewerNames, n);
+                fewerNames = fewerName != null ? null : fewerNames;
+            }
+            String fewerHash = hash;
+            String[] fewerHashes = null;
+            if (hash == null) {
+                fewerHashes = remove(hashes, i);
+                fewerHash = same(fewerHashes, n);
+                fewerHashes = fewerHash != null ? null : fewerHashes;
+            }
+            return new Locations(key, fewerServers, fewerName, fewerNames, fewerHash, fewerHashes);
+        }
+        
+        private String[] names(int length) {
+            String[] all = new String[length];
+            for (int i = 0; i < servers.length; i++) {
+                all[i] = name(i);
+            }
+            return all;
+        }
+        
+        private String[] hashes(int length) {
+            String[] all = new String[length];
+            for (int i = 0; i < servers.length; i++) {
+                all[i] = hash(i);
+            }
+            return all;
+        }
+        
+        private static String[] remove(String[] values, int i) {
+            String[] fewer = new String[values.length - 1];
+            System.arraycopy(values, 0, fewer, 0, i);
+            System.arraycopy(values, i + 1, fewer, i, fewer.length - i);
+            return fewer;
+        }
+        
+        // The one value the first n share, or null if they differ
+        private static String same(String[] values, int n) {
+            for (int i = 1; i < n; i++) {
+                if (!values[i].equals(values[0])) {
+                    return null;
+                }
+            }
+            return values[0];
+        }
+    }
+    
+    /**
+     * The names one server has registered, as an open-addressing table of
+     * references rather than a map with a node per name; their hashes are
+     * kept in the Locations. Callers hold the ServerInfo lock.
+     */
+    static final class NameSet {
+        private String[] table = new String[16];
+        private int size;
+        
+        int size() {
+            return size;
+        }
+        
+        boolean add(String name) {
+            int slot = find(table, name);
+            if (table[slot] != null) {
+                return false;
+            }
+            table[slot] = name;
+            if (++size * 2 > table.length) {
+                String[] larger = new String[table.length * 2];
+                for (String existing : table) {
+                    if (existing != null) {
+                        larger[find(larger, existing)] = existing;
+                    }
+                }
+                table = larger;
+            }
+            return true;
+        }
+        
+        boolean remove(String name) {
+            int slot = find(table, name);
+            if (table[slot] == null) {
+                return false;
+            }
+            table[slot] = null;
+            size--;
+            // Shift later names of the same run back so lookups still find them
+            int mask = table.length - 1;
+            for (int next = (slot + 1) & mask; table[next] != null; next = (next + 1) & mask) {
+                int home = home(table[next], mask);
+                boolean stays = slot < next ? home > slot && home <= next : home > slot || home <= next;
+                if (!stays) {
+                    table[slot] = table[next];
+                    table[next] = null;
+                    slot = next;
+                }
+            }
+            return true;
+        }
+        
+        List<String> toList() {
+            List<String> names = new ArrayList<>(size);
+            for (String name : table) {
+                if (name != null) {
+                    names.add(name);
+                }
+            }
+            return names;
+        }
+        
+        // The slot holding name, or the empty slot where it would go
+        private static int find(String[] table, String name) {
+            int mask = table.length - 1;
+            int slot = home(name, mask);
+            while (table[slot] != null && !table[slot].equals(name)) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+        
+        private static int home(String name, int mask) {
+            int h = name.hashCode() * 0x9E3779B9;
+            return (h ^ (h >>> 16)) & mask;
         }
     }
     
     static class ServerInfo {
-        String ip;
-        int port;
+        final String name;
+        final int id;
+        volatile String ip;
+        volatile int port;
+        // Where its last REGISTER came from; null after recovery until it
+        // registers again
+        volatile String address;
+        // Files this server has registered, and the last delta version
+        // applied; their hashes are in fileIndex
+        final NameSet files = new NameSet();
+        long version;
+        // Lease and load, refreshed by each heartbeat
+        volatile long lastSeen = System.currentTimeMillis();
+        volatile boolean evicted;
+        volatile int activeConnections;
+        volatile int queueDepth;
+        volatile long bytesPerSecond;
+        volatile long latencyMicros;
+        // Times this server was ranked first since its last heartbeat
+        final AtomicInteger assigned = new AtomicInteger();
         
-        ServerInfo(String ip, int port) {
+        ServerInfo(String name, String ip, int port) {
+            this.name = name;
+            this.id = serverId(name);
             this.ip = ip;
             this.port = port;
         }
+        
+        // Lower is better: outstanding work (connections, queued requests,
+        // recent assignments, and throughput counted per 10 MB/s), scaled up
+        // by 1x for every 100 ms of mean response latency
+        double loadScore() {
+            double work = 1 + activeConnections + queueDepth + assigned.get() + bytesPerSecond / 10e6;
+            return work * (1 + latencyMicros / 100_000.0);
+        }
+    }
+    
+    /**
+     * The live replicas of one search, least loaded first, in arrays reused
+     * from search to search. Equal scores are shuffled so clients don't all
+     * pick the same server, and the winner's assigned count rises so the
+     * next search before its heartbeat already sees the extra download
+     * heading its way.
+     */
+    static final class Ranking {
+        // Live replicas in rank order
+        int count;
+        ServerInfo[] servers = new ServerInfo[8];
+        // Each replica's position in the ranked Locations
+        private int[] slots = new int[8];
+        private double[] scores = new double[8];
+        private Locations locations;
+        
+        // Returns the number of live replicas
+        int rank(Locations locations) {
+            this.locations = locations;
+            int n = locations.size();
+            if (n > servers.length) {
+                servers = new ServerInfo[n];
+                slots = new int[n];
+                scores = new double[n];
+            }
+            long now = System.currentTimeMillis();
+            ServerInfo[] registered = serversById;
+            count = 0;
+            for (int i = 0; i < n; i++) {
+                int id = locations.servers[i];
+                ServerInfo info = id < registered.length ? registered[id] : null;
+                if (info != null && !info.evicted && now - info.lastSeen <= LEASE_MILLIS) {
+                    servers[count] = info;
+                    slots[count] = i;
+                    scores[count] = info.loadScore();
+                    count++;
+                }
+            }
+            if (count > 1) {
+                // Shuffle, then a stable insertion sort by score
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = count - 1; i > 0; i--) {
+                    swap(i, random.nextInt(i + 1));
+                }
+                for (int i = 1; i < count; i++) {
+                    for (int j = i; j > 0 && scores[j] < scores[j - 1]; j--) {
+                        swap(j, j - 1);
+                    }
+                }
+            }
+            if (count > 0) {
+                servers[0].assigned.incrementAndGet();
+            }
+            return count;
+        }
+        
+        // The file name of the i-th replica
+        String name(int i) {
+            return locations.name(slots[i]);
+        }
+        
+        // "" if the server sent no hash
+        String hash(int i) {
+            return locations.hash(slots[i]);
+        }
+        
+        private void swap(int i, int j) {
+            ServerInfo server = servers[i];
+            servers[i] = servers[j];
+            servers[j] = server;
+            int slot = slots[i];
+            slots[i] = slots[j];
+            slots[j] = slot;
+            double score = scores[i];
+            scores[i] = scores[j];
+            scores[j] = score;
+        }
     }
-}
\ No newline at end of file
+}
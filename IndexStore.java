@@ -0,0 +1,491 @@
+// IndexStore.java
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * Durable IndexServer state: a write-ahead log of registration changes plus
+ * periodic compact snapshots.
+ *
+ * Every REGISTER, ADD_FILES, REMOVE_FILES and eviction is appended to the
+ * current log segment (wal-N.log) through a direct buffer. A background
+ * thread writes the buffer out and fsyncs every index.wal.sync.ms, so many
+ * changes share one fsync. Changes acknowledged in the last interval before a
+ * crash can be lost. The versioned delta protocol covers that: the next
+ * delta or heartbeat from the affected server shows the gap and gets RESYNC.
+ *
+ * Once a segment grows past index.snapshot.bytes, the log moves on to a new
+ * segment and the whole state is written to snapshot-N.dat as one REGISTER
+ * record per server. Recovery loads the newest complete snapshot and replays
+ * the segments from N onwards. Replay is idempotent: REGISTER replaces a
+ * server's files, and deltas at or below the recovered version are skipped.
+ * So changes that land in both the snapshot and the new segment are harmless.
+ *
+ * Record layout: u8 type | u32 payload length | payload | u32 CRC32. A torn or
+ * corrupt record ends the replay of the last segment, and the file is cut
+ * back to the last good record.
+ */
+public class IndexStore implements Closeable {
+    private static final byte REGISTER = 1;
+    private static final byte ADD_FILES = 2;
+    private static final byte REMOVE_FILES = 3;
+    private static final byte EVICT = 4;
+    private static final byte SNAPSHOT_END = 5;
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    /**
+     * Where recovered and snapshotted state goes; implemented by IndexServer.
+     * Files are FileEntry strings, so content hashes are kept too.
+     */
+    public interface Target {
+        void applyRegister(String server, String ip, int port, long version, Collection<String> files);
+
+        void applyDelta(String server, long version, boolean add, Collection<String> files);
+
+        void applyEvict(String server);
+
+        /** Calls applyRegister on the given target once per server, with a consistent view of each. */
+        void exportTo(Target snapshot);
+    }
+
+    private final Path directory;
+    private final long syncMillis;
+    private final long snapshotBytes;
+    private final Target target;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final RecordEncoder encoder = new RecordEncoder();
+    private FileChannel log;
+    private long segment;
+    private long segmentBytes;
+    private volatile boolean closed;
+    private Thread syncThread;
+
+    public IndexStore(Path directory, long syncMillis, long snapshotBytes, Target target) {
+        this.directory = directory;
+        this.syncMillis = syncMillis;
+        this.snapshotBytes = snapshotBytes;
+        this.target = target;
+    }
+
+    /**
+     * Rebuilds the target from disk, then opens a fresh log segment and
+     * starts the background sync thread. Returns the number of records replayed.
+     */
+    public long recover() throws IOException {
+        Files.createDirectories(directory);
+        long snapshot = latestSnapshot();
+        long records = 0;
+        if (snapshot >= 0) {
+            records += replay(snapshotPath(snapshot), false);
+        }
+        long last = snapshot;
+        long replayedBytes = 0;
+        for (long n : segments()) {
+            if (n >= Math.max(snapshot, 0)) {
+                records += replay(segmentPath(n), true);
+                replayedBytes += Files.size(segmentPath(n));
+            }
+            last = Math.max(last, n);
+        }
+        segment = last + 1;
+        // Counting the replayed log towards the next snapshot keeps repeated
+        // restarts from piling up segments to replay
+        segmentBytes = replayedBytes;
+        log = FileChannel.open(segmentPath(segment), StandardOpenOption.CREATE,
+                               StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+
+        syncThread = new Thread(this::syncLoop, "index-wal-sync");
+        syncThread.setDaemon(true);
+        syncThread.start();
+        return records;
+    }
+
+    public synchronized void logRegister(String server, String ip, int port, long version, Collection<String> files) {
+        append(REGISTER, encoder.begin().putString(server).putString(ip).putInt(port)
+                                .putLong(version).putStrings(files));
+    }
+
+    public synchronized void logDelta(String server, long version, boolean add, Collection<String> files) {
+        append(add ? ADD_FILES : REMOVE_FILES,
+               encoder.begin().putString(server).putLong(version).putStrings(files));
+    }
+
+    public synchronized void logEvict(String server) {
+        append(EVICT, encoder.begin().putString(server));
+    }
+
+    // Callers hold the monitor while encoding the shared record
+    private synchronized void append(byte type, RecordEncoder record) {
+        if (closed) {
+            return;
+        }
+        try {
+            int length = record.finish(type);
+            if (length > buffer.remaining()) {
+                drain();
+            }
+            if (length > buffer.capacity()) {
+                writeFully(log, ByteBuffer.wrap(record.bytes(), 0, length));
+            } else {
+                buffer.put(record.bytes(), 0, length);
+            }
+            segmentBytes += length;
+        } catch (IOException e) {
+            // The in-memory index stays authoritative; servers resync if this
+            // change turns out to be missing after a restart
+            Log.error("Index WAL write failed: %s", e.getMessage());
+        }
+    }
+
+    // Caller holds the monitor
+    private void drain() throws IOException {
+        buffer.flip();
+        writeFully(log, buffer);
+        buffer.clear();
+    }
+
+    private void syncLoop() {
+        while (!closed) {
+            try {
+                Thread.sleep(syncMillis);
+                FileChannel channel;
+                boolean rotate;
+                synchronized (this) {
+                    drain();
+                    channel = log;
+                    rotate = segmentBytes >= snapshotBytes;
+                }
+                // Outside the lock, so appends continue during the fsync
+                channel.force(false);
+                if (rotate) {
+                    snapshot();
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                Log.error("Index WAL sync failed: %s", e.getMessage());
+            }
+        }
+    }
+
+    /** Starts a new segment and writes the full state as its snapshot. */
+    public void snapshot() throws IOException {
+        long started = System.currentTimeMillis();
+        long snapshotSegment;
+        synchronized (this) {
+            drain();
+            log.force(false);
+            log.close();
+            segment++;
+            segmentBytes = 0;
+            log = FileChannel.open(segmentPath(segment), StandardOpenOption.CREATE,
+                                   StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            snapshotSegment = segment;
+        }
+
+        Path temp = directory.resolve("snapshot-" + snapshotSegment + ".tmp");
+        long[] servers = new long[1];
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE,
+                                                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer snapshotBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            RecordEncoder snapshotEncoder = new RecordEncoder();
+            IOException[] failure = new IOException[1];
+            target.exportTo(new Target() {
+                @Override
+                public void applyRegister(String server, String ip, int port, long version, Collection<String> files) {
+                    if (failure[0] != null) {
+                        return;
+                    }
+                    try {
+                        snapshotEncoder.begin().putString(server).putString(ip).putInt(port)
+                                       .putLong(version).putStrings(files);
+                        write(out, snapshotBuffer, snapshotEncoder, REGISTER);
+                        servers[0]++;
+                    } catch (IOException e) {
+                        failure[0] = e;
+                    }
+                }
+
+                @Override
+                public void applyDelta(String server, long version, boolean add, Collection<String> files) {
+                }
+
+                @Override
+                public void applyEvict(String server) {
+                }
+
+                @Override
+                public void exportTo(Target snapshot) {
+                }
+            });
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+            write(out, snapshotBuffer, snapshotEncoder.begin(), SNAPSHOT_END);
+            snapshotBuffer.flip();
+            writeFully(out, snapshotBuffer);
+            out.force(true);
+        }
+        Files.move(temp, snapshotPath(snapshotSegment), StandardCopyOption.ATOMIC_MOVE);
+
+        // Everything before the snapshot's segment is now redundant
+        for (long n : segments()) {
+            if (n < snapshotSegment) {
+                Files.deleteIfExists(segmentPath(n));
+            }
+        }
+        try (DirectoryStream<Path> old = Files.newDirectoryStream(directory, "snapshot-*")) {
+            for (Path path : old) {
+                if (!path.equals(snapshotPath(snapshotSegment))) {
+                    Files.deleteIfExists(path);
+                }
+            }
+        }
+        Log.info("Index snapshot %s written: %s servers in %s ms",
+                 snapshotSegment, servers[0], System.currentTimeMillis() - started);
+    }
+
+    private static void write(FileChannel out, ByteBuffer buffer, RecordEncoder record, byte type) throws IOException {
+        int length = record.finish(type);
+        if (length > buffer.remaining()) {
+            buffer.flip();
+            writeFully(out, buffer);
+            buffer.clear();
+        }
+        if (length > buffer.capacity()) {
+            writeFully(out, ByteBuffer.wrap(record.bytes(), 0, length));
+        } else {
+            buffer.put(record.bytes(), 0, length);
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            channel.write(data);
+        }
+    }
+
+    // Applies every intact record to the target. A damaged snapshot is
+    // rejected by latestSnapshot(); a damaged log is cut at the damage.
+    private long replay(Path path, boolean truncateDamage) throws IOException {
+        long records = 0;
+        long goodLength = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+            byte[] payload = new byte[4096];
+            CRC32 crc = new CRC32();
+            while (true) {
+                int type = in.read();
+                if (type < 0) {
+                    break;
+                }
+                int length;
+                try {
+                    length = in.readInt();
+                    if (length < 0) {
+                        break;
+                    }
+                    if (length > payload.length) {
+                        payload = new byte[Math.max(length, payload.length * 2)];
+                    }
+                    in.readFully(payload, 0, length);
+                    crc.reset();
+                    crc.update(type);
+                    crc.update(payload, 0, length);
+                    if (in.readInt() != (int) crc.getValue()) {
+                        break;
+                    }
+                } catch (EOFException e) {
+                    break;
+                }
+                if (type == SNAPSHOT_END) {
+                    goodLength += 9 + length;
+                    continue;
+                }
+                apply((byte) type, new DataInputStream(new ByteArrayInputStream(payload, 0, length)));
+                goodLength += 9 + length;
+                records++;
+            }
+        }
+        if (truncateDamage && goodLength < Files.size(path)) {
+            Log.warn("Index WAL %s: discarding damaged tail after %s bytes", path.getFileName(), goodLength);
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                channel.truncate(goodLength);
+            }
+        }
+        return records;
+    }
+
+    private void apply(byte type, DataInputStream record) throws IOException {
+        String server = record.readUTF();
+        switch (type) {
+            case REGISTER -> {
+                String ip = record.readUTF();
+                int port = record.readInt();
+                long version = record.readLong();
+                target.applyRegister(server, ip, port, version, readStrings(record));
+            }
+            case ADD_FILES, REMOVE_FILES -> {
+                long version = record.readLong();
+                target.applyDelta(server, version, type == ADD_FILES, readStrings(record));
+            }
+            case EVICT -> target.applyEvict(server);
+            default -> throw new IOException("Unknown WAL record type " + type);
+        }
+    }
+
+    private static List<String> readStrings(DataInputStream record) throws IOException {
+        int count = record.readInt();
+        List<String> strings = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            strings.add(record.readUTF());
+        }
+        return strings;
+    }
+
+    // Newest snapshot that ends with its SNAPSHOT_END marker, or -1
+    private long latestSnapshot() throws IOException {
+        List<Long> found = new ArrayList<>();
+        try (DirectoryStream<Path> snapshots = Files.newDirectoryStream(directory, "snapshot-*.dat")) {
+            for (Path path : snapshots) {
+                found.add(number(path, "snapshot-", ".dat"));
+            }
+        }
+        found.sort(Comparator.reverseOrder());
+        for (long n : found) {
+            if (endsWithMarker(snapshotPath(n))) {
+                return n;
+            }
+            Log.warn("Index snapshot %s is incomplete, skipping it", n);
+        }
+        return -1;
+    }
+
+    private static boolean endsWithMarker(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() < 9) {
+                return false;
+            }
+            ByteBuffer tail = ByteBuffer.allocate(9);
+            channel.read(tail, channel.size() - 9);
+            return tail.get(0) == SNAPSHOT_END && tail.getInt(1) == 0;
+        }
+    }
+
+    private List<Long> segments() throws IOException {
+        List<Long> found = new ArrayList<>();
+        try (DirectoryStream<Path> logs = Files.newDirectoryStream(directory, "wal-*.log")) {
+            for (Path path : logs) {
+                found.add(number(path, "wal-", ".log"));
+            }
+        }
+        Collections.sort(found);
+        return found;
+    }
+
+    private static long number(Path path, String prefix, String suffix) {
+        String name = path.getFileName().toString();
+        return Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length()));
+    }
+
+    private Path segmentPath(long n) {
+        return directory.resolve("wal-" + n + ".log");
+    }
+
+    private Path snapshotPath(long n) {
+        return directory.resolve("snapshot-" + n + ".dat");
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+            if (log != null) {
+                drain();
+                log.force(false);
+                log.close();
+            }
+        }
+        if (syncThread != null) {
+            syncThread.interrupt();
+        }
+    }
+
+    // Builds one record in a reusable array; strings use modified UTF-8
+    // with a u16 length, as DataOutputStream.writeUTF does
+    private static class RecordEncoder {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096) {
+            @Override
+            public synchronized byte[] toByteArray() {
+                return buf;
+            }
+        };
+        private final DataOutputStream data = new DataOutputStream(bytes);
+        private final CRC32 crc = new CRC32();
+
+        RecordEncoder begin() {
+            bytes.reset();
+            // Room for type and length, filled in by finish()
+            bytes.write(new byte[5], 0, 5);
+            return this;
+        }
+
+        RecordEncoder putString(String value) {
+            try {
+                data.writeUTF(value);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return this;
+        }
+
+        RecordEncoder putInt(int value) {
+            try {
+                data.writeInt(value);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return this;
+        }
+
+        RecordEncoder putLong(long value) {
+            try {
+                data.writeLong(value);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return this;
+        }
+
+        RecordEncoder putStrings(Collection<String> values) {
+            putInt(values.size());
+            for (String value : values) {
+                putString(value);
+            }
+            return this;
+        }
+
+        // Fills in the header, appends the CRC and returns the record length
+        int finish(byte type) {
+            byte[] buf = bytes.toByteArray();
+            int payloadLength = bytes.size() - 5;
+            buf[0] = type;
+            buf[1] = (byte) (payloadLength >>> 24);
+            buf[2] = (byte) (payloadLength >>> 16);
+            buf[3] = (byte) (payloadLength >>> 8);
+            buf[4] = (byte) payloadLength;
+            crc.reset();
+            crc.update(type);
+            crc.update(buf, 5, payloadLength);
+            putInt((int) crc.getValue());
+            return bytes.size();
+        }
+
+        byte[] bytes() {
+            return bytes.toByteArray();
+        }
+    }
+}
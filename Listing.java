@@ -0,0 +1,73 @@
+// Listing.java
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Shared pieces of the paginated LIST / LIST_ALL responses.
+ *
+ * Pages are in name order and a continuation cursor names the last entry
+ * returned, so a listing resumes correctly even when entries are added or
+ * removed between pages. Cursors travel as URL-safe base64, which keeps
+ * spaces and commas in names out of the protocol line; "-" means there are
+ * no more pages.
+ */
+public final class Listing {
+    public static final String NO_MORE = "-";
+    public static final int MAX_PAGE_SIZE = 10000;
+
+    private Listing() {
+    }
+
+    public static String encodeCursor(String lastName) {
+        return Base64.getUrlEncoder().withoutPadding()
+                     .encodeToString(lastName.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** The name a cursor points after, or null for the first page. */
+    public static String decodeCursor(String cursor) {
+        if (cursor == null || cursor.isEmpty() || cursor.equals(NO_MORE)) {
+            return null;
+        }
+        return new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+    }
+
+    public static int clampPageSize(int pageSize) {
+        return Math.max(1, Math.min(pageSize, MAX_PAGE_SIZE));
+    }
+
+    /** "PAGE <next cursor> name1,name2,..." for a page that may be the last. */
+    public static String formatPage(List<String> names, boolean more) {
+        String next = more ? encodeCursor(names.get(names.size() - 1)) : NO_MORE;
+        return "PAGE " + next + (names.isEmpty() ? "" : " " + String.join(",", names));
+    }
+
+    /**
+     * The first pageSize regular files after the given name, in name order,
+     * plus one extra entry when more follow. The directory is read as a
+     * stream and only the smallest pageSize + 1 names are kept in a bounded
+     * heap, so memory stays proportional to the page, not the directory.
+     */
+    public static List<String> directoryPage(Path directory, String after, int pageSize) throws IOException {
+        int keep = pageSize + 1;
+        PriorityQueue<String> largestFirst = new PriorityQueue<>(keep + 1, Comparator.reverseOrder());
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            for (Path entry : entries) {
+                String name = entry.getFileName().toString();
+                if ((after != null && name.compareTo(after) <= 0) || !Files.isRegularFile(entry)) {
+                    continue;
+                }
+                if (largestFirst.size() < keep) {
+                    largestFirst.add(name);
+                } else if (name.compareTo(largestFirst.peek()) < 0) {
+                    largestFirst.poll();
+                    largestFirst.add(name);
+                }
+            }
+        }
+        List<String> page = new ArrayList<>(largestFirst);
+        Collections.sort(page);
+        return page;
+    }
+}
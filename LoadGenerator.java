@@ -0,0 +1,545 @@
+// LoadGenerator.java
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Headless end-to-end load: many simulated clients sending a mix of SEARCH,
+ * LIST_ALL and DOWNLOAD, as FileClient would, without its menu.
+ *
+ * Without index=host:port it starts an Index Server and servers Department
+ * Servers as child processes, each serving the same files synthetic files,
+ * and stops them afterwards. With index=host:port it drives an existing
+ * system, using the names LIST_ALL returns.
+ *
+ * With rate > 0 the load is open-loop: requests are scheduled at that
+ * rate (Poisson or evenly spaced arrivals) whatever the servers do, and
+ * handed to the next free client. Latency is measured from the scheduled
+ * time, so time spent waiting for a busy system counts, and a stall isn't
+ * hidden by the clients slowing down with it (coordinated omission). With
+ * rate=0 every client sends its next request as soon as the last one is
+ * answered. A DOWNLOAD searches for the file first and fetches it from a
+ * random location, so its latency is the whole fetch.
+ *
+ * Usage: java LoadGenerator [name=value ...]
+ *   index=host:port   existing Index Server to drive (default: start a local system)
+ *   servers=3         Department Servers to start locally
+ *   files=1000        files per local Department Server
+ *   file.size=65536   bytes per local file
+ *   mode=thread       connection model of the local Department Servers
+ *   clients=1000      simulated clients, one thread and index session each
+ *   rate=2000         requests per second; 0 for closed-loop clients
+ *   arrivals=poisson  poisson or uniform spacing of open-loop requests
+ *   mix=search:80,list:5,download:15
+ *   warmup=5          seconds of load before measuring
+ *   seconds=30        seconds measured
+ */
+public class LoadGenerator {
+    private static final int SOCKET_TIMEOUT_MILLIS = 30_000;
+    private static final long DRAIN_SECONDS = 30;
+
+    enum Op { SEARCH, LIST, DOWNLOAD }
+
+    private final Map<String, String> options;
+    private final String indexHost;
+    private final int indexPort;
+    private final List<String> names;
+    private final Op[] weighted;
+    private final Map<Op, Stats> stats = new EnumMap<>(Op.class);
+    private final ThreadLocal<IndexSession> sessions = new ThreadLocal<>();
+    private final List<IndexSession> allSessions = Collections.synchronizedList(new ArrayList<>());
+    // Requests scheduled before this are warmup and not recorded
+    private volatile long measureFrom;
+
+    LoadGenerator(Map<String, String> options, String indexHost, int indexPort, List<String> names) {
+        this.options = options;
+        this.indexHost = indexHost;
+        this.indexPort = indexPort;
+        this.names = names;
+        this.weighted = parseMix(options.getOrDefault("mix", "search:80,list:5,download:15"));
+        for (Op op : Op.values()) {
+            stats.put(op, new Stats());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq <= 0) {
+                System.out.println("Usage: java LoadGenerator [name=value ...], see LoadGenerator.java");
+                return;
+            }
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+
+        LocalSystem local = null;
+        try {
+            String host;
+            int port;
+            List<String> names;
+            if (options.containsKey("index")) {
+                String[] address = options.get("index").split(":");
+                host = address[0];
+                port = Integer.parseInt(address[1]);
+                names = listAll(host, port);
+                if (names.isEmpty()) {
+                    System.out.println("The index holds no files to search or download");
+                    return;
+                }
+            } else {
+                local = new LocalSystem(Integer.parseInt(options.getOrDefault("servers", "3")),
+                                        Integer.parseInt(options.getOrDefault("files", "1000")),
+                                        Integer.parseInt(options.getOrDefault("file.size", "65536")),
+                                        options.getOrDefault("mode", "thread"));
+                host = "localhost";
+                port = local.start();
+                names = local.names;
+            }
+            new LoadGenerator(options, host, port, names).run();
+        } finally {
+            if (local != null) {
+                local.stop();
+            }
+        }
+    }
+
+    void run() throws InterruptedException {
+        int clients = Integer.parseInt(options.getOrDefault("clients", "1000"));
+        double rate = Double.parseDouble(options.getOrDefault("rate", "2000"));
+        boolean poisson = !options.getOrDefault("arrivals", "poisson").equals("uniform");
+        long warmup = TimeUnit.SECONDS.toNanos(Long.parseLong(options.getOrDefault("warmup", "5")));
+        long seconds = Long.parseLong(options.getOrDefault("seconds", "30"));
+
+        System.out.printf("%d clients, %s, %d names on %s:%d, %ds warmup + %ds%n", clients,
+                          rate > 0 ? String.format("open loop at %.0f req/s (%s)", rate, poisson ? "poisson" : "uniform")
+                                   : "closed loop",
+                          names.size(), indexHost, indexPort, TimeUnit.NANOSECONDS.toSeconds(warmup), seconds);
+
+        long start = System.nanoTime();
+        measureFrom = start + warmup;
+        long end = measureFrom + TimeUnit.SECONDS.toNanos(seconds);
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(clients, clients, 0, TimeUnit.SECONDS,
+                                                         new LinkedBlockingQueue<>(), clientThreads());
+        pool.prestartAllCoreThreads();
+        Thread reporter = progressReporter(start, pool);
+
+        int maxBacklog = 0;
+        if (rate > 0) {
+            double meanGapNanos = 1e9 / rate;
+            double scheduled = start;
+            while (scheduled < end) {
+                long due = (long) scheduled;
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                    continue;
+                }
+                // Behind schedule, requests are released at once with their
+                // original times, so the delay shows up in their latency
+                Op op = pick();
+                pool.execute(() -> execute(op, due));
+                maxBacklog = Math.max(maxBacklog, pool.getQueue().size());
+                scheduled += poisson ? -Math.log(1 - ThreadLocalRandom.current().nextDouble()) * meanGapNanos
+                                     : meanGapNanos;
+            }
+        } else {
+            for (int i = 0; i < clients; i++) {
+                pool.execute(() -> {
+                    long now;
+                    while ((now = System.nanoTime()) < end) {
+                        execute(pick(), now);
+                    }
+                });
+            }
+        }
+
+        pool.shutdown();
+        boolean drained = pool.awaitTermination(Math.max(1, TimeUnit.NANOSECONDS.toSeconds(end - System.nanoTime()))
+                                                + DRAIN_SECONDS, TimeUnit.SECONDS);
+        int unfinished = drained ? 0 : pool.shutdownNow().size() + pool.getActiveCount();
+        reporter.interrupt();
+        for (IndexSession session : allSessions) {
+            session.close();
+        }
+
+        report(seconds, maxBacklog, unfinished);
+    }
+
+    private void execute(Op op, long scheduledAt) {
+        Stats target = stats.get(op);
+        boolean measured = scheduledAt >= measureFrom;
+        try {
+            long bytes = switch (op) {
+                case SEARCH -> search(randomName()) != null ? 0 : -1;
+                case LIST -> list();
+                case DOWNLOAD -> download(randomName());
+            };
+            if (!measured) {
+                return;
+            }
+            if (bytes < 0) {
+                target.error("NOT_FOUND");
+            } else {
+                target.bytes.add(bytes);
+            }
+        } catch (IOException | RuntimeException e) {
+            // The session may be half-way through a reply; start a new one
+            IndexSession session = sessions.get();
+            if (session != null) {
+                session.close();
+                sessions.remove();
+            }
+            if (measured) {
+                target.error(e.getClass().getSimpleName() + ": " + e.getMessage());
+            }
+        } finally {
+            if (measured) {
+                target.latency.record(System.nanoTime() - scheduledAt, 1);
+            }
+        }
+    }
+
+    // FOUND locations, or null if the index has none
+    private String[] search(String name) throws IOException {
+        String reply = session().request("SEARCH " + name);
+        if (reply.startsWith("FOUND ")) {
+            return reply.substring("FOUND ".length()).split(",");
+        }
+        if (reply.startsWith("NOT_FOUND")) {
+            return null;
+        }
+        throw new IOException("SEARCH answered " + reply);
+    }
+
+    private long list() throws IOException {
+        String reply = session().request("LIST_ALL");
+        if (!reply.startsWith("FILES ") && !reply.equals("NO_FILES")) {
+            throw new IOException("LIST_ALL answered " + reply);
+        }
+        return reply.length();
+    }
+
+    // Search, then fetch the whole file from one of its locations
+    private long download(String name) throws IOException {
+        String[] locations = search(name);
+        if (locations == null) {
+            return -1;
+        }
+        // server|host|port|filename[|sha256]
+        String[] location = locations[ThreadLocalRandom.current().nextInt(locations.length)].split("\\|");
+        try (Socket socket = connect(location[1], Integer.parseInt(location[2]))) {
+            OutputStream out = socket.getOutputStream();
+            out.write(("DOWNLOAD " + location[3] + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            InputStream in = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+            String header = DfsClient.readHeaderLine(in);
+            if (header == null || !header.startsWith("SIZE ")) {
+                throw new IOException("DOWNLOAD answered " + header);
+            }
+            long size = Long.parseLong(header.split(" ")[1]);
+            long received = in.skip(size);
+            while (received < size && in.read() != -1) {
+                received++;
+                received += in.skip(size - received);
+            }
+            if (received < size) {
+                throw new EOFException("Received " + received + " of " + size + " bytes");
+            }
+            return size;
+        }
+    }
+
+    private IndexSession session() throws IOException {
+        IndexSession session = sessions.get();
+        if (session == null) {
+            session = new IndexSession(connect(indexHost, indexPort));
+            sessions.set(session);
+            allSessions.add(session);
+        }
+        return session;
+    }
+
+    private String randomName() {
+        return names.get(ThreadLocalRandom.current().nextInt(names.size()));
+    }
+
+    private Op pick() {
+        return weighted[ThreadLocalRandom.current().nextInt(weighted.length)];
+    }
+
+    // "search:80,list:5,download:15" as 100 slots to pick from
+    private static Op[] parseMix(String mix) {
+        List<Op> slots = new ArrayList<>();
+        for (String part : mix.split(",")) {
+            String[] entry = part.trim().split(":");
+            Op op = Op.valueOf(entry[0].trim().toUpperCase());
+            for (int i = Integer.parseInt(entry[1].trim()); i > 0; i--) {
+                slots.add(op);
+            }
+        }
+        if (slots.isEmpty()) {
+            throw new IllegalArgumentException("Empty request mix: " + mix);
+        }
+        return slots.toArray(new Op[0]);
+    }
+
+    private void report(long seconds, int maxBacklog, int unfinished) {
+        System.out.println();
+        System.out.printf("%-9s %10s %10s %8s %10s %10s %10s %10s %10s%n",
+                          "request", "count", "req/s", "errors", "p50 ms", "p99 ms", "p999 ms", "max ms", "MB/s");
+        long total = 0;
+        long errors = 0;
+        for (Op op : Op.values()) {
+            Stats s = stats.get(op);
+            long count = s.latency.count.sum();
+            if (count == 0) {
+                continue;
+            }
+            long[] buckets = s.latency.snapshot();
+            long max = s.latency.max.get();
+            total += count;
+            errors += s.errors.sum();
+            System.out.printf("%-9s %10d %10.1f %7.2f%% %10.3f %10.3f %10.3f %10.3f %10.2f%n",
+                              op, count, count / (double) seconds, 100.0 * s.errors.sum() / count,
+                              millis(Math.min(max, Metrics.Histogram.percentile(buckets, 0.50))),
+                              millis(Math.min(max, Metrics.Histogram.percentile(buckets, 0.99))),
+                              millis(Math.min(max, Metrics.Histogram.percentile(buckets, 0.999))),
+                              millis(max), s.bytes.sum() / 1e6 / seconds);
+        }
+        System.out.printf("total     %10d %10.1f %7.2f%%%n", total, total / (double) seconds,
+                          total == 0 ? 0.0 : 100.0 * errors / total);
+        for (Op op : Op.values()) {
+            String sample = stats.get(op).lastError;
+            if (sample != null) {
+                System.out.println(op + " error, e.g.: " + sample);
+            }
+        }
+        System.out.println("Percentiles are bucket upper bounds, within 25% of the true value.");
+        if (maxBacklog > 0) {
+            System.out.println("Up to " + maxBacklog + " requests waited for a free client;"
+                               + " their wait is part of the latency. Add clients if that is not intended.");
+        }
+        if (unfinished > 0) {
+            System.out.println(unfinished + " requests had not finished " + DRAIN_SECONDS + " s after the run");
+        }
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    private Thread progressReporter(long start, ThreadPoolExecutor pool) {
+        Thread reporter = new Thread(() -> {
+            long last = 0;
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long done = 0;
+                long errors = 0;
+                for (Stats s : stats.values()) {
+                    done += s.latency.count.sum();
+                    errors += s.errors.sum();
+                }
+                System.out.printf("%3ds  %8d req/s  %6d errors  %6d waiting%n",
+                                  TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start),
+                                  done - last, errors, pool.getQueue().size());
+                last = done;
+            }
+        }, "load-progress");
+        reporter.setDaemon(true);
+        reporter.start();
+        return reporter;
+    }
+
+    private static ThreadFactory clientThreads() {
+        AtomicInteger count = new AtomicInteger();
+        return task -> {
+            // Clients mostly wait on sockets; small stacks let thousands run
+            Thread thread = new Thread(null, task, "client-" + count.incrementAndGet(), 256 * 1024);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private static Socket connect(String host, int port) throws IOException {
+        Socket socket = new Socket();
+        socket.connect(new InetSocketAddress(host, port), SOCKET_TIMEOUT_MILLIS);
+        socket.setSoTimeout(SOCKET_TIMEOUT_MILLIS);
+        socket.setTcpNoDelay(true);
+        return socket;
+    }
+
+    private static List<String> listAll(String host, int port) throws IOException {
+        try (IndexSession session = new IndexSession(connect(host, port))) {
+            String reply = session.request("LIST_ALL");
+            return reply.startsWith("FILES ")
+                ? Arrays.asList(reply.substring("FILES ".length()).split(","))
+                : List.of();
+        }
+    }
+
+    /** Outcome of one kind of request. */
+    static class Stats {
+        final Metrics.Histogram latency = new Metrics.Histogram();
+        final LongAdder errors = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+        volatile String lastError;
+
+        void error(String message) {
+            errors.increment();
+            lastError = message;
+        }
+    }
+
+    /** A simulated client's keep-alive connection to the Index Server. */
+    static class IndexSession implements Closeable {
+        private final Socket socket;
+        private final BufferedReader in;
+        private final Writer out;
+
+        IndexSession(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            this.out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+        }
+
+        String request(String line) throws IOException {
+            out.write(line);
+            out.write('\n');
+            out.flush();
+            String reply = in.readLine();
+            if (reply == null) {
+                throw new EOFException("Index Server closed the session");
+            }
+            return reply;
+        }
+
+        @Override
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already gone
+            }
+        }
+    }
+
+    /**
+     * An Index Server and Department Servers in child processes, on free
+     * ports, over synthetic directories in a temporary directory.
+     */
+    static class LocalSystem {
+        private final int servers;
+        private final int files;
+        private final int fileSize;
+        private final String mode;
+        private final List<Process> processes = new ArrayList<>();
+        final List<String> names = new ArrayList<>();
+        private Path workDir;
+
+        LocalSystem(int servers, int files, int fileSize, String mode) {
+            this.servers = servers;
+            this.files = files;
+            this.fileSize = fileSize;
+            this.mode = mode;
+            for (int i = 0; i < files; i++) {
+                names.add(String.format("file%06d.dat", i));
+            }
+        }
+
+        // Returns the Index Server's port once every server has registered
+        int start() throws IOException, InterruptedException {
+            workDir = Files.createTempDirectory("load-test");
+            Runtime.getRuntime().addShutdownHook(new Thread(this::stop));
+            System.out.printf("Starting an Index Server and %d Department Servers with %d files of %d bytes in %s%n",
+                              servers, files, fileSize, workDir);
+            int indexPort = freePort();
+            launch("IndexServer", String.valueOf(indexPort));
+            awaitPort(indexPort);
+
+            byte[] content = new byte[fileSize];
+            new Random(1).nextBytes(content);
+            for (int s = 0; s < servers; s++) {
+                Path directory = Files.createDirectories(workDir.resolve("server" + s));
+                for (String name : names) {
+                    Files.write(directory.resolve(name), content);
+                }
+                int port = freePort();
+                launch("DepartmentServer", "Load_Server_" + s, String.valueOf(port), directory.toString(),
+                       "localhost", String.valueOf(indexPort), mode);
+                awaitPort(port);
+            }
+
+            // Registered once the last name has a location on every server
+            long deadline = System.currentTimeMillis() + 120_000;
+            String last = names.get(names.size() - 1);
+            try (IndexSession session = new IndexSession(connect("localhost", indexPort))) {
+                while (true) {
+                    String reply = session.request("SEARCH " + last);
+                    if (reply.startsWith("FOUND ") && reply.split(",").length >= servers) {
+                        return indexPort;
+                    }
+                    if (System.currentTimeMillis() > deadline) {
+                        throw new IOException("Department Servers did not register, see logs in " + workDir);
+                    }
+                    Thread.sleep(200);
+                }
+            }
+        }
+
+        synchronized void stop() {
+            for (Process process : processes) {
+                process.destroy();
+            }
+            processes.clear();
+        }
+
+        private void launch(String mainClass, String... args) throws IOException {
+            List<String> command = new ArrayList<>(List.of(
+                Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-Ddfs.log.level=WARN",
+                "-Ddfs.index.data.dir=",
+                "-Ddfs.index.lease.ms=3600000",
+                "-Ddfs.server.hash.cache.dir=" + workDir.resolve("hash-cache"),
+                "-cp", System.getProperty("java.class.path"),
+                mainClass));
+            command.addAll(Arrays.asList(args));
+            File log = workDir.resolve(mainClass + "-" + processes.size() + ".log").toFile();
+            processes.add(new ProcessBuilder(command).directory(workDir.toFile())
+                              .redirectErrorStream(true).redirectOutput(log).start());
+        }
+
+        private void awaitPort(int port) throws IOException, InterruptedException {
+            long deadline = System.currentTimeMillis() + 30_000;
+            while (true) {
+                try {
+                    new Socket("localhost", port).close();
+                    return;
+                } catch (IOException e) {
+                    if (!processes.get(processes.size() - 1).isAlive() || System.currentTimeMillis() > deadline) {
+                        throw new IOException("Server on port " + port + " did not start, see logs in " + workDir);
+                    }
+                    Thread.sleep(50);
+                }
+            }
+        }
+
+        private static int freePort() throws IOException {
+            try (ServerSocket socket = new ServerSocket(0)) {
+                return socket.getLocalPort();
+            }
+        }
+    }
+}
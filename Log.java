@@ -0,0 +1,219 @@
+// Log.java
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Server logging that stays off the request path.
+ *
+ * Callers pass a format string and arguments; when the level is off the call
+ * returns before anything is formatted. Enabled events go into a fixed ring
+ * of slots that producers claim with a compare-and-set, so handler threads
+ * never wait on a lock or on the console. One daemon thread drains the ring,
+ * formats the lines and writes them in batches, ERROR and WARN to stderr and
+ * the rest to stdout. If the ring is full the event is dropped and counted
+ * rather than blocking the caller.
+ *
+ * Per-request lines (connections, request echoes, transfers) go through
+ * request(), which logs at INFO but at most log.sample.per.sec lines per
+ * second. The writer reports how many lines were sampled out or dropped.
+ */
+public final class Log {
+    public enum Level { ERROR, WARN, INFO, DEBUG }
+
+    private static final DateTimeFormatter TIME =
+        DateTimeFormatter.ofPattern("HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+    // How long the writer sleeps when the ring is empty
+    private static final long IDLE_NANOS = 1_000_000;
+
+    private static final Level level = Config.getLogLevel();
+    private static final int samplePerSecond = Config.getLogSamplePerSecond();
+
+    // Ring of preallocated slots. sequences[i] == position means the slot is
+    // free for the producer claiming that position; position + 1 means it
+    // holds an event for the writer.
+    private static final int capacity = Integer.highestOneBit(Math.max(2, Config.getLogBufferSize() - 1)) << 1;
+    private static final int mask = capacity - 1;
+    private static final AtomicLongArray sequences = new AtomicLongArray(capacity);
+    private static final Event[] slots = new Event[capacity];
+    private static final AtomicLong tail = new AtomicLong();
+    // Only the writer thread moves head
+    private static long head;
+
+    private static final LongAdder dropped = new LongAdder();
+    private static final LongAdder sampledOut = new LongAdder();
+    // Second and count of the current sampling window
+    private static final AtomicLong sampleWindow = new AtomicLong();
+    private static final AtomicLong sampleCount = new AtomicLong();
+
+    static {
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+            slots[i] = new Event();
+        }
+        Thread writer = new Thread(Log::drainLoop, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            reportLosses();
+            drain();
+        }, "log-flush"));
+    }
+
+    private Log() {
+    }
+
+    public static boolean enabled(Level at) {
+        return at.ordinal() <= level.ordinal();
+    }
+
+    public static void error(String format, Object... args) {
+        log(Level.ERROR, format, args);
+    }
+
+    public static void warn(String format, Object... args) {
+        log(Level.WARN, format, args);
+    }
+
+    public static void info(String format, Object... args) {
+        log(Level.INFO, format, args);
+    }
+
+    public static void debug(String format, Object... args) {
+        log(Level.DEBUG, format, args);
+    }
+
+    /** An INFO line about a single request, subject to sampling. */
+    public static void request(String format, Object... args) {
+        if (!enabled(Level.INFO)) {
+            return;
+        }
+        if (!sample()) {
+            sampledOut.increment();
+            return;
+        }
+        enqueue(Level.INFO, format, args);
+    }
+
+    private static void log(Level at, String format, Object[] args) {
+        if (enabled(at)) {
+            enqueue(at, format, args);
+        }
+    }
+
+    // Fixed one-second windows; a race at the window boundary may let a
+    // few extra lines through, which is harmless
+    private static boolean sample() {
+        if (samplePerSecond < 0) {
+            return true;
+        }
+        long second = System.nanoTime() / 1_000_000_000L;
+        long window = sampleWindow.get();
+        if (window != second && sampleWindow.compareAndSet(window, second)) {
+            sampleCount.set(0);
+        }
+        return sampleCount.incrementAndGet() <= samplePerSecond;
+    }
+
+    private static void enqueue(Level at, String format, Object[] args) {
+        long position;
+        int index;
+        while (true) {
+            position = tail.get();
+            index = (int) (position & mask);
+            long sequence = sequences.get(index);
+            if (sequence == position) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+            } else if (sequence < position) {
+                // The writer hasn't freed this slot yet: the ring is full
+                dropped.increment();
+                return;
+            }
+            // Another producer claimed the position first; try the next one
+        }
+        Event event = slots[index];
+        event.time = System.currentTimeMillis();
+        event.level = at;
+        event.format = format;
+        event.args = args;
+        sequences.set(index, position + 1);
+    }
+
+    private static void drainLoop() {
+        long lastReport = System.nanoTime();
+        while (true) {
+            if (drain() == 0) {
+                LockSupport.parkNanos(IDLE_NANOS);
+            }
+            long now = System.nanoTime();
+            if (now - lastReport >= 1_000_000_000L) {
+                lastReport = now;
+                reportLosses();
+            }
+        }
+    }
+
+    // Writes out every event published so far; returns how many there were
+    private static synchronized int drain() {
+        StringBuilder out = new StringBuilder();
+        StringBuilder err = new StringBuilder();
+        int count = 0;
+        while (true) {
+            int index = (int) (head & mask);
+            if (sequences.get(index) != head + 1) {
+                break;
+            }
+            Event event = slots[index];
+            StringBuilder target = event.level.ordinal() <= Level.WARN.ordinal() ? err : out;
+            target.append(TIME.format(Instant.ofEpochMilli(event.time))).append(' ')
+                  .append(event.level).append(' ').append(format(event))
+                  .append(System.lineSeparator());
+            event.format = null;
+            event.args = null;
+            sequences.set(index, head + capacity);
+            head++;
+            count++;
+        }
+        if (err.length() > 0) {
+            System.err.print(err);
+            System.err.flush();
+        }
+        if (out.length() > 0) {
+            System.out.print(out);
+            System.out.flush();
+        }
+        return count;
+    }
+
+    private static String format(Event event) {
+        try {
+            return String.format(event.format, event.args);
+        } catch (RuntimeException e) {
+            return event.format + " (bad log format: " + e + ")";
+        }
+    }
+
+    private static void reportLosses() {
+        long sampled = sampledOut.sumThenReset();
+        long lost = dropped.sumThenReset();
+        if (sampled > 0) {
+            info("%d request log lines sampled out in the last second", sampled);
+        }
+        if (lost > 0) {
+            warn("%d log lines dropped, log buffer full", lost);
+        }
+    }
+
+    private static final class Event {
+        long time;
+        Level level;
+        String format;
+        Object[] args;
+    }
+}
@@ -0,0 +1,66 @@
+// LookupCache.java
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A small LRU map whose entries also expire after a fixed time. FileClient
+ * keeps SEARCH results in one so that repeated downloads of the same file
+ * skip the index round trip while the answer is still fresh.
+ */
+public class LookupCache<K, V> {
+    private final long ttlMillis;
+    private final LinkedHashMap<K, Entry<V>> entries;
+    private long hits;
+    private long misses;
+
+    public LookupCache(int maxEntries, long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+        // Access order, so the eldest entry is the least recently used
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /** The cached value, or null if absent or expired. */
+    public synchronized V get(K key) {
+        Entry<V> entry = entries.get(key);
+        if (entry == null || System.currentTimeMillis() - entry.created > ttlMillis) {
+            if (entry != null) {
+                entries.remove(key);
+            }
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.value;
+    }
+
+    public synchronized void put(K key, V value) {
+        entries.put(key, new Entry<>(value, System.currentTimeMillis()));
+    }
+
+    public synchronized void invalidate(K key) {
+        entries.remove(key);
+    }
+
+    public synchronized long hits() {
+        return hits;
+    }
+
+    public synchronized long misses() {
+        return misses;
+    }
+
+    private static class Entry<V> {
+        final V value;
+        final long created;
+
+        Entry(V value, long created) {
+            this.value = value;
+            this.created = created;
+        }
+    }
+}
@@ -0,0 +1,392 @@
+// Metrics.java
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Request metrics of one server process: a latency histogram per command,
+ * counters and gauges read from the server's own state, and the most
+ * requested files (downloads on a Department Server, searches on the
+ * Index Server).
+ *
+ * Recording is cheap enough for every request: a map lookup, an atomic
+ * increment of one histogram bucket and two LongAdder updates, with no
+ * locks. Histogram buckets are logarithmic with four steps per power of two,
+ * so percentiles are exact to within 25%. The most requested files are kept
+ * with the Space-Saving algorithm in a table of fixed size, which finds every
+ * file with more than 1/size of all requests however many files there are.
+ *
+ * statsLine() is the STATS reply; prometheus() is the same data in the
+ * Prometheus text format, which serve() exposes over HTTP at /metrics.
+ */
+public class Metrics {
+    private final String prefix;
+    private final long startedAt = System.nanoTime();
+    private final Map<String, Histogram> latencies = new ConcurrentHashMap<>();
+    // Insertion order keeps the STATS line stable
+    private final Map<String, Reading> counters = Collections.synchronizedMap(new LinkedHashMap<>());
+    private final Map<String, Reading> gauges = Collections.synchronizedMap(new LinkedHashMap<>());
+    private final TopK files;
+    private final int topFiles;
+    // Totals at the previous STATS, for the request rate since then
+    private long lastStatsAt = startedAt;
+    private long lastStatsRequests;
+
+    /** prefix starts every Prometheus metric name, e.g. "index" or "department". */
+    public Metrics(String prefix, int topFiles) {
+        this.prefix = prefix;
+        this.topFiles = topFiles;
+        this.files = new TopK(Math.max(64, topFiles * 8));
+    }
+
+    /** Adds one request of this command that took the given time. */
+    public void record(String command, long nanos) {
+        histogram(command).record(nanos, 1);
+    }
+
+    /** Adds count requests that were served together, at their mean time each. */
+    public void record(String command, long nanos, int count) {
+        histogram(command).record(nanos / Math.max(1, count), count);
+    }
+
+    /** Counts a request for a file towards the most requested files. */
+    public void recordFile(String filename) {
+        files.add(filename);
+    }
+
+    /** A monotonically increasing total kept elsewhere, e.g. in a LongAdder. */
+    public void counter(String name, String help, LongSupplier value) {
+        counters.put(name, new Reading(help, value));
+    }
+
+    /** A value that goes up and down, e.g. open connections. */
+    public void gauge(String name, String help, LongSupplier value) {
+        gauges.put(name, new Reading(help, value));
+    }
+
+    private Histogram histogram(String command) {
+        Histogram histogram = latencies.get(command);
+        return histogram != null ? histogram : latencies.computeIfAbsent(command, k -> new Histogram());
+    }
+
+    /**
+     * "uptime_s=.. requests=.. rps=.. <counters> <gauges> <command>.count=..
+     * <command>.p50_us=.. .p90_us .p99_us .max_us ... top=<n>:<file>/<n>:<file>".
+     * rps covers the time since the previous STATS. File names may contain
+     * spaces, so top comes last and runs to the end of the line.
+     */
+    public synchronized String statsLine() {
+        long now = System.nanoTime();
+        StringBuilder line = new StringBuilder();
+        List<String> commands = new ArrayList<>(latencies.keySet());
+        Collections.sort(commands);
+        long requests = 0;
+        for (String command : commands) {
+            requests += latencies.get(command).count.sum();
+        }
+        double seconds = Math.max(1e-9, (now - lastStatsAt) / 1e9);
+        line.append("uptime_s=").append((now - startedAt) / 1_000_000_000L)
+            .append(" requests=").append(requests)
+            .append(" rps=").append(String.format("%.1f", (requests - lastStatsRequests) / seconds));
+        lastStatsAt = now;
+        lastStatsRequests = requests;
+        synchronized (counters) {
+            counters.forEach((name, reading) -> line.append(' ').append(name).append('=').append(reading.value.getAsLong()));
+        }
+        synchronized (gauges) {
+            gauges.forEach((name, reading) -> line.append(' ').append(name).append('=').append(reading.value.getAsLong()));
+        }
+        for (String command : commands) {
+            Histogram histogram = latencies.get(command);
+            long[] buckets = histogram.snapshot();
+            // A bucket's upper bound may lie above the largest value seen
+            long max = histogram.max.get();
+            line.append(' ').append(command).append(".count=").append(histogram.count.sum());
+            line.append(' ').append(command).append(".p50_us=").append(micros(Math.min(max, Histogram.percentile(buckets, 0.50))));
+            line.append(' ').append(command).append(".p90_us=").append(micros(Math.min(max, Histogram.percentile(buckets, 0.90))));
+            line.append(' ').append(command).append(".p99_us=").append(micros(Math.min(max, Histogram.percentile(buckets, 0.99))));
+            line.append(' ').append(command).append(".max_us=").append(micros(max));
+        }
+        line.append(" top=");
+        List<Map.Entry<String, Long>> top = files.top(topFiles);
+        for (int i = 0; i < top.size(); i++) {
+            line.append(i == 0 ? "" : "/").append(top.get(i).getValue()).append(':').append(top.get(i).getKey());
+        }
+        return line.toString();
+    }
+
+    /** Everything in the Prometheus text exposition format. */
+    public String prometheus() {
+        StringBuilder text = new StringBuilder();
+        String duration = prefix + "_request_duration_seconds";
+        text.append("# HELP ").append(duration).append(" Time to serve a request, by command.\n");
+        text.append("# TYPE ").append(duration).append(" histogram\n");
+        List<String> commands = new ArrayList<>(latencies.keySet());
+        Collections.sort(commands);
+        for (String command : commands) {
+            Histogram histogram = latencies.get(command);
+            long[] buckets = histogram.snapshot();
+            String label = "command=\"" + escape(command) + "\"";
+            // One cumulative bucket per power of two from 1 us to 34 s
+            long cumulative = 0;
+            int index = 0;
+            for (int power = 10; power <= 35; power++) {
+                int end = Histogram.firstBucketOf(power);
+                while (index < end) {
+                    cumulative += buckets[index++];
+                }
+                text.append(duration).append("_bucket{").append(label).append(",le=\"")
+                    .append((1L << power) / 1e9).append("\"} ").append(cumulative).append('\n');
+            }
+            while (index < buckets.length) {
+                cumulative += buckets[index++];
+            }
+            text.append(duration).append("_bucket{").append(label).append(",le=\"+Inf\"} ")
+                .append(cumulative).append('\n');
+            text.append(duration).append("_sum{").append(label).append("} ")
+                .append(histogram.sum.sum() / 1e9).append('\n');
+            text.append(duration).append("_count{").append(label).append("} ").append(cumulative).append('\n');
+        }
+        synchronized (counters) {
+            counters.forEach((name, reading) -> appendReading(text, prefix + "_" + name + "_total", "counter", reading));
+        }
+        synchronized (gauges) {
+            gauges.forEach((name, reading) -> appendReading(text, prefix + "_" + name, "gauge", reading));
+        }
+        String top = prefix + "_top_files";
+        text.append("# HELP ").append(top).append(" Requests for the most requested files (an upper bound).\n");
+        text.append("# TYPE ").append(top).append(" gauge\n");
+        for (Map.Entry<String, Long> entry : files.top(topFiles)) {
+            text.append(top).append("{file=\"").append(escape(entry.getKey())).append("\"} ")
+                .append(entry.getValue()).append('\n');
+        }
+        return text.toString();
+    }
+
+    /** Serves prometheus() at http://host:port/metrics on a daemon thread. */
+    public void serve(String host, int port) throws IOException {
+        HttpServer http = HttpServer.create(new InetSocketAddress(host, port), 0);
+        http.createContext("/metrics", exchange -> {
+            byte[] body = prometheus().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        // The default executor runs on the server's own non-daemon thread
+        http.setExecutor(runnable -> {
+            Thread thread = new Thread(runnable, prefix + "-metrics");
+            thread.setDaemon(true);
+            thread.start();
+        });
+        http.start();
+    }
+
+    private static void appendReading(StringBuilder text, String name, String type, Reading reading) {
+        text.append("# HELP ").append(name).append(' ').append(reading.help).append('\n');
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        text.append(name).append(' ').append(reading.value.getAsLong()).append('\n');
+    }
+
+    private static String micros(long nanos) {
+        return String.format("%.1f", nanos / 1000.0);
+    }
+
+    private static String escape(String label) {
+        return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static class Reading {
+        final String help;
+        final LongSupplier value;
+
+        Reading(String help, LongSupplier value) {
+            this.help = help;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Lock-free latency histogram in nanoseconds. Values below 4 have their
+     * own buckets; above that each power of two 2^e is split into four
+     * buckets of width 2^(e-2).
+     */
+    static class Histogram {
+        private static final int BUCKETS = 4 * 62;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        final LongAdder count = new LongAdder();
+        final LongAdder sum = new LongAdder();
+        final AtomicLong max = new AtomicLong();
+
+        void record(long nanos, int times) {
+            long value = Math.max(0, nanos);
+            buckets.addAndGet(bucketOf(value), times);
+            count.add(times);
+            sum.add(value * times);
+            long current = max.get();
+            while (value > current && !max.compareAndSet(current, value)) {
+                current = max.get();
+            }
+        }
+
+        long[] snapshot() {
+            long[] copy = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                copy[i] = buckets.get(i);
+            }
+            return copy;
+        }
+
+        static int bucketOf(long value) {
+            if (value < 4) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int step = (int) (value >>> (exponent - 2)) & 3;
+            return Math.min(BUCKETS - 1, 4 * (exponent - 1) + step);
+        }
+
+        // Index of the bucket that starts at 2^power
+        static int firstBucketOf(int power) {
+            return 4 * (power - 1);
+        }
+
+        // Exclusive upper bound of a bucket's values
+        static long upperBound(int bucket) {
+            if (bucket < 4) {
+                return bucket + 1;
+            }
+            int exponent = bucket / 4 + 1;
+            return (long) (4 + bucket % 4 + 1) << (exponent - 2);
+        }
+
+        /** Upper bound of the bucket holding the given fraction of values, 0 if empty. */
+        static long percentile(long[] buckets, double fraction) {
+            long total = 0;
+            for (long count : buckets) {
+                total += count;
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(total * fraction);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank) {
+                    return upperBound(i);
+                }
+            }
+            return upperBound(buckets.length - 1);
+        }
+    }
+
+    /**
+     * Space-Saving heavy hitters: at most capacity keys are counted. A new
+     * key replaces the one with the smallest count and inherits that count,
+     * so counts may be overestimated by at most the count it replaced. The
+     * counted keys form a min-heap on their count, so both an increment and
+     * a replacement cost O(log capacity).
+     */
+    static class TopK {
+        private final Slot[] heap;
+        private final Map<String, Slot> slots = new HashMap<>();
+        private int size;
+
+        TopK(int capacity) {
+            this.heap = new Slot[capacity];
+        }
+
+        synchronized void add(String key) {
+            Slot slot = slots.get(key);
+            if (slot != null) {
+                slot.count++;
+                siftDown(slot.index);
+                return;
+            }
+            if (size < heap.length) {
+                slot = new Slot(key, 1);
+                slot.index = size;
+                heap[size++] = slot;
+                slots.put(key, slot);
+                siftUp(slot.index);
+                return;
+            }
+            // Reuse the smallest slot, which stays at the root until sifted
+            slot = heap[0];
+            slots.remove(slot.key);
+            slot.key = key;
+            slot.count++;
+            slots.put(key, slot);
+            siftDown(0);
+        }
+
+        synchronized List<Map.Entry<String, Long>> top(int n) {
+            List<Map.Entry<String, Long>> all = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                all.add(Map.entry(heap[i].key, heap[i].count));
+            }
+            all.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+            return all.subList(0, Math.min(n, all.size()));
+        }
+
+        private void siftUp(int index) {
+            while (index > 0) {
+                int parent = (index - 1) / 2;
+                if (heap[parent].count <= heap[index].count) {
+                    return;
+                }
+                swap(index, parent);
+                index = parent;
+            }
+        }
+
+        private void siftDown(int index) {
+            while (true) {
+                int smallest = index;
+                int left = 2 * index + 1;
+                int right = left + 1;
+                if (left < size && heap[left].count < heap[smallest].count) {
+                    smallest = left;
+                }
+                if (right < size && heap[right].count < heap[smallest].count) {
+                    smallest = right;
+                }
+                if (smallest == index) {
+                    return;
+                }
+                swap(index, smallest);
+                index = smallest;
+            }
+        }
+
+        private void swap(int a, int b) {
+            Slot first = heap[a];
+            heap[a] = heap[b];
+            heap[b] = first;
+            heap[a].index = a;
+            heap[b].index = b;
+        }
+
+        private static final class Slot {
+            String key;
+            long count;
+            int index;
+
+            Slot(String key, long count) {
+                this.key = key;
+                this.count = count;
+            }
+        }
+    }
+}
@@ -0,0 +1,271 @@
+// ParallelDownloader.java
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fetches one file as fixed-size chunks from every replica at once using
+ * DOWNLOAD_RANGE. Chunks are written in place into a preallocated
+ * {@code <target>.part} file; finished chunks are recorded in a
+ * {@code <target>.part.chunks} journal so a failed run resumes where it stopped.
+ * Only replicas whose size and, where known, content hash agree are used,
+ * and the finished file is checked against that hash before it is kept.
+ * Progress and replicas that fail go to the DfsClient.Listener, if any.
+ */
+public class ParallelDownloader {
+    private final List<Replica> replicas;
+    private final Path target;
+    private final Path partial;
+    private final Path journal;
+    private final int chunkSize;
+    private final int parallelism;
+    private final DfsClient.Listener listener;
+    // Name the listener hears about
+    private final String filename;
+    private final AtomicLong bytesDone = new AtomicLong();
+    // SHA-256 the replicas reported for the file, or null if none did
+    private String expectedHash;
+
+    public ParallelDownloader(List<Replica> replicas, Path target, int chunkSize, int parallelism,
+                              DfsClient.Listener listener) {
+        if (replicas.isEmpty()) {
+            throw new IllegalArgumentException("No replicas to download from");
+        }
+        this.replicas = new ArrayList<>(replicas);
+        this.target = target;
+        this.partial = Paths.get(target + ".part");
+        this.journal = Paths.get(target + ".part.chunks");
+        this.chunkSize = chunkSize;
+        this.parallelism = parallelism;
+        this.listener = listener;
+        this.filename = replicas.get(0).filename;
+    }
+
+    /**
+     * Returns once the file is complete at the target path. Throws if some
+     * chunks failed on every replica, keeping the partial file for resuming,
+     * or if the content doesn't match the replicas' hash.
+     */
+    public void download() throws IOException {
+        long fileSize = probeReplicas();
+        int chunkCount = (int) ((fileSize + chunkSize - 1) / chunkSize);
+
+        Files.createDirectories(target.toAbsolutePath().getParent());
+        BitSet done = loadJournal(fileSize, chunkCount);
+
+        // Preallocate so every chunk can be written at its own offset
+        try (RandomAccessFile raf = new RandomAccessFile(partial.toFile(), "rw")) {
+            raf.setLength(fileSize);
+        }
+        for (int i = done.nextSetBit(0); i >= 0; i = done.nextSetBit(i + 1)) {
+            bytesDone.addAndGet(chunkLength(i, fileSize));
+        }
+        if (listener != null) {
+            listener.started(filename, fileSize, bytesDone.get(), false);
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(
+            Math.max(1, Math.min(parallelism * replicas.size(), chunkCount)));
+        int failed = 0;
+        try (FileChannel out = FileChannel.open(partial, StandardOpenOption.WRITE);
+             Writer journalOut = Files.newBufferedWriter(journal, StandardCharsets.UTF_8,
+                 StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int i = done.nextClearBit(0); i < chunkCount; i = done.nextClearBit(i + 1)) {
+                final int chunk = i;
+                results.add(pool.submit(() -> fetchChunk(chunk, fileSize, out, journalOut)));
+            }
+            for (Future<Boolean> result : results) {
+                try {
+                    if (!result.get()) {
+                        failed++;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Download interrupted");
+                } catch (ExecutionException e) {
+                    failed++;
+                }
+            }
+            out.force(true);
+        } finally {
+            pool.shutdownNow();
+        }
+
+        if (failed > 0) {
+            throw new IOException(failed + " chunk(s) could not be fetched from any replica. Run it again to resume.");
+        }
+        if (expectedHash != null) {
+            String actual = FileHashes.compute(partial);
+            if (!actual.equalsIgnoreCase(expectedHash)) {
+                // Resuming from this data would only repeat the mismatch
+                Files.deleteIfExists(partial);
+                Files.deleteIfExists(journal);
+                throw new IOException("Content hash mismatch (expected " + expectedHash + ", got " + actual + 
+                                      "); the download was discarded");
+            }
+        }
+        Files.move(partial, target, StandardCopyOption.REPLACE_EXISTING);
+        Files.deleteIfExists(journal);
+    }
+
+    // Asks every replica for the file size and hash and keeps those that
+    // agree with the first answer. Hashes are compared when both sides have
+    // one; the index's hash stands in for a replica that sends none.
+    private long probeReplicas() throws IOException {
+        long fileSize = -1;
+        List<Replica> usable = new ArrayList<>();
+        for (Replica replica : replicas) {
+            try (Socket socket = new Socket(replica.host, replica.port)) {
+                OutputStream out = socket.getOutputStream();
+                out.write(("GET " + replica.filename + "\n").getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                String response = DfsClient.readHeaderLine(socket.getInputStream());
+                if (response == null || !response.startsWith("FILE_EXISTS")) {
+                    continue;
+                }
+                String[] fields = response.split(" ");
+                long size = Long.parseLong(fields[1]);
+                String hash = fields.length > 2 ? fields[2] : replica.hash;
+                if (fileSize < 0) {
+                    fileSize = size;
+                }
+                if (size != fileSize) {
+                    replicaFailed(replica, "size " + size + " differs from " + fileSize);
+                } else if (hash != null && expectedHash != null && !hash.equalsIgnoreCase(expectedHash)) {
+                    replicaFailed(replica, "content differs from the other replicas");
+                } else {
+                    if (expectedHash == null) {
+                        expectedHash = hash;
+                    }
+                    usable.add(replica);
+                }
+            } catch (IOException e) {
+                replicaFailed(replica, e.getMessage());
+            }
+        }
+        if (usable.isEmpty()) {
+            throw new IOException("No reachable replica has the file");
+        }
+        replicas.retainAll(usable);
+        return fileSize;
+    }
+
+    // The journal header pins file size, chunk size and content hash; a
+    // mismatch means a stale partial file
+    private BitSet loadJournal(long fileSize, int chunkCount) throws IOException {
+        BitSet done = new BitSet(chunkCount);
+        String header = fileSize + " " + chunkSize + (expectedHash != null ? " " + expectedHash : "");
+
+        if (Files.exists(journal) && Files.exists(partial)) {
+            List<String> lines = Files.readAllLines(journal, StandardCharsets.UTF_8);
+            if (!lines.isEmpty() && lines.get(0).equals(header)) {
+                for (String line : lines.subList(1, lines.size())) {
+                    try {
+                        done.set(Integer.parseInt(line.trim()));
+                    } catch (NumberFormatException e) {
+                        // Torn last line from a crash; that chunk is simply fetched again
+                    }
+                }
+                return done;
+            }
+        }
+        Files.deleteIfExists(partial);
+        Files.write(journal, (header + "\n").getBytes(StandardCharsets.UTF_8));
+        return done;
+    }
+
+    // Tries replicas round-robin starting at a chunk-dependent one so load is spread
+    private boolean fetchChunk(int chunk, long fileSize, FileChannel out, Writer journalOut) {
+        long offset = (long) chunk * chunkSize;
+        long length = chunkLength(chunk, fileSize);
+
+        for (int attempt = 0; attempt < replicas.size(); attempt++) {
+            Replica replica = replicas.get((chunk + attempt) % replicas.size());
+            try {
+                fetchRange(replica, offset, length, out);
+                // Chunk data must be durable before the journal claims it
+                out.force(false);
+                synchronized (journalOut) {
+                    journalOut.write(chunk + "\n");
+                    journalOut.flush();
+                }
+                long total = bytesDone.addAndGet(length);
+                if (listener != null) {
+                    listener.progress(filename, total, fileSize);
+                }
+                return true;
+            } catch (IOException e) {
+                replicaFailed(replica, "chunk " + chunk + " failed: " + e.getMessage());
+            }
+        }
+        return false;
+    }
+
+    private void replicaFailed(Replica replica, String reason) {
+        if (listener != null) {
+            listener.replicaFailed(filename, replica.server, reason);
+        }
+    }
+
+    private void fetchRange(Replica replica, long offset, long length, FileChannel out) throws IOException {
+        try (Socket socket = new Socket(replica.host, replica.port)) {
+            OutputStream socketOut = socket.getOutputStream();
+            InputStream socketIn = socket.getInputStream();
+            socketOut.write(("DOWNLOAD_RANGE " + offset + " " + length + " " + replica.filename + "\n")
+                .getBytes(StandardCharsets.UTF_8));
+            socketOut.flush();
+
+            String response = DfsClient.readHeaderLine(socketIn);
+            if (response == null || !response.startsWith("RANGE")) {
+                throw new IOException("Unexpected response: " + response);
+            }
+            long count = Long.parseLong(response.split(" ")[2]);
+            if (count != length) {
+                throw new IOException("Server sent " + count + " bytes instead of " + length);
+            }
+
+            byte[] buffer = new byte[Config.getBufferSize()];
+            ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+            long written = 0;
+            while (written < length) {
+                int bytesRead = socketIn.read(buffer, 0, (int) Math.min(buffer.length, length - written));
+                if (bytesRead == -1) {
+                    throw new EOFException("Connection closed after " + written + " of " + length + " bytes");
+                }
+                wrapped.clear().limit(bytesRead);
+                while (wrapped.hasRemaining()) {
+                    written += out.write(wrapped, offset + written);
+                }
+            }
+        }
+    }
+
+    private long chunkLength(int chunk, long fileSize) {
+        return Math.min(chunkSize, fileSize - (long) chunk * chunkSize);
+    }
+
+    static class Replica {
+        final String server;
+        final String host;
+        final int port;
+        final String filename;
+        // Content hash from the index, or null
+        final String hash;
+
+        Replica(String server, String host, int port, String filename, String hash) {
+            this.server = server;
+            this.host = host;
+            this.port = port;
+            this.filename = filename;
+            this.hash = hash;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+// ReplyWriter.java
+import java.io.*;
+
+/**
+ * Text replies of an index session, encoded as UTF-8 straight into one
+ * reusable byte array. A SEARCH reply is assembled field by field, numbers
+ * included, without the String.format, StringBuilder and encoder buffers
+ * a PrintWriter reply goes through.
+ *
+ * Like PrintWriter, it never throws. Once a write fails, the rest of the
+ * output is dropped, and the session notices the closed connection on its
+ * next read.
+ */
+class ReplyWriter implements Flushable, Closeable {
+    private final OutputStream out;
+    private final byte[] buffer;
+    private int count;
+    private boolean failed;
+
+    ReplyWriter(OutputStream out, int size) {
+        this.out = out;
+        this.buffer = new byte[size];
+    }
+
+    ReplyWriter print(CharSequence text) {
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                if (count == buffer.length) {
+                    drain();
+                }
+                buffer[count++] = (byte) c;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                       && Character.isLowSurrogate(text.charAt(i + 1))) {
+                printCodePoint(Character.toCodePoint(c, text.charAt(++i)));
+            } else {
+                printCodePoint(c);
+            }
+        }
+        return this;
+    }
+
+    ReplyWriter print(char c) {
+        if (c >= 0x80) {
+            return printCodePoint(c);
+        }
+        if (count == buffer.length) {
+            drain();
+        }
+        buffer[count++] = (byte) c;
+        return this;
+    }
+
+    ReplyWriter print(long value) {
+        if (count + 20 > buffer.length) {
+            drain();
+        }
+        if (value < 0) {
+            if (value == Long.MIN_VALUE) {
+                return print(Long.toString(value));
+            }
+            buffer[count++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (long rest = value / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        for (int i = count + digits - 1; i >= count; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        count += digits;
+        return this;
+    }
+
+    ReplyWriter println(CharSequence line) {
+        return print(line).print('\n');
+    }
+
+    ReplyWriter println() {
+        return print('\n');
+    }
+
+    private ReplyWriter printCodePoint(int cp) {
+        if (cp < 0x10000 && Character.isSurrogate((char) cp)) {
+            // An unpaired surrogate comes out as '?', as from a PrintWriter
+            return print('?');
+        }
+        if (count + 4 > buffer.length) {
+            drain();
+        }
+        if (cp < 0x800) {
+            buffer[count++] = (byte) (0xC0 | (cp >> 6));
+        } else if (cp < 0x10000) {
+            buffer[count++] = (byte) (0xE0 | (cp >> 12));
+            buffer[count++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+        } else {
+            buffer[count++] = (byte) (0xF0 | (cp >> 18));
+            buffer[count++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+            buffer[count++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+        }
+        buffer[count++] = (byte) (0x80 | (cp & 0x3F));
+        return this;
+    }
+
+    // Hands the buffered bytes to the stream, making room for more
+    private void drain() {
+        if (!failed && count > 0) {
+            try {
+                out.write(buffer, 0, count);
+            } catch (IOException e) {
+                failed = true;
+            }
+        }
+        count = 0;
+    }
+
+    @Override
+    public void flush() {
+        drain();
+        if (!failed) {
+            try {
+                out.flush();
+            } catch (IOException e) {
+                failed = true;
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        flush();
+        try {
+            out.close();
+        } catch (IOException e) {
+            // Closing anyway
+        }
+    }
+}
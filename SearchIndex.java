@@ -0,0 +1,264 @@
+// SearchIndex.java
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Name lookups beyond exact match for the IndexServer: prefix, substring
+ * and typo-tolerant (edit distance) search over the registered file names.
+ *
+ * Prefix queries walk a sorted skip list from the prefix onwards. Substring
+ * and fuzzy queries use trigram postings: each name gets an int id and every
+ * trigram of the name, padded with boundary markers, lists the ids containing
+ * it. A query reads only its rarest trigrams' postings and checks those
+ * candidates directly, so the cost follows the number of plausible matches
+ * rather than the size of the catalog.
+ *
+ * Names are expected in the index's lowercase form. Updates are serialised;
+ * queries run concurrently with them and may miss a name being changed.
+ */
+public class SearchIndex {
+    public static final int MAX_RESULTS = 1000;
+
+    private static final char START = '\u0002';
+    private static final char END = '\u0003';
+
+    private final ConcurrentSkipListSet<String> sortedNames = new ConcurrentSkipListSet<>();
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private final Map<Long, Postings> postings = new ConcurrentHashMap<>();
+    private volatile String[] namesById = new String[1024];
+    private int nextId;
+    private int[] freeIds = new int[16];
+    private int freeCount;
+
+    public synchronized void add(String name) {
+        if (ids.containsKey(name)) {
+            return;
+        }
+        int id = freeCount > 0 ? freeIds[--freeCount] : nextId++;
+        if (id >= namesById.length) {
+            namesById = Arrays.copyOf(namesById, namesById.length * 2);
+        }
+        namesById[id] = name;
+        ids.put(name, id);
+        for (long trigram : trigrams(pad(name))) {
+            postings.computeIfAbsent(trigram, k -> new Postings()).add(id);
+        }
+        sortedNames.add(name);
+    }
+
+    public synchronized void remove(String name) {
+        Integer id = ids.remove(name);
+        if (id == null) {
+            return;
+        }
+        sortedNames.remove(name);
+        for (long trigram : trigrams(pad(name))) {
+            Postings list = postings.get(trigram);
+            if (list != null && list.remove(id) == 0) {
+                postings.remove(trigram);
+            }
+        }
+        namesById[id] = null;
+        if (freeCount == freeIds.length) {
+            freeIds = Arrays.copyOf(freeIds, freeCount * 2);
+        }
+        freeIds[freeCount++] = id;
+    }
+
+    public int size() {
+        return ids.size();
+    }
+
+    /** All names after the given one (all names if null), in sorted order. */
+    public NavigableSet<String> namesAfter(String after) {
+        return after == null ? sortedNames : sortedNames.tailSet(after, false);
+    }
+
+    /** Names starting with the prefix, in sorted order. */
+    public List<String> prefix(String prefix, int limit) {
+        List<String> results = new ArrayList<>();
+        for (String name : sortedNames.tailSet(prefix)) {
+            if (results.size() >= limit || !name.startsWith(prefix)) {
+                break;
+            }
+            results.add(name);
+        }
+        return results;
+    }
+
+    /** Names containing the text, sorted; at most limit of them. */
+    public List<String> substring(String text, int limit) {
+        List<String> results = new ArrayList<>();
+        if (text.length() < 3) {
+            // No trigram to narrow by, so walk the names until enough match
+            for (String name : sortedNames) {
+                if (results.size() >= limit) {
+                    break;
+                }
+                if (name.contains(text)) {
+                    results.add(name);
+                }
+            }
+            return results;
+        }
+
+        Postings rarest = null;
+        for (long trigram : trigrams(text)) {
+            Postings list = postings.get(trigram);
+            if (list == null) {
+                return results;
+            }
+            if (rarest == null || list.size < rarest.size) {
+                rarest = list;
+            }
+        }
+        String[] names = namesById;
+        int count = rarest.size;
+        int[] candidates = rarest.ids;
+        for (int i = 0; i < count && results.size() < limit; i++) {
+            int id = candidates[i];
+            String name = id < names.length ? names[id] : null;
+            if (name != null && name.contains(text)) {
+                results.add(name);
+            }
+        }
+        Collections.sort(results);
+        return results;
+    }
+
+    /**
+     * Names within a small edit distance of the query (one edit for up to
+     * five characters, two beyond that), closest first.
+     */
+    public List<String> fuzzy(String query, int limit) {
+        int maxEdits = query.length() <= 2 ? 0 : query.length() <= 5 ? 1 : 2;
+
+        // An edit changes at most three padded trigrams, so a match shares
+        // all but 3 * maxEdits of the query's trigrams and must therefore
+        // contain at least one of any 3 * maxEdits + 1 of them. Reading only
+        // the rarest ones keeps the candidate set small.
+        List<Postings> lists = new ArrayList<>();
+        for (long trigram : trigrams(pad(query))) {
+            Postings list = postings.get(trigram);
+            lists.add(list != null ? list : Postings.EMPTY);
+        }
+        lists.sort(Comparator.comparingInt(list -> list.size));
+        int needed = Math.min(lists.size(), 3 * maxEdits + 1);
+
+        String[] names = namesById;
+        Set<Integer> seen = new HashSet<>();
+        List<String> matches = new ArrayList<>();
+        List<Integer> distances = new ArrayList<>();
+        for (int i = 0; i < needed; i++) {
+            Postings list = lists.get(i);
+            int count = list.size;
+            int[] candidates = list.ids;
+            for (int j = 0; j < count; j++) {
+                int id = candidates[j];
+                String name = id < names.length ? names[id] : null;
+                if (name == null || !seen.add(id)) {
+                    continue;
+                }
+                int distance = editDistance(query, name, maxEdits);
+                if (distance <= maxEdits) {
+                    matches.add(name);
+                    distances.add(distance);
+                }
+            }
+        }
+
+        Integer[] order = new Integer[matches.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.<Integer>comparingInt(distances::get).thenComparing(matches::get));
+        List<String> results = new ArrayList<>();
+        for (int i = 0; i < order.length && i < limit; i++) {
+            results.add(matches.get(order[i]));
+        }
+        return results;
+    }
+
+    private static String pad(String name) {
+        return "" + START + START + name + END + END;
+    }
+
+    // Distinct trigrams, each packed into a long (three 16-bit chars)
+    private static long[] trigrams(String text) {
+        int count = Math.max(0, text.length() - 2);
+        long[] result = new long[count];
+        for (int i = 0; i < count; i++) {
+            result[i] = ((long) text.charAt(i) << 32) | ((long) text.charAt(i + 1) << 16) | text.charAt(i + 2);
+        }
+        Arrays.sort(result);
+        int distinct = 0;
+        for (int i = 0; i < count; i++) {
+            if (distinct == 0 || result[i] != result[distinct - 1]) {
+                result[distinct++] = result[i];
+            }
+        }
+        return Arrays.copyOf(result, distinct);
+    }
+
+    // Levenshtein distance, giving up with max + 1 once every cell of a
+    // row exceeds max
+    static int editDistance(String a, String b, int max) {
+        if (Math.abs(a.length() - b.length()) > max) {
+            return max + 1;
+        }
+        int[] previous = new int[b.length() + 1];
+        int[] current = new int[b.length() + 1];
+        for (int j = 0; j <= b.length(); j++) {
+            previous[j] = j;
+        }
+        for (int i = 1; i <= a.length(); i++) {
+            current[0] = i;
+            int rowMin = current[0];
+            for (int j = 1; j <= b.length(); j++) {
+                int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+                current[j] = Math.min(Math.min(current[j - 1] + 1, previous[j] + 1), previous[j - 1] + cost);
+                rowMin = Math.min(rowMin, current[j]);
+            }
+            if (rowMin > max) {
+                return max + 1;
+            }
+            int[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        return previous[b.length()];
+    }
+
+    // Unordered ids of the names containing one trigram. Removal swaps the
+    // last id into the freed slot, so it costs a scan of this list only.
+    // Readers take size, then ids, without locking: the array only ever
+    // grows, so that prefix is always readable, and a slot overwritten by a
+    // concurrent removal just yields a candidate that fails verification.
+    private static class Postings {
+        static final Postings EMPTY = new Postings();
+
+        volatile int[] ids = new int[4];
+        volatile int size;
+
+        synchronized void add(int id) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size] = id;
+            size++;
+        }
+
+        // Returns the number of ids left
+        synchronized int remove(int id) {
+            for (int i = 0; i < size; i++) {
+                if (ids[i] == id) {
+                    ids[i] = ids[size - 1];
+                    size--;
+                    break;
+                }
+            }
+            return size;
+        }
+    }
+}
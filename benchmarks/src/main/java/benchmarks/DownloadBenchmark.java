@@ -0,0 +1,116 @@
+// DownloadBenchmark.java
+package benchmarks;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Whole-file DOWNLOADs from a Department Server over loopback, for several
+ * file sizes, buffer sizes, copy paths and connection models.
+ *
+ * bufferSize is buffer.size: the server's copy buffer when zero-copy is off,
+ * and the client's read buffer in every case. Files up to 128 KB end up in
+ * the server's hot-file cache after their second request, as they would in
+ * production. Each download uses a new connection, like FileClient. Besides
+ * downloads per second, the bytes counter reports throughput in bytes per
+ * second.
+ */
+@Fork(1)
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class DownloadBenchmark {
+    private static final String FILE_NAME = "payload.bin";
+
+    @Param({"16384", "1048576", "67108864"})
+    public int fileSize;
+
+    @Param({"4096", "65536"})
+    public int bufferSize;
+
+    @Param({"true", "false"})
+    public boolean zeroCopy;
+
+    @Param({"thread", "nio"})
+    public String mode;
+
+    private Servers servers;
+    private int port;
+
+    @Setup(Level.Trial)
+    public void startServer() throws IOException {
+        Path workDir = Files.createTempDirectory("download-bench");
+        Path files = Files.createDirectory(workDir.resolve("files"));
+        byte[] content = new byte[fileSize];
+        new Random(42).nextBytes(content);
+        Files.write(files.resolve(FILE_NAME), content);
+
+        servers = new Servers(workDir, Map.of("buffer.size", String.valueOf(bufferSize),
+                                              "download.zerocopy", String.valueOf(zeroCopy)));
+        int indexPort = servers.startIndexServer();
+        port = servers.startDepartmentServer("Bench_Server", files, indexPort, mode);
+        // The catalog is filled by a scan after the port opens
+        while (!Servers.request(port, "GET " + FILE_NAME).startsWith("FILE_EXISTS")) {
+            Servers.sleep(50);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void stopServer() {
+        servers.close();
+    }
+
+    @Benchmark
+    public void download(Transfer transfer) throws IOException {
+        try (Socket socket = new Socket("localhost", port)) {
+            OutputStream out = socket.getOutputStream();
+            out.write(("DOWNLOAD " + FILE_NAME + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            InputStream in = socket.getInputStream();
+            byte[] buffer = transfer.buffer;
+            // The header line, then the body up to end of stream
+            int b;
+            while ((b = in.read()) != '\n') {
+                if (b == -1) {
+                    throw new EOFException("No response header");
+                }
+            }
+            long received = 0;
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                received += read;
+            }
+            if (received != fileSize) {
+                throw new IOException("Received " + received + " of " + fileSize + " bytes");
+            }
+            transfer.bytes += received;
+        }
+    }
+
+    /** Per-thread read buffer, and the bytes received, reported as a rate. */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Transfer {
+        public long bytes;
+        byte[] buffer;
+
+        @Setup(Level.Trial)
+        public void allocate(DownloadBenchmark benchmark) {
+            buffer = new byte[benchmark.bufferSize];
+        }
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+// IndexBenchmark.java
+package benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * REGISTER and SEARCH on an Index Server holding a given number of file
+ * names, over loopback with the text protocol.
+ *
+ * register times one REGISTER of a new Department Server with files names,
+ * all new to the index; the server is removed again between iterations.
+ * search is pipelined SEARCH throughput for random registered names, in
+ * batches of 32 per round trip like ClusterBenchmark. The default sizes fit
+ * the default heap; for the largest catalogs run with
+ * -p files=10000000 -jvmArgsAppend -Dbench.server.jvmArgs=-Xmx12g
+ */
+@Fork(1)
+@State(Scope.Benchmark)
+public class IndexBenchmark {
+    private static final int BATCH = 32;
+    // Distinct queries prepared per iteration, so building them isn't timed
+    private static final int QUERIES = 4096;
+
+    @Param({"1000", "100000", "1000000"})
+    public int files;
+
+    private Servers servers;
+    private int port;
+    private boolean registering;
+    private int registrations;
+    private String registerLine;
+    private String[] queries;
+
+    @Setup(Level.Trial)
+    public void startIndex(BenchmarkParams params) throws IOException {
+        servers = new Servers(Files.createTempDirectory("index-bench"), Map.of());
+        port = servers.startIndexServer();
+        registering = params.getBenchmark().endsWith(".register");
+        if (!registering) {
+            String answer = Servers.request(port, catalog("Search_Server", "file"));
+            if (!answer.equals("REGISTERED")) {
+                throw new IllegalStateException("Preloading the index failed: " + answer);
+            }
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void prepare() {
+        if (registering) {
+            registrations++;
+            registerLine = catalog("Bench_Server_" + registrations, "bench" + registrations + "-");
+            return;
+        }
+        queries = new String[QUERIES];
+        for (int i = 0; i < QUERIES; i++) {
+            queries[i] = "SEARCH " + name("file", ThreadLocalRandom.current().nextInt(files));
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void unregister() throws IOException {
+        if (registering) {
+            // An empty snapshot drops the server's files again
+            Servers.request(port, "REGISTER Bench_Server_" + registrations + "|127.0.0.1|9999|");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void stopIndex() {
+        servers.close();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 3)
+    @Measurement(iterations = 5)
+    public String register() throws IOException {
+        return Servers.request(port, registerLine);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(BATCH)
+    @Warmup(iterations = 3, time = 5)
+    @Measurement(iterations = 5, time = 5)
+    public void search(Session session, Blackhole hole) throws IOException {
+        int start = ThreadLocalRandom.current().nextInt(QUERIES);
+        for (int i = 0; i < BATCH; i++) {
+            session.text.send(queries[(start + i) % QUERIES]);
+        }
+        session.text.flush();
+        for (int i = 0; i < BATCH; i++) {
+            hole.consume(session.text.readLine());
+        }
+    }
+
+    // REGISTER line for a server holding files names with the given prefix
+    private String catalog(String server, String prefix) {
+        StringBuilder line = new StringBuilder(files * 20 + 64);
+        line.append("REGISTER ").append(server).append("|127.0.0.1|9999|");
+        for (int i = 0; i < files; i++) {
+            line.append(i == 0 ? "" : ",").append(name(prefix, i));
+        }
+        return line.append("|1").toString();
+    }
+
+    private static String name(String prefix, int i) {
+        return prefix + i + ".dat";
+    }
+
+    /** One keep-alive connection per benchmark thread. */
+    @State(Scope.Thread)
+    public static class Session {
+        Servers.TextSession text;
+
+        @Setup(Level.Trial)
+        public void open(IndexBenchmark benchmark) throws IOException {
+            text = new Servers.TextSession(benchmark.port);
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws IOException {
+            text.close();
+        }
+    }
+}
@@ -0,0 +1,151 @@
+// SearchEncodingBenchmark.java
+package benchmarks;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * SEARCH round trips whose answers list a given number of locations, with
+ * the text protocol (one FOUND line) and with binary frames.
+ *
+ * Every location carries a content hash, as registrations do since
+ * Department Servers hash their files, so the reply size and the cost of
+ * building it grow with the number of servers holding a name.
+ */
+@Fork(1)
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class SearchEncodingBenchmark {
+    private static final int NAMES = 1000;
+    private static final byte OP_SEARCH = 0x01;
+    private static final byte OP_FOUND = 0x41;
+
+    @Param({"1", "16", "128"})
+    public int locations;
+
+    @Param({"text", "binary"})
+    public String protocol;
+
+    private Servers servers;
+    private int port;
+
+    @Setup(Level.Trial)
+    public void startIndex() throws IOException {
+        servers = new Servers(Files.createTempDirectory("search-bench"), Map.of());
+        port = servers.startIndexServer();
+        for (int server = 0; server < locations; server++) {
+            StringBuilder line = new StringBuilder("REGISTER Server_" + server + "|10.0.0." + server + "|9091|");
+            for (int i = 0; i < NAMES; i++) {
+                line.append(i == 0 ? "" : ",").append(name(i)).append('/').append(hash(i));
+            }
+            String answer = Servers.request(port, line.append("|1").toString());
+            if (!answer.equals("REGISTERED")) {
+                throw new IllegalStateException("Registration failed: " + answer);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void stopIndex() {
+        servers.close();
+    }
+
+    @Benchmark
+    public Object search(Session session) throws IOException {
+        String name = name(ThreadLocalRandom.current().nextInt(NAMES));
+        return session.binary != null ? session.searchBinary(name) : session.searchText(name);
+    }
+
+    private static String name(int i) {
+        return "lecture-notes-" + i + ".pdf";
+    }
+
+    private static String hash(int i) {
+        return String.format("%064x", i);
+    }
+
+    /** One keep-alive connection per benchmark thread, in the chosen protocol. */
+    @State(Scope.Thread)
+    public static class Session {
+        Servers.TextSession text;
+        Socket binary;
+        DataInputStream in;
+        DataOutputStream out;
+        private byte[] payload = new byte[4096];
+
+        @Setup(Level.Trial)
+        public void open(SearchEncodingBenchmark benchmark) throws IOException {
+            if (benchmark.protocol.equals("text")) {
+                text = new Servers.TextSession(benchmark.port);
+                return;
+            }
+            binary = new Socket("localhost", benchmark.port);
+            binary.setTcpNoDelay(true);
+            in = new DataInputStream(new BufferedInputStream(binary.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(binary.getOutputStream()));
+            out.write("BINARY 1\n".getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            StringBuilder reply = new StringBuilder();
+            for (int b = in.read(); b != '\n'; b = in.read()) {
+                if (b == -1) {
+                    throw new EOFException("Server closed the connection");
+                }
+                reply.append((char) b);
+            }
+            if (!reply.toString().equals("BINARY_OK 1")) {
+                throw new IOException("Binary protocol refused: " + reply);
+            }
+        }
+
+        String searchText(String name) throws IOException {
+            text.send("SEARCH " + name);
+            text.flush();
+            String reply = text.readLine();
+            if (!reply.startsWith("FOUND")) {
+                throw new IllegalStateException("Unexpected reply: " + reply);
+            }
+            return reply;
+        }
+
+        // u8 opcode | u32 request id | u32 payload length | u16 length, UTF-8 name
+        byte[] searchBinary(String name) throws IOException {
+            byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            out.writeByte(OP_SEARCH);
+            out.writeInt(1);
+            out.writeInt(2 + bytes.length);
+            out.writeShort(bytes.length);
+            out.write(bytes);
+            out.flush();
+            byte opcode = in.readByte();
+            in.readInt();
+            int length = in.readInt();
+            if (payload.length < length) {
+                payload = new byte[length];
+            }
+            in.readFully(payload, 0, length);
+            if (opcode != OP_FOUND) {
+                throw new IllegalStateException("Unexpected opcode: " + opcode);
+            }
+            return payload;
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws IOException {
+            if (text != null) {
+                text.close();
+            }
+            if (binary != null) {
+                binary.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,169 @@
+// Servers.java
+package benchmarks;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * The real Index Server and Department Server, each in a JVM of its own,
+ * with the benchmark talking to them over loopback as a client would.
+ *
+ * The servers come from the same jar as the benchmarks and are configured
+ * with -Ddfs.* properties on their command line instead of a
+ * config.properties. JVM options for them, e.g. a larger heap, go in the
+ * bench.server.jvmArgs property of the benchmark JVM. Their output goes to
+ * a log file in the work directory.
+ * close() stops them; JMH runs every benchmark and parameter combination in
+ * a fresh fork, so each gets servers of its own.
+ */
+final class Servers implements Closeable {
+    private static final long START_TIMEOUT_MILLIS = 30_000;
+
+    private final Path workDir;
+    private final Map<String, String> config = new LinkedHashMap<>();
+    private final List<Process> processes = new ArrayList<>();
+
+    /** Servers with quiet logs and no index persistence, plus the given settings. */
+    Servers(Path workDir, Map<String, String> settings) {
+        this.workDir = workDir;
+        config.put("log.level", "WARN");
+        config.put("index.data.dir", "");
+        config.put("index.lease.ms", "3600000");
+        config.put("server.hash.cache.dir", workDir.resolve("hash-cache").toString());
+        config.putAll(settings);
+    }
+
+    /** Starts an Index Server and returns its port. */
+    int startIndexServer() throws IOException {
+        int port = freePort();
+        start("IndexServer", String.valueOf(port));
+        awaitPort(port);
+        return port;
+    }
+
+    /** Starts a Department Server serving directory and returns its port. */
+    int startDepartmentServer(String name, Path directory, int indexPort, String mode) throws IOException {
+        int port = freePort();
+        start("DepartmentServer", name, String.valueOf(port), directory.toString(),
+              "localhost", String.valueOf(indexPort), mode);
+        awaitPort(port);
+        return port;
+    }
+
+    @Override
+    public void close() {
+        for (Process process : processes) {
+            process.destroy();
+        }
+        for (Process process : processes) {
+            try {
+                process.waitFor();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        processes.clear();
+    }
+
+    private void start(String mainClass, String... args) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        for (String option : System.getProperty("bench.server.jvmArgs", "").trim().split("\\s+")) {
+            if (!option.isEmpty()) {
+                command.add(option);
+            }
+        }
+        for (Map.Entry<String, String> setting : config.entrySet()) {
+            command.add("-Ddfs." + setting.getKey() + "=" + setting.getValue());
+        }
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(mainClass);
+        command.addAll(Arrays.asList(args));
+        File log = workDir.resolve(mainClass + "-" + processes.size() + ".log").toFile();
+        Process process = new ProcessBuilder(command)
+            .directory(workDir.toFile())
+            .redirectErrorStream(true)
+            .redirectOutput(log)
+            .start();
+        processes.add(process);
+    }
+
+    private void awaitPort(int port) throws IOException {
+        long deadline = System.currentTimeMillis() + START_TIMEOUT_MILLIS;
+        while (true) {
+            try (Socket ignored = new Socket("localhost", port)) {
+                return;
+            } catch (IOException e) {
+                Process last = processes.get(processes.size() - 1);
+                if (!last.isAlive() || System.currentTimeMillis() > deadline) {
+                    throw new IOException("Server on port " + port + " did not start, see " + workDir, e);
+                }
+                sleep(50);
+            }
+        }
+    }
+
+    /** One text request on a new connection; returns the first reply line. */
+    static String request(int port, String line) throws IOException {
+        try (TextSession session = new TextSession(port)) {
+            session.send(line);
+            session.flush();
+            return session.readLine();
+        }
+    }
+
+    static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** A keep-alive text session with buffered, pipelinable requests. */
+    static final class TextSession implements Closeable {
+        private final Socket socket;
+        private final BufferedReader in;
+        private final Writer out;
+
+        TextSession(int port) throws IOException {
+            this.socket = new Socket("localhost", port);
+            this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            this.out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+        }
+
+        void send(String line) throws IOException {
+            out.write(line);
+            out.write('\n');
+        }
+
+        void flush() throws IOException {
+            out.flush();
+        }
+
+        String readLine() throws IOException {
+            String line = in.readLine();
+            if (line == null) {
+                throw new EOFException("Server closed the connection");
+            }
+            return line;
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,50 @@
+#!/bin/bash
+# cluster_benchmark.sh
+# SEARCH throughput of 1, 2 and 4 local index nodes, one process each,
+# with clients going through any node (routed) or straight to an owner (direct).
+# Usage: ./cluster_benchmark.sh [files] [threads] [seconds]
+set -e
+
+SCRIPT_DIR="$(cd "$(dirname "$0")" && pwd)"
+FILES=${1:-100000}
+THREADS=${2:-8}
+SECONDS_PER_RUN=${3:-10}
+
+WORK_DIR=$(mktemp -d)
+trap 'kill $PIDS 2>/dev/null; rm -rf "$WORK_DIR"' EXIT
+
+echo "Compiling sources..."
+javac -d "$WORK_DIR/classes" "$SCRIPT_DIR"/*.java
+
+for N in 1 2 4; do
+    NODES=""
+    for ((i = 0; i < N; i++)); do
+        NODES="$NODES${NODES:+,}localhost:$((9090 + 100 * i))"
+    done
+
+    RUN_DIR="$WORK_DIR/run-$N"
+    mkdir -p "$RUN_DIR"
+    cat > "$RUN_DIR/config.properties" <<EOF
+index.cluster.nodes=$NODES
+index.cluster.replication=2
+index.data.dir=
+index.lease.ms=3600000
+index.pool.size=$THREADS
+EOF
+
+    PIDS=""
+    for ((i = 0; i < N; i++)); do
+        (cd "$RUN_DIR" && exec java -cp "$WORK_DIR/classes" IndexServer $((9090 + 100 * i))) \
+            > "$RUN_DIR/node-$i.log" 2>&1 &
+        PIDS="$PIDS $!"
+    done
+    sleep 2
+
+    for MODE in routed direct; do
+        (cd "$RUN_DIR" && java -cp "$WORK_DIR/classes" ClusterBenchmark "$NODES" "$FILES" "$THREADS" "$SECONDS_PER_RUN" $MODE)
+    done
+
+    kill $PIDS
+    wait $PIDS 2>/dev/null || true
+    PIDS=""
+done